@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.jhlabs.image;
 
+import pixelitor.ThreadPool;
+
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.Point2D;
@@ -24,6 +26,8 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.Kernel;
 
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
 /**
  * A filter which applies a convolution kernel to an image.
  *
@@ -242,7 +246,6 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
      * @param edgeAction what to do at the edges
      */
     public void convolveHV(Kernel kernel, int[] inPixels, int[] outPixels, int width, int height, int edgeAction) {
-        int index = 0;
         float[] matrix = kernel.getKernelData(null);
         int rows = kernel.getHeight();
         int cols = kernel.getWidth();
@@ -251,8 +254,9 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
 
         pt = createProgressTracker(height);
 
-        for (int y = 0; y < height; y++) {
+        ThreadPool.processRows(width, height, y -> {
             int offset = y * width;
+            int index = offset;
             for (int x = 0; x < width; x++) {
                 float r = 0, g = 0, b = 0, a = 0;
                 int origPacked = inPixels[offset + x];
@@ -297,8 +301,7 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
                 int ib = PixelUtils.clamp((int) (b + 0.5));
                 outPixels[index++] = (origAlpha << 24) | (ir << 16) | (ig << 8) | ib;
             }
-            pt.unitDone();
-        }
+        }, pt);
         finishProgressTracker();
     }
 
@@ -313,13 +316,13 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
      * @param edgeAction what to do at the edges
      */
     public static void convolveH(Kernel kernel, int[] inPixels, int[] outPixels, int width, int height, int edgeAction) {
-        int index = 0;
         float[] matrix = kernel.getKernelData(null);
         int cols = kernel.getWidth();
         int cols2 = cols / 2;
 
-        for (int y = 0; y < height; y++) {
+        ThreadPool.processRows(width, height, y -> {
             int ioffset = y * width;
+            int index = ioffset;
             for (int x = 0; x < width; x++) {
                 int origPacked = inPixels[ioffset + x];
                 int origAlpha = (origPacked >> 24) & 0xff;
@@ -354,7 +357,7 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
                 int ib = PixelUtils.clamp((int) (b + 0.5));
                 outPixels[index++] = (origAlpha << 24) | (ir << 16) | (ig << 8) | ib;
             }
-        }
+        }, NULL_TRACKER);
     }
 
     /**
@@ -368,13 +371,13 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
      * @param edgeAction what to do at the edges
      */
     public static void convolveV(Kernel kernel, int[] inPixels, int[] outPixels, int width, int height, int edgeAction) {
-        int index = 0;
         float[] matrix = kernel.getKernelData(null);
         int rows = kernel.getHeight();
         int rows2 = rows / 2;
 
-        for (int y = 0; y < height; y++) {
+        ThreadPool.processRows(width, height, y -> {
             int offset = y * width;
+            int index = offset;
             for (int x = 0; x < width; x++) {
                 float r = 0, g = 0, b = 0;
                 int origPacked = inPixels[offset + x];
@@ -417,7 +420,7 @@ public class ConvolveFilter extends AbstractBufferedImageOp {
                 int ib = PixelUtils.clamp((int) (b + 0.5));
                 outPixels[index++] = (origAlpha << 24) | (ir << 16) | (ig << 8) | ib;
             }
-        }
+        }, NULL_TRACKER);
     }
 
     @Override
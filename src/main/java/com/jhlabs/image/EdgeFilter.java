@@ -16,8 +16,6 @@ limitations under the License.
 
 package com.jhlabs.image;
 
-import java.awt.Rectangle;
-
 /**
  * An edge-detection filter.
  */
@@ -89,13 +87,10 @@ public class EdgeFilter extends WholeImageFilter {
     }
 
     @Override
-    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        pt = createProgressTracker(height);
-
-        int index = 0;
-        int[] outPixels = new int[width * height];
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        int index = startY * width;
 
-        for (int y = 0; y < height; y++) {
+        for (int y = startY; y < endY; y++) {
             for (int x = 0; x < width; x++) {
                 int r = 0, g = 0, b = 0;
                 int rh = 0, gh = 0, bh = 0;
@@ -139,10 +134,7 @@ public class EdgeFilter extends WholeImageFilter {
                 b = PixelUtils.clamp(b);
                 outPixels[index++] = a | (r << 16) | (g << 8) | b;
             }
-            pt.unitDone();
         }
-        finishProgressTracker();
-        return outPixels;
     }
 
     @Override
@@ -16,8 +16,6 @@ limitations under the License.
 
 package com.jhlabs.image;
 
-import java.awt.Rectangle;
-
 /**
  * A class to emboss an image.
  */
@@ -65,20 +63,18 @@ public class EmbossFilter extends WholeImageFilter {
     }
 
     @Override
-    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        pt = createProgressTracker(height);
-
-        int index = 0;
-        int[] outPixels = new int[width * height];
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        int index = startY * width;
 
         int[] bumpPixels;
         int bumpMapWidth, bumpMapHeight;
 
+        // the bump map of the band and of the two rows below it
         bumpMapWidth = width;
-        bumpMapHeight = height;
+        bumpMapHeight = Math.min(height, endY + 2) - startY;
         bumpPixels = new int[bumpMapWidth * bumpMapHeight];
-        for (int i = 0; i < inPixels.length; i++) {
-            bumpPixels[i] = PixelUtils.brightness(inPixels[i]);
+        for (int i = 0; i < bumpPixels.length; i++) {
+            bumpPixels[i] = PixelUtils.brightness(inPixels[index + i]);
         }
 
         int Nx, Ny, Nz, Lx, Ly, Lz, Nz2, NzLz, NdotL;
@@ -96,7 +92,7 @@ public class EmbossFilter extends WholeImageFilter {
 
         int bumpIndex = 0;
 
-        for (int y = 0; y < height; y++, bumpIndex += bumpMapWidth) {
+        for (int y = startY; y < endY; y++, bumpIndex += bumpMapWidth) {
             int s1 = bumpIndex;
             int s2 = s1 + bumpMapWidth;
             int s3 = s2 + bumpMapWidth;
@@ -131,11 +127,12 @@ public class EmbossFilter extends WholeImageFilter {
                     outPixels[index++] = a | (shade << 16) | (shade << 8) | shade;
                 }
             }
-            pt.unitDone();
         }
-        finishProgressTracker();
+    }
 
-        return outPixels;
+    @Override
+    protected int getHaloRows() {
+        return 2;
     }
 
     @Override
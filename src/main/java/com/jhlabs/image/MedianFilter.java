@@ -16,8 +16,6 @@ limitations under the License.
 
 package com.jhlabs.image;
 
-import java.awt.Rectangle;
-
 /**
  * A filter which performs a 3x3 median operation. Useful for removing dust and noise.
  */
@@ -68,17 +66,14 @@ public class MedianFilter extends WholeImageFilter {
     }
 
     @Override
-    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int index = 0;
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        int index = startY * width;
         int[] argb = new int[9];
         int[] r = new int[9];
         int[] g = new int[9];
         int[] b = new int[9];
-        int[] outPixels = new int[width * height];
-
-        pt = createProgressTracker(height);
 
-        for (int y = 0; y < height; y++) {
+        for (int y = startY; y < endY; y++) {
             for (int x = 0; x < width; x++) {
                 int k = 0;
                 for (int dy = -1; dy <= 1; dy++) {
@@ -105,10 +100,7 @@ public class MedianFilter extends WholeImageFilter {
                 }
                 outPixels[index++] = argb[rgbMedian(r, g, b)];
             }
-            pt.unitDone();
         }
-        finishProgressTracker();
-        return outPixels;
     }
 
     @Override
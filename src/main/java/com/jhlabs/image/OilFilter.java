@@ -16,11 +16,6 @@ limitations under the License.
 
 package com.jhlabs.image;
 
-import pixelitor.ThreadPool;
-
-import java.awt.*;
-import java.util.concurrent.Future;
-
 /**
  * A filter which produces a "oil-painting" effect.
  *
@@ -67,21 +62,18 @@ public class OilFilter extends WholeImageFilter {
     }
 
     @Override
-    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
-
-        pt = createProgressTracker(height);
-        Future<?>[] futures = new Future[height];
-        for (int y = 0; y < height; y++) {
-            int finalY = y;
-            Runnable lineTask = () -> calculateLine(width, height, inPixels, outPixels, finalY);
-            futures[y] = ThreadPool.submit(lineTask);
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        for (int y = startY; y < endY; y++) {
+            if (pt.isCancelled()) {
+                return;
+            }
+            calculateLine(width, height, inPixels, outPixels, y);
         }
+    }
 
-        ThreadPool.waitFor(futures, pt);
-        finishProgressTracker();
-
-        return outPixels;
+    @Override
+    protected int getHaloRows() {
+        return rangeY;
     }
 
     private void calculateLine(int width, int height, int[] inPixels, int[] outPixels, int y) {
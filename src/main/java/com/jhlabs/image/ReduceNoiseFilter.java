@@ -16,8 +16,6 @@ limitations under the License.
 
 package com.jhlabs.image;
 
-import java.awt.Rectangle;
-
 /**
  * A filter which performs reduces noise by looking at each pixel's 8 neighbours, and if it's a minimum or maximum,
  * replacing it by the next minimum or maximum of the neighbours.
@@ -52,16 +50,13 @@ public class ReduceNoiseFilter extends WholeImageFilter {
     }
 
     @Override
-    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int index = 0;
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        int index = startY * width;
         int[] r = new int[9];
         int[] g = new int[9];
         int[] b = new int[9];
-        int[] outPixels = new int[width * height];
-
-        pt = createProgressTracker(height);
 
-        for (int y = 0; y < height; y++) {
+        for (int y = startY; y < endY; y++) {
             for (int x = 0; x < width; x++) {
                 int k = 0;
                 int irgb = inPixels[index];
@@ -98,12 +93,7 @@ public class ReduceNoiseFilter extends WholeImageFilter {
                 outPixels[index] = (inPixels[index] & 0xff000000) | (smooth(r) << 16) | (smooth(g) << 8) | smooth(b);
                 index++;
             }
-            pt.unitDone();
         }
-
-        finishProgressTracker();
-
-        return outPixels;
     }
 
     @Override
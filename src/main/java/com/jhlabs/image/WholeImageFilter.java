@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.jhlabs.image;
 
+import pixelitor.ThreadPool;
+
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -77,7 +79,9 @@ public abstract class WholeImageFilter extends AbstractBufferedImageOp {
     }
 
     /**
-     * Actually filter the pixels.
+     * Actually filter the pixels. By default, the image is split into
+     * horizontal bands, which are filtered in parallel by {@link #filterBand}.
+     * The filters that need the whole image at once override this method.
      *
      * @param width            the image width
      * @param height           the image height
@@ -85,6 +89,49 @@ public abstract class WholeImageFilter extends AbstractBufferedImageOp {
      * @param transformedSpace the output bounds
      * @return the output pixels
      */
-    protected abstract int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace);
-}
+    protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
+        int[] outPixels = new int[width * height];
+
+        pt = createProgressTracker(height);
+        if (isBandParallel()) {
+            // the bands are at least as high as their halos,
+            // so that most of the work is done on the band rows
+            int minBandHeight = 2 * getHaloRows();
+            ThreadPool.processStrips(width, height, minBandHeight, (startY, endY) ->
+                filterBand(width, height, inPixels, outPixels, startY, endY), pt);
+        } else {
+            filterBand(width, height, inPixels, outPixels, 0, height);
+            pt.unitsDone(height);
+        }
+        finishProgressTracker();
+
+        return outPixels;
+    }
+
+    /**
+     * Filters the output rows from startY (inclusive) to endY (exclusive)
+     * of a band. The input rows that are farther than {@link #getHaloRows()}
+     * from the band must not be read. As the bands can run in parallel,
+     * this method can write only the band rows of the output, and the
+     * temporary data must be allocated for each band.
+     */
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't filter bands");
+    }
 
+    /**
+     * The number of input rows above and below its band that a band reads.
+     */
+    protected int getHaloRows() {
+        return 1;
+    }
+
+    /**
+     * Returns whether the bands can be filtered in parallel. The filters
+     * that are inherently sequential return false, and then
+     * {@link #filterBand} is called only once, for the whole image.
+     */
+    protected boolean isBandParallel() {
+        return true;
+    }
+}
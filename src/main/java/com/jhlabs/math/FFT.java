@@ -16,6 +16,10 @@ limitations under the License.
 
 package com.jhlabs.math;
 
+import pixelitor.ThreadPool;
+
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
 public class FFT {
     // Weighting factors
     protected final float[] w1;
@@ -103,14 +107,39 @@ public class FFT {
     }
 
     public void transform2D(float[] real, float[] imag, int cols, int rows, boolean forward) {
+        transform2D(real, imag, cols, rows, forward, false);
+    }
+
+    /**
+     * If parallel is true, the rows and then the columns
+     * are transformed in parallel strips.
+     */
+    public void transform2D(float[] real, float[] imag, int cols, int rows, boolean forward, boolean parallel) {
         int log2cols = log2(cols);
         int log2rows = log2(rows);
-        int n = Math.max(rows, cols);
-        float[] rtemp = new float[n];
-        float[] itemp = new float[n];
 
         // FFT the rows
-        for (int y = 0; y < rows; y++) {
+        if (parallel) {
+            ThreadPool.processStrips(cols, rows, (startY, endY) ->
+                transformRows(real, imag, cols, log2cols, startY, endY, forward), NULL_TRACKER);
+        } else {
+            transformRows(real, imag, cols, log2cols, 0, rows, forward);
+        }
+
+        // FFT the columns
+        if (parallel) {
+            ThreadPool.processStrips(rows, cols, (startX, endX) ->
+                transformColumns(real, imag, cols, rows, log2rows, startX, endX, forward), NULL_TRACKER);
+        } else {
+            transformColumns(real, imag, cols, rows, log2rows, 0, cols, forward);
+        }
+    }
+
+    private void transformRows(float[] real, float[] imag, int cols, int log2cols,
+                               int startY, int endY, boolean forward) {
+        float[] rtemp = new float[cols];
+        float[] itemp = new float[cols];
+        for (int y = startY; y < endY; y++) {
             int offset = y * cols;
             System.arraycopy(real, offset, rtemp, 0, cols);
             System.arraycopy(imag, offset, itemp, 0, cols);
@@ -118,9 +147,13 @@ public class FFT {
             System.arraycopy(rtemp, 0, real, offset, cols);
             System.arraycopy(itemp, 0, imag, offset, cols);
         }
+    }
 
-        // FFT the columns
-        for (int x = 0; x < cols; x++) {
+    private void transformColumns(float[] real, float[] imag, int cols, int rows, int log2rows,
+                                  int startX, int endX, boolean forward) {
+        float[] rtemp = new float[rows];
+        float[] itemp = new float[rows];
+        for (int x = startX; x < endX; x++) {
             int index = x;
             for (int y = 0; y < rows; y++) {
                 rtemp[y] = real[index];
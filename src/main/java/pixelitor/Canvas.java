@@ -20,6 +20,7 @@ package pixelitor;
 import pixelitor.gui.View;
 import pixelitor.tools.Symmetry;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.Messages;
 
 import java.awt.Dimension;
 import java.awt.Rectangle;
@@ -30,13 +31,20 @@ import java.awt.image.BufferedImage;
 import java.io.Serial;
 import java.io.Serializable;
 
+import static java.lang.String.format;
+
 /**
  * The canvas represents the size of the composition.
  * A layer can be bigger than the canvas if it is partially hidden.
  */
 public class Canvas implements Serializable {
-    public static final int MAX_WIDTH = 9_999;
-    public static final int MAX_HEIGHT = 9_999;
+    // large images are stored in tiles, see TiledImage
+    public static final int MAX_WIDTH = 99_999;
+    public static final int MAX_HEIGHT = 99_999;
+
+    // the BufferedImage views of the layer images (including
+    // the views of the tiled images) index their pixels with ints
+    public static final long MAX_PIXELS = Integer.MAX_VALUE;
 
     // some non-transient field names are inconsistent
     // with their getters, but they can't be renamed without breaking
@@ -53,6 +61,32 @@ public class Canvas implements Serializable {
     @Serial
     private static final long serialVersionUID = -1459254568616232274L;
 
+    /**
+     * Returns true if a canvas with the given size
+     * would have more pixels than supported.
+     */
+    public static boolean isTooLarge(long width, long height) {
+        return width * height > MAX_PIXELS;
+    }
+
+    public static String createTooLargeMessage(long width, long height) {
+        return format("Pixelitor doesn't support images with more than %d pixels." +
+                "<br>%dx%d would be %d pixels.",
+            MAX_PIXELS, width, height, width * height);
+    }
+
+    /**
+     * Shows an error and returns false if a canvas
+     * with the given size would have too many pixels.
+     */
+    public static boolean checkSize(long width, long height) {
+        if (isTooLarge(width, height)) {
+            Messages.showError("Image Too Large", createTooLargeMessage(width, height));
+            return false;
+        }
+        return true;
+    }
+
     public Canvas(int imWidth, int imHeight) {
         width = imWidth;
         height = imHeight;
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor;
+
+import pixelitor.utils.TiledImage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Downsampled versions (2x, 4x, 8x, ...) of a composite image,
+ * so that the zoomed-out views don't have to scale down the full
+ * resolution image on every repaint. The levels are created lazily,
+ * and after a partial change of the composite image only the
+ * corresponding regions are recalculated.
+ */
+class CompositePyramid {
+    private static final int MAX_LEVEL = 6;
+
+    // levels[k] is downsampled by 2^k, levels[0] is not used,
+    // because it's the composite image itself
+    private final BufferedImage[] levels = new BufferedImage[MAX_LEVEL + 1];
+
+    // the regions (in composite image coordinates) that
+    // have to be recalculated in the levels before using them
+    private final Rectangle[] dirty = new Rectangle[MAX_LEVEL + 1];
+
+    // the number of levels which are calculated (besides the dirty regions)
+    private int validLevels = 0;
+
+    /**
+     * Returns the level that should be used for painting
+     * the composite image with the given scaling.
+     * The returned level is never smaller than the painted image.
+     */
+    static int levelForScaling(double scaling, int width, int height) {
+        int level = 0;
+        double factor = 2;
+        while (level < MAX_LEVEL && scaling * factor <= 1.0
+            && width / factor >= 1 && height / factor >= 1) {
+            level++;
+            factor *= 2;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the given level for the given composite image.
+     */
+    BufferedImage getLevel(BufferedImage composite, int level) {
+        assert level >= 1 && level <= MAX_LEVEL;
+
+        for (int k = 1; k <= level; k++) {
+            BufferedImage src = k == 1 ? composite : levels[k - 1];
+            if (k > validLevels) {
+                levels[k] = createLevelImage(src, levels[k]);
+                downsample(src, levels[k], new Rectangle(0, 0,
+                    levels[k].getWidth(), levels[k].getHeight()));
+                dirty[k] = null;
+                validLevels = k;
+            } else if (dirty[k] != null) {
+                downsample(src, levels[k], scaleDown(dirty[k], k));
+                dirty[k] = null;
+            }
+        }
+        return levels[level];
+    }
+
+    /**
+     * Signals that the composite image changed inside the given region.
+     */
+    void regionChanged(Rectangle region) {
+        for (int k = 1; k <= validLevels; k++) {
+            if (dirty[k] == null) {
+                dirty[k] = new Rectangle(region);
+            } else {
+                dirty[k].add(region);
+            }
+        }
+    }
+
+    /**
+     * Signals that the whole composite image changed. The level images
+     * are kept for reuse, if the composite size doesn't change.
+     */
+    void invalidate() {
+        validLevels = 0;
+    }
+
+    private static BufferedImage createLevelImage(BufferedImage src, BufferedImage old) {
+        int width = (src.getWidth() + 1) / 2;
+        int height = (src.getHeight() + 1) / 2;
+        if (old != null && old.getWidth() == width && old.getHeight() == height) {
+            return old;
+        }
+        return TiledImage.createPremultipliedImage(width, height);
+    }
+
+    /**
+     * Returns the region of the given level (clipped to its size)
+     * which depends on the given region of the composite image.
+     */
+    private Rectangle scaleDown(Rectangle region, int level) {
+        int x0 = region.x >> level;
+        int y0 = region.y >> level;
+        int x1 = (region.x + region.width + (1 << level) - 1) >> level;
+        int y1 = (region.y + region.height + (1 << level) - 1) >> level;
+        Rectangle scaled = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        return scaled.intersection(new Rectangle(0, 0,
+            levels[level].getWidth(), levels[level].getHeight()));
+    }
+
+    /**
+     * Calculates the given region of the destination by averaging
+     * 2x2 blocks of the source. The result is premultiplied.
+     */
+    private static void downsample(BufferedImage src, BufferedImage dest, Rectangle region) {
+        if (region.isEmpty()) {
+            return;
+        }
+        Raster srcRaster = src.getRaster();
+        WritableRaster destRaster = dest.getRaster();
+        boolean srcPremultiplied = src.isAlphaPremultiplied();
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+
+        int srcX = 2 * region.x;
+        int srcRowWidth = Math.min(2 * region.width, srcWidth - srcX);
+        int[] row1 = new int[srcRowWidth];
+        int[] row2 = new int[srcRowWidth];
+        int[] destRow = new int[region.width];
+
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int srcY1 = 2 * y;
+            int srcY2 = Math.min(srcY1 + 1, srcHeight - 1);
+            readRow(srcRaster, srcX, srcY1, row1, srcPremultiplied);
+            readRow(srcRaster, srcX, srcY2, row2, srcPremultiplied);
+
+            for (int i = 0; i < region.width; i++) {
+                int i1 = 2 * i;
+                int i2 = Math.min(i1 + 1, srcRowWidth - 1);
+                destRow[i] = average(row1[i1], row1[i2], row2[i1], row2[i2]);
+            }
+            destRaster.setDataElements(region.x, y, region.width, 1, destRow);
+        }
+    }
+
+    private static void readRow(Raster raster, int x, int y,
+                                int[] row, boolean premultiplied) {
+        raster.getDataElements(x, y, row.length, 1, row);
+        if (!premultiplied) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = premultiply(row[i]);
+            }
+        }
+    }
+
+    private static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        int r = ((argb >> 16) & 0xFF) * a / 255;
+        int g = ((argb >> 8) & 0xFF) * a / 255;
+        int b = (argb & 0xFF) * a / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static int average(int p1, int p2, int p3, int p4) {
+        int a = ((p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + (p4 >>> 24) + 2) >> 2;
+        int r = (((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF)
+            + ((p3 >> 16) & 0xFF) + ((p4 >> 16) & 0xFF) + 2) >> 2;
+        int g = (((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF)
+            + ((p3 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF) + 2) >> 2;
+        int b = ((p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + (p4 & 0xFF) + 2) >> 2;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}
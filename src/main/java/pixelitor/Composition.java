@@ -26,9 +26,11 @@ import pixelitor.gui.utils.ImagePreviewPanel;
 import pixelitor.guides.Guides;
 import pixelitor.guides.GuidesChangeEdit;
 import pixelitor.history.*;
+import pixelitor.io.AutoSave;
 import pixelitor.io.FileFormat;
 import pixelitor.io.IOTasks;
 import pixelitor.io.SaveSettings;
+import pixelitor.io.SubsampledSource;
 import pixelitor.layers.*;
 import pixelitor.menus.file.RecentFilesMenu;
 import pixelitor.selection.Selection;
@@ -43,6 +45,7 @@ import pixelitor.tools.util.PRectangle;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
 import pixelitor.utils.Shapes;
+import pixelitor.utils.TiledImage;
 import pixelitor.utils.VisibleForTesting;
 
 import javax.swing.*;
@@ -59,7 +62,6 @@ import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
-import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
 import static java.lang.String.format;
 import static pixelitor.Composition.LayerAdder.Position.*;
 import static pixelitor.Composition.UpdateActions.FULL;
@@ -102,6 +104,46 @@ public class Composition implements Serializable {
 
     private transient BufferedImage compositeImage;
 
+    // the area of the composite image that must be recalculated
+    // from the layers before the next use, or null if it's up to date
+    private transient Rectangle compositeDirtyRegion;
+
+    // whether the composite image was created by blending the
+    // layers, and therefore can be partially recalculated
+    private transient boolean compositeOwned;
+
+    // whether the composite image was returned by getCompositeImage(),
+    // in which case it can't be modified in place anymore
+    private transient boolean compositeShared;
+
+    // The flattened visible layers below and above the active layer,
+    // which don't change while the active layer is edited.
+    // They are null if not cached (also when there is not much to flatten).
+    private transient BufferedImage belowActiveImage;
+    private transient BufferedImage aboveActiveImage;
+
+    // the active layer and layer count for which the flattened images were
+    // calculated, or null if they have to be recalculated before the next use
+    private transient Layer stacksActiveLayer;
+    private transient int stacksNumLayers;
+
+    // whether the composite image was calculated using the flattened
+    // layers above the active layer, which can introduce small rounding errors
+    private transient boolean compositeApproximate;
+
+    // the downsampled versions of the composite image used for zoomed-out painting
+    private transient CompositePyramid pyramid = new CompositePyramid();
+
+    // the downscaled composite stored in a pxc file, which is painted
+    // while the layer pixels are loaded in the background
+    private transient BufferedImage loadingPreview;
+
+    // counts the edits, undos and redos
+    private transient int numChanges;
+
+    // not null if this was opened as a subsampled version of an image file
+    private transient SubsampledSource subsampledSource;
+
     private transient View view;
 
     private transient Selection selection;
@@ -192,6 +234,8 @@ public class Composition implements Serializable {
             compCopy.file = file;
             compCopy.name = name;
             compCopy.view = view;
+            // the edits of the replacing comp are recorded for the same preview
+            compCopy.subsampledSource = subsampledSource;
             // the new guides are set in the action that needed the undo
         } else { // duplicate
             compCopy.dirty = true;
@@ -219,6 +263,11 @@ public class Composition implements Serializable {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         // init transient variables
         compositeImage = null; // will be set when needed
+        compositeDirtyRegion = null;
+        pyramid = new CompositePyramid();
+        loadingPreview = null;
+        numChanges = 0;
+        stacksActiveLayer = null;
         file = null; // will be set later
         debugName = null; // will be set later
         dirty = false;
@@ -275,12 +324,24 @@ public class Composition implements Serializable {
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (dirty) {
+            numChanges++;
+            // the edits must be visible even if the loading isn't finished
+            loadingPreview = null;
+        }
     }
 
     public boolean isDirty() {
         return dirty;
     }
 
+    /**
+     * Returns the number of times this composition was marked as dirty.
+     */
+    public int getNumChanges() {
+        return numChanges;
+    }
+
     public String getName() {
         return name;
     }
@@ -463,6 +524,7 @@ public class Composition implements Serializable {
         }
         g.dispose();
 
+        bellowLayer.invalidateContentRect();
         bellowLayer.updateIconImage();
 
         deleteLayer(layer, false);
@@ -519,6 +581,7 @@ public class Composition implements Serializable {
         int layerIndex = layerList.indexOf(before);
         assert layerIndex != -1;
         layerList.set(layerIndex, after);
+        invalidateActiveStacks();
 
         if (wasActive) {
             activeLayer = after;
@@ -539,6 +602,7 @@ public class Composition implements Serializable {
 
         Layer oldLayer = activeLayer;
         activeLayer = newActiveLayer;
+        invalidateActiveStacks();
 
         if (activeLayer.hasUI()) {
             activeLayer.activateUI();
@@ -826,6 +890,18 @@ public class Composition implements Serializable {
     }
 
     public BufferedImage calculateCompositeImage() {
+        BufferedImage singleLayerImage = getSingleLayerComposite();
+        if (singleLayerImage != null) {
+            return singleLayerImage;
+        }
+        return calculateBlendedComposite(false);
+    }
+
+    /**
+     * Returns the composite image without blending if there
+     * is only one layer, or null if this shortcut is not possible.
+     */
+    private BufferedImage getSingleLayerComposite() {
         if (layerList.size() == 1) { // shortcut
             Layer firstLayer = layerList.get(0);
             if (firstLayer instanceof ImageLayer) {
@@ -835,15 +911,75 @@ public class Composition implements Serializable {
                 }
             }
         }
+        return null;
+    }
 
+    private BufferedImage calculateBlendedComposite(boolean allowApproximate) {
 //        BufferedImage imageSoFar = ImageUtils.createCompatibleImage(getCanvasWidth(), getCanvasHeight());
 
-        var imageSoFar = new BufferedImage(
-            canvas.getWidth(), canvas.getHeight(), TYPE_INT_ARGB_PRE);
-        Graphics2D g = imageSoFar.createGraphics();
+        var imageSoFar = TiledImage.createPremultipliedImage(
+            canvas.getWidth(), canvas.getHeight());
+        return blendLayers(imageSoFar, null, allowApproximate);
+    }
 
+    /**
+     * Blends the visible layers into the given empty image.
+     * If the clip is not null, only the pixels inside it are calculated.
+     * If approximate results are allowed, then the cached
+     * flattened layers above the active layer can also be used.
+     */
+    private BufferedImage blendLayers(BufferedImage imageSoFar, Rectangle clip,
+                                      boolean allowApproximate) {
+        if (!activeStacksAreValid()) {
+            return blendLayers(imageSoFar, clip, 0, layerList.size(), true);
+        }
+
+        // the cached flattened images replace the layers below and above
+        int activeIndex = layerList.indexOf(activeLayer);
+        int from = 0;
+        int to = layerList.size();
         boolean firstVisibleLayer = true;
-        for (Layer layer : layerList) {
+        if (belowActiveImage != null) {
+            drawFlattened(belowActiveImage, imageSoFar, clip);
+            from = activeIndex;
+            firstVisibleLayer = false;
+        }
+        boolean useAbove = allowApproximate && aboveActiveImage != null;
+        if (useAbove) {
+            to = activeIndex + 1;
+        }
+        imageSoFar = blendLayers(imageSoFar, clip, from, to, firstVisibleLayer);
+        if (useAbove) {
+            drawFlattened(aboveActiveImage, imageSoFar, clip);
+            compositeApproximate = true;
+        }
+        return imageSoFar;
+    }
+
+    private static void drawFlattened(BufferedImage flattened,
+                                      BufferedImage imageSoFar,
+                                      Rectangle clip) {
+        Graphics2D g = imageSoFar.createGraphics();
+        if (clip != null) {
+            g.setClip(clip);
+        }
+        g.drawImage(flattened, 0, 0, null);
+        g.dispose();
+    }
+
+    /**
+     * Blends the visible layers between the given indexes
+     * (from inclusive, to exclusive) into the given image.
+     */
+    private BufferedImage blendLayers(BufferedImage imageSoFar, Rectangle clip,
+                                      int from, int to, boolean firstVisibleLayer) {
+        Graphics2D g = imageSoFar.createGraphics();
+        if (clip != null) {
+            g.setClip(clip);
+        }
+
+        for (int i = from; i < to; i++) {
+            Layer layer = layerList.get(i);
             if (layer.isVisible()) {
                 BufferedImage result = layer.applyLayer(g, imageSoFar, firstVisibleLayer);
                 if (result != null) { // adjustment layer or watermarking text layer
@@ -852,6 +988,9 @@ public class Composition implements Serializable {
                         g.dispose();
                     }
                     g = imageSoFar.createGraphics();
+                    if (clip != null) {
+                        g.setClip(clip);
+                    }
                 }
                 firstVisibleLayer = false;
             }
@@ -867,7 +1006,18 @@ public class Composition implements Serializable {
     }
 
     public void repaintRegion(PPoint start, PPoint end, double thickness) {
-        invalidateCompositeCache();
+        // the thickness is in image space, and one more pixel
+        // is added for the antialiased edges
+        double margin = thickness + 1;
+        double minX = Math.min(start.getImX(), end.getImX()) - margin;
+        double minY = Math.min(start.getImY(), end.getImY()) - margin;
+        double maxX = Math.max(start.getImX(), end.getImX()) + margin;
+        double maxY = Math.max(start.getImY(), end.getImY()) + margin;
+        Rectangle region = new Rectangle2D.Double(
+            minX, minY, maxX - minX, maxY - minY).getBounds();
+        activeContentRegionChanged(region);
+        invalidateCompositeRegion(region);
+
         if (view != null) { // during reload image it can be null
             view.repaintRegion(start, end, thickness);
             view.repaintNavigator(false);
@@ -875,7 +1025,11 @@ public class Composition implements Serializable {
     }
 
     public void repaintRegion(PRectangle area) {
-        invalidateCompositeCache();
+        Rectangle region = area.getIm().getBounds();
+        region.grow(1, 1);
+        activeContentRegionChanged(region);
+        invalidateCompositeRegion(region);
+
         if (view != null) { // during reload image it can be null
             view.repaintRegion(area);
             view.repaintNavigator(false);
@@ -1151,20 +1305,355 @@ public class Composition implements Serializable {
     }
 
     /**
-     * Returns the (canvas-sized) composite image.
+     * Returns the (canvas-sized) composite image. Like every method
+     * using the composite cache, this must be called on the EDT, but the
+     * cache never modifies the returned image later (it's copied on write),
+     * so it can be read on other threads, for example while saving.
      */
     public BufferedImage getCompositeImage() {
+        BufferedImage img = getCompositeImageForPainting();
+        if (compositeApproximate) {
+            // the image used for painting is not exact enough for other uses
+            invalidateCompositeCache();
+            compositeImage = calculateBlendedComposite(false);
+            compositeOwned = true;
+            img = compositeImage;
+        }
+
+        // the caller might keep a reference to it
+        compositeShared = true;
+        return img;
+    }
+
+    /**
+     * Returns true if the composite image can be rendered
+     * in independent horizontal strips by {@link #renderCompositeStrip}.
+     */
+    public boolean canRenderCompositeInStrips() {
+        for (Layer layer : layerList) {
+            // an adjustment layer needs to transform the whole image
+            if (layer.isVisible() && layer.isAdjustment()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders a horizontal strip of the exact composite image into the given
+     * empty, canvas-wide premultiplied image. The first row of the strip
+     * image corresponds to the startY row of the canvas.
+     * Unlike {@link #getCompositeImage()}, this doesn't need a canvas-sized image.
+     */
+    public void renderCompositeStrip(BufferedImage strip, int startY) {
+        assert canRenderCompositeInStrips();
+
+        Graphics2D g = strip.createGraphics();
+        g.translate(0, -startY);
+        g.clipRect(0, startY, strip.getWidth(), strip.getHeight());
+
+        boolean firstVisibleLayer = true;
+        for (Layer layer : layerList) {
+            if (layer.isVisible()) {
+                layer.applyLayer(g, strip, firstVisibleLayer);
+                firstVisibleLayer = false;
+            }
+        }
+        g.dispose();
+    }
+
+    /**
+     * Returns an independent copy of the visible layers, which can render
+     * the composite in strips on another thread while this composition
+     * is edited on the EDT, or null if a layer can't be copied cheaply.
+     * The tiles of the tiled images are shared with the copy (copy-on-write).
+     */
+    public Composition createStripRenderingSnapshot() {
+        assert calledOnEDT() : threadInfo();
+        assert canRenderCompositeInStrips();
+
+        var snapshot = new Composition(new Canvas(canvas), mode);
+        for (Layer layer : layerList) {
+            if (!layer.isVisible()) {
+                continue;
+            }
+            Layer layerSnapshot;
+            if (layer instanceof ImageLayer
+                && TiledImage.isTiled(((ImageLayer) layer).getImage())) {
+                layerSnapshot = ((ImageLayer) layer).createTiledSnapshot();
+            } else if (layer instanceof TextLayer) {
+                layerSnapshot = layer.duplicate(true);
+            } else {
+                // copying the pixels would cost as much as the composite image
+                return null;
+            }
+            layerSnapshot.setComp(snapshot);
+            snapshot.layerList.add(layerSnapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Paints the composite image into a graphics in image space.
+     * When zoomed out, a downsampled version of it is painted.
+     */
+    public void paintCompositeImage(Graphics2D g) {
+        if (loadingPreview != null) {
+            g.drawImage(loadingPreview, 0, 0,
+                getCanvasWidth(), getCanvasHeight(), null);
+            return;
+        }
+
+        BufferedImage img = getCompositeImageForPainting();
+
+        // the device scaling (HiDPI) is also included in this transform
+        double scaling = g.getTransform().getScaleX();
+        int level = CompositePyramid.levelForScaling(scaling,
+            img.getWidth(), img.getHeight());
+        if (level == 0) {
+            g.drawImage(img, 0, 0, null);
+            return;
+        }
+
+        BufferedImage levelImg = pyramid.getLevel(img, level);
+        AffineTransform at = AffineTransform.getScaleInstance(
+            img.getWidth() / (double) levelImg.getWidth(),
+            img.getHeight() / (double) levelImg.getHeight());
+        g.drawImage(levelImg, at, null);
+    }
+
+    /**
+     * Sets a preview that is painted instead of the composite image
+     * until the layer pixels are loaded, or until the first edit.
+     */
+    public void setLoadingPreview(BufferedImage preview) {
+        loadingPreview = preview;
+    }
+
+    public SubsampledSource getSubsampledSource() {
+        return subsampledSource;
+    }
+
+    public void setSubsampledSource(SubsampledSource subsampledSource) {
+        this.subsampledSource = subsampledSource;
+    }
+
+    /**
+     * Called on the EDT when the layer pixels of a lazily loaded file are all available.
+     */
+    public void lazyLoadingFinished() {
+        if (loadingPreview != null) {
+            loadingPreview = null;
+            if (view != null) {
+                view.repaint();
+                view.repaintNavigator(false);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #getCompositeImage()}, but the returned image can be
+     * partially updated by later edits, so the caller must not keep it.
+     */
+    public BufferedImage getCompositeImageForPainting() {
         if (compositeImage == null) {
-            compositeImage = calculateCompositeImage();
+            // the image of a single layer can't be modified
+            compositeImage = getSingleLayerComposite();
+            compositeOwned = compositeImage == null;
+            if (compositeOwned) {
+                compositeImage = calculateBlendedComposite(true);
+            }
+            compositeShared = false;
+        } else if (compositeDirtyRegion != null) {
+            Rectangle region = compositeDirtyRegion;
+            recalcCompositeRegion(region);
+            pyramid.regionChanged(region);
         }
+        compositeDirtyRegion = null;
         return compositeImage;
     }
 
+    /**
+     * Re-blends only the given region of the composite image from the layers.
+     */
+    private void recalcCompositeRegion(Rectangle region) {
+        if (compositeOwned) {
+            updateActiveStacks();
+        }
+        if (!canRecalcCompositePartially()) {
+            BufferedImage oldImage = compositeImage;
+            discardCompositeImage();
+            getCompositeImageForPainting();
+            if (compositeImage != oldImage) {
+                // if the image of a single layer was modified in place,
+                // then the pyramid still has to be updated only in the region
+                pyramid.invalidate();
+            }
+            return;
+        }
+
+        if (compositeShared) { // copy on write
+            compositeImage = ImageUtils.copyImage(compositeImage);
+            compositeShared = false;
+        }
+
+        // the region must be cleared, because the layers
+        // are blended as if they were painted on an empty image
+        Graphics2D g = compositeImage.createGraphics();
+        g.setComposite(AlphaComposite.Clear);
+        g.fill(region);
+        g.dispose();
+
+        blendLayers(compositeImage, region, true);
+    }
+
+    private boolean canRecalcCompositePartially() {
+        if (!compositeOwned) {
+            return false;
+        }
+        if (compositeImage.getWidth() != canvas.getWidth()
+            || compositeImage.getHeight() != canvas.getHeight()) {
+            return false;
+        }
+
+        // the adjustment layers below the active layer are
+        // already applied in the cached flattened image
+        int from = 0;
+        if (activeStacksAreValid() && belowActiveImage != null) {
+            from = layerList.indexOf(activeLayer);
+        }
+        for (int i = from; i < layerList.size(); i++) {
+            Layer layer = layerList.get(i);
+            // an adjustment layer needs to transform the whole image
+            if (layer.isVisible() && layer.isAdjustment()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean activeStacksAreValid() {
+        return stacksActiveLayer != null
+            && stacksActiveLayer == activeLayer
+            && stacksNumLayers == layerList.size();
+    }
+
+    /**
+     * Flattens the layers below and above the active layer, so that
+     * repeated partial recalculations while the active layer is edited
+     * (for example during a brush stroke) need only a few blending steps.
+     */
+    private void updateActiveStacks() {
+        if (activeStacksAreValid()) {
+            return;
+        }
+        invalidateActiveStacks();
+
+        int activeIndex = layerList.indexOf(activeLayer);
+        if (activeIndex == -1) {
+            return;
+        }
+        int numLayers = layerList.size();
+
+        // flattening is only worth it if it replaces more than one layer
+        if (countVisibleLayers(0, activeIndex) > 1) {
+            belowActiveImage = blendLayers(TiledImage.createPremultipliedImage(
+                    canvas.getWidth(), canvas.getHeight()),
+                null, 0, activeIndex, true);
+        }
+        if (countVisibleLayers(activeIndex + 1, numLayers) > 1
+            && canFlattenAsGroup(activeIndex + 1, numLayers)) {
+            aboveActiveImage = blendLayers(TiledImage.createPremultipliedImage(
+                    canvas.getWidth(), canvas.getHeight()),
+                null, activeIndex + 1, numLayers, true);
+        }
+
+        stacksActiveLayer = activeLayer;
+        stacksNumLayers = numLayers;
+    }
+
+    private int countVisibleLayers(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (layerList.get(i).isVisible()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Layers can be blended separately and then painted as one image
+     * over the layers below them only if the normal ("over") blending
+     * mode is used, because only that one is associative.
+     */
+    private boolean canFlattenAsGroup(int from, int to) {
+        for (int i = from; i < to; i++) {
+            Layer layer = layerList.get(i);
+            if (!layer.isVisible()) {
+                continue;
+            }
+            if (layer.isAdjustment()
+                || layer.getBlendingMode() != BlendingMode.NORMAL) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void invalidateActiveStacks() {
+        if (belowActiveImage != null) {
+            belowActiveImage.flush();
+            belowActiveImage = null;
+        }
+        if (aboveActiveImage != null) {
+            aboveActiveImage.flush();
+            aboveActiveImage = null;
+        }
+        stacksActiveLayer = null;
+    }
+
+    /**
+     * The region repaints come from the tools, which edit the active layer,
+     * so its content bounds can be extended without scanning its image.
+     */
+    private void activeContentRegionChanged(Rectangle region) {
+        if (activeLayer instanceof ImageLayer) {
+            ((ImageLayer) activeLayer).contentRegionChanged(region);
+        }
+    }
+
+    /**
+     * Signals that only the given region of the composite
+     * image (in image space) needs to be recalculated.
+     */
+    private void invalidateCompositeRegion(Rectangle region) {
+        if (compositeImage == null) {
+            return; // it will be fully calculated anyway
+        }
+        Rectangle clipped = region.intersection(canvas.getBounds());
+        if (clipped.isEmpty()) {
+            return;
+        }
+        if (compositeDirtyRegion == null) {
+            compositeDirtyRegion = clipped;
+        } else {
+            compositeDirtyRegion.add(clipped);
+        }
+    }
+
     private void invalidateCompositeCache() {
+        discardCompositeImage();
+        pyramid.invalidate();
+    }
+
+    private void discardCompositeImage() {
         if (compositeImage != null) {
             compositeImage.flush();
         }
         compositeImage = null;
+        compositeDirtyRegion = null;
+        compositeApproximate = false;
     }
 
     public void update() {
@@ -1182,6 +1671,9 @@ public class Composition implements Serializable {
     public void update(UpdateActions actions, boolean sizeChanged) {
         invalidateCompositeCache();
 
+        // any layer might have been changed
+        invalidateActiveStacks();
+
         if (actions.repaintNeeded()) {
             if (view != null) {
                 view.repaint();
@@ -1330,6 +1822,7 @@ public class Composition implements Serializable {
             RecentFilesMenu.getInstance().addFile(file);
         }
         ImagePreviewPanel.removeThumbFromCache(file);
+        AutoSave.compSaved(this);
         Messages.showFileSavedMessage(file);
     }
 
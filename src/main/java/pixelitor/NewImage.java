@@ -21,7 +21,7 @@ import pixelitor.colors.FillType;
 import pixelitor.filters.Fill;
 import pixelitor.gui.utils.*;
 import pixelitor.utils.AppPreferences;
-import pixelitor.utils.ImageUtils;
+import pixelitor.utils.TiledImage;
 
 import javax.swing.*;
 import java.awt.Color;
@@ -55,7 +55,7 @@ public final class NewImage {
     }
 
     public static Composition createNewComposition(FillType bg, int width, int height, String title) {
-        BufferedImage newImage = ImageUtils.createSysCompatibleImage(width, height);
+        BufferedImage newImage = TiledImage.createImage(width, height);
         fillImage(newImage, bg);
         return Composition.fromImage(newImage, null, title);
     }
@@ -148,12 +148,8 @@ public final class NewImage {
                 // issue #49: check approximately whether the image
                 // would even fit into the available memory
                 long numPixels = ((long) width) * height;
-                if (numPixels > Integer.MAX_VALUE) {
-                    // theoretical limit, as the pixels ultimately will be stored in an array
-                    return retVal.addError(format(
-                        "Pixelitor doesn't support images with more than %d pixels." +
-                            "<br>%dx%d would be %d pixels.",
-                        Integer.MAX_VALUE, width, height, numPixels));
+                if (Canvas.isTooLarge(width, height)) {
+                    return retVal.addError(Canvas.createTooLargeMessage(width, height));
                 } else if (numPixels > 1_000_000) { // don't check for smaller images
                     Runtime rt = Runtime.getRuntime();
                     long allocatedMemory = rt.totalMemory() - rt.freeMemory();
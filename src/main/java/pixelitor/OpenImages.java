@@ -21,6 +21,7 @@ import pixelitor.gui.*;
 import pixelitor.gui.utils.Dialogs;
 import pixelitor.gui.utils.OpenImageEnabledAction;
 import pixelitor.history.History;
+import pixelitor.io.AutoSave;
 import pixelitor.io.IO;
 import pixelitor.io.IOTasks;
 import pixelitor.layers.*;
@@ -103,6 +104,7 @@ public class OpenImages {
 
     public static void imageClosed(View view) {
         views.remove(view);
+        AutoSave.compClosed(view.getComp());
         if (views.isEmpty()) {
             onAllImagesClosed();
         }
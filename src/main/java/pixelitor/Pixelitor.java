@@ -26,6 +26,7 @@ import pixelitor.gui.PanMethod;
 import pixelitor.gui.PixelitorWindow;
 import pixelitor.gui.utils.Dialogs;
 import pixelitor.gui.utils.Themes;
+import pixelitor.io.AutoSave;
 import pixelitor.io.IO;
 import pixelitor.io.IOTasks;
 import pixelitor.tools.util.DragDisplay;
@@ -130,6 +131,7 @@ public class Pixelitor {
 
         MouseZoomMethod.load();
         PanMethod.load();
+        AutoSave.start();
 
         // The IO-intensive pre-loading of fonts is scheduled
         // to run after all the files have been opened,
@@ -207,10 +209,12 @@ public class Pixelitor {
 
             if (Dialogs.showYesNoWarningDialog(pw, "Unsaved changes", msg)) {
                 pw.setVisible(false);
+                AutoSave.stop();
                 AppPreferences.savePrefsAndExit();
             }
         } else {
             pw.setVisible(false);
+            AutoSave.stop();
             AppPreferences.savePrefsAndExit();
         }
     }
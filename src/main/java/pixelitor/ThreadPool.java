@@ -17,11 +17,12 @@
 
 package pixelitor;
 
-import com.jhlabs.image.AbstractBufferedImageOp;
 import pixelitor.utils.ProgressTracker;
 
-import java.awt.image.BufferedImage;
+import java.io.Serial;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * A thread pool for parallel execution on multiple CPU cores
@@ -29,8 +30,17 @@ import java.util.concurrent.*;
 public class ThreadPool {
     private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
 
-    private static final ExecutorService pool =
-        Executors.newFixedThreadPool(NUM_CORES);
+    // the number of strips per core: more strips give better
+    // load balancing with work stealing, fewer strips less overhead
+    private static final int STRIPS_PER_CORE = 4;
+
+    // strips smaller than this are not worth running as separate tasks
+    private static final int MIN_STRIP_PIXELS = 16_384;
+
+    // how often the calling thread reports the progress of the strips
+    private static final int PROGRESS_INTERVAL_MILLIS = 50;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(NUM_CORES);
 
     private ThreadPool() {
     }
@@ -43,10 +53,9 @@ public class ThreadPool {
     }
 
     /**
-     * Submits a task that returns something, such as
-     * the calculated pixels in a line
+     * Submits a task that returns a result
      */
-    public static <T> Future<T> submit2(Callable<T> task) {
+    public static <T> Future<T> submit(Callable<T> task) {
         return pool.submit(task);
     }
 
@@ -54,11 +63,17 @@ public class ThreadPool {
      * Waits until all the given futures complete their
      * computation, and updates the given
      * {@link ProgressTracker} in the meantime.
+     * If the tracked operation is cancelled, the remaining futures
+     * are cancelled and a {@link CancellationException} is thrown.
      */
     public static void waitFor(Iterable<Future<?>> futures, ProgressTracker pt) {
         assert pt != null;
 
         for (var future : futures) {
+            if (pt.isCancelled()) {
+                futures.forEach(f -> f.cancel(false));
+                throwCancelled(pt);
+            }
             try {
                 future.get();
 
@@ -77,6 +92,12 @@ public class ThreadPool {
         assert pt != null;
 
         for (var future : futures) {
+            if (pt.isCancelled()) {
+                for (var f : futures) {
+                    f.cancel(false);
+                }
+                throwCancelled(pt);
+            }
             try {
                 future.get();
                 pt.unitDone();
@@ -89,27 +110,170 @@ public class ThreadPool {
     }
 
     /**
-     * Similar to waitFor, but works with futures
-     * that return an int array representing a line, and
-     * updates the given destination image with the new pixels.
+     * Calls the given task for each row in [0, height), splitting the
+     * rows into strips that are processed in parallel with work stealing.
+     * Returns only after all the rows were processed.
      */
-    public static void waitFor2(Future<int[]>[] futures, BufferedImage dst, int width, ProgressTracker pt) {
-        assert pt != null;
+    public static void processRows(int width, int height, IntConsumer rowTask, ProgressTracker pt) {
+        processStrips(width, height, (startY, endY) -> {
+            for (int y = startY; y < endY; y++) {
+                if (pt.isCancelled()) {
+                    return;
+                }
+                rowTask.accept(y);
+            }
+        }, pt);
+    }
 
-        try {
-            for (int i = 0; i < futures.length; i++) {
-                var lineFuture = futures[i];
-                int[] linePixels = lineFuture.get();
-                AbstractBufferedImageOp.setRGB(dst, 0, i, width, 1, linePixels);
+    /**
+     * Splits the rows in [0, height) into horizontal strips, and processes
+     * them in parallel with work stealing. The strip height adapts to the
+     * image size and the number of cores. The progress tracker is updated
+     * from the calling thread as the strips finish, because the trackers
+     * are not thread-safe, and some of them must be used only on the EDT.
+     * Returns only after all the strips were processed.
+     * If the tracked operation is cancelled, the remaining strips
+     * are skipped and a {@link CancellationException} is thrown.
+     */
+    public static void processStrips(int width, int height, StripTask task, ProgressTracker pt) {
+        processStrips(width, height, 1, task, pt);
+    }
 
-                pt.unitDone();
+    /**
+     * Same as the above, but the strips are at least minStripHeight rows high
+     * (unless the whole height is smaller), for tasks with a per-strip
+     * overhead that is proportional to the width.
+     */
+    public static void processStrips(int width, int height, int minStripHeight,
+                                     StripTask task, ProgressTracker pt) {
+        assert pt != null;
+        if (height <= 0) {
+            return;
+        }
+
+        // the halving of the StripAction can result in
+        // strips that are a bit higher than half of this
+        int stripHeight = Math.max(2 * minStripHeight - 1, calcStripHeight(width, height));
+        var doneRows = new AtomicInteger();
+        var rootTask = new StripAction(task, 0, height, stripHeight, pt, doneRows);
+        int reportedRows = 0;
+        if (stripHeight >= height) {
+            // too small for parallel execution
+            rootTask.compute();
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            // a nested call from a strip can't block without taking
+            // a worker away, so it reports only at the end, and the
+            // other strips might report to the same tracker
+            rootTask.invoke();
+            synchronized (pt) {
+                reportedRows = reportProgress(doneRows, reportedRows, pt);
+            }
+        } else {
+            pool.execute(rootTask);
+            while (!rootTask.isDone()) {
+                try {
+                    rootTask.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // still running
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    break; // rethrown by the join below
+                }
+                reportedRows = reportProgress(doneRows, reportedRows, pt);
             }
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+            rootTask.join();
+        }
+        reportProgress(doneRows, reportedRows, pt);
+
+        if (pt.isCancelled()) {
+            throwCancelled(pt);
         }
     }
 
+    /**
+     * Reports the rows that were finished since the last
+     * report, and returns the number of reported rows.
+     */
+    private static int reportProgress(AtomicInteger doneRows, int reportedRows, ProgressTracker pt) {
+        int done = doneRows.get();
+        if (done > reportedRows) {
+            pt.unitsDone(done - reportedRows);
+        }
+        return done;
+    }
+
+    private static void throwCancelled(ProgressTracker pt) {
+        // the filter that created the tracker will not get the chance to finish it
+        pt.finished();
+        throw new CancellationException();
+    }
+
+    private static int calcStripHeight(int width, int height) {
+        int stripHeight = height / (NUM_CORES * STRIPS_PER_CORE);
+        int minStripHeight = MIN_STRIP_PIXELS / Math.max(width, 1);
+        return Math.max(1, Math.max(stripHeight, minStripHeight));
+    }
+
+    public static int getNumCores() {
+        return NUM_CORES;
+    }
+
     public static Executor getExecutor() {
         return pool;
     }
+
+    /**
+     * A task processing the rows from startY (inclusive) to endY (exclusive).
+     */
+    @FunctionalInterface
+    public interface StripTask {
+        void process(int startY, int endY);
+    }
+
+    /**
+     * Recursively halves its row range until it
+     * becomes smaller than the strip height.
+     */
+    private static class StripAction extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final StripTask task;
+        private final int startY;
+        private final int endY;
+        private final int stripHeight;
+        private final ProgressTracker pt;
+
+        // the rows of the finished strips, reported by the calling thread
+        private final AtomicInteger doneRows;
+
+        StripAction(StripTask task, int startY, int endY, int stripHeight,
+                    ProgressTracker pt, AtomicInteger doneRows) {
+            this.task = task;
+            this.startY = startY;
+            this.endY = endY;
+            this.stripHeight = stripHeight;
+            this.pt = pt;
+            this.doneRows = doneRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (pt.isCancelled()) {
+                return;
+            }
+            int numRows = endY - startY;
+            if (numRows <= stripHeight) {
+                task.process(startY, endY);
+                doneRows.addAndGet(numRows);
+                return;
+            }
+            int midY = startY + numRows / 2;
+            invokeAll(
+                new StripAction(task, startY, midY, stripHeight, pt, doneRows),
+                new StripAction(task, midY, endY, stripHeight, pt, doneRows));
+        }
+    }
 }
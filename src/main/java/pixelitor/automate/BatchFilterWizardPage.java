@@ -20,6 +20,7 @@ package pixelitor.automate;
 import org.jdesktop.swingx.VerticalLayout;
 import pixelitor.filters.Filter;
 import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.filters.gui.PreviewEngine;
 import pixelitor.filters.util.FilterSearchPanel;
 import pixelitor.filters.util.FilterUtils;
 import pixelitor.gui.utils.OKCancelDialog;
@@ -117,6 +118,7 @@ public enum BatchFilterWizardPage implements WizardPage {
         @Override
         public void onWizardCanceled(Drawable dr) {
             // we get here only if the chosen filter is a filter with GUI
+            PreviewEngine.cancelLatestAndWait();
             dr.onFilterDialogCanceled();
         }
 
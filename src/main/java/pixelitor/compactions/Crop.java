@@ -83,6 +83,10 @@ public class Crop implements CompAction {
             // outside the canvas bounds in the crop tool
             return CompletableFuture.completedFuture(oldComp);
         }
+        if (!Canvas.checkSize(cropRect.width, cropRect.height)) {
+            // a growing crop can make the canvas too large
+            return CompletableFuture.completedFuture(oldComp);
+        }
 
         var canvasTransform = createCanvasTransform(cropRect);
 
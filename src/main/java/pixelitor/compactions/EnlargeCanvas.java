@@ -18,6 +18,7 @@
 package pixelitor.compactions;
 
 import pixelitor.Canvas;
+import pixelitor.Composition;
 import pixelitor.OpenImages;
 import pixelitor.filters.gui.RangeParam;
 import pixelitor.gui.View;
@@ -30,6 +31,7 @@ import pixelitor.layers.ContentLayer;
 import javax.swing.*;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.util.concurrent.CompletableFuture;
 
 import static javax.swing.BoxLayout.Y_AXIS;
 import static pixelitor.gui.utils.SliderSpinner.TextPosition.BORDER;
@@ -81,6 +83,16 @@ public class EnlargeCanvas extends SimpleCompAction {
         return north == 0 && east == 0 && south == 0 && west == 0;
     }
 
+    @Override
+    public CompletableFuture<Composition> process(Composition oldComp) {
+        Canvas canvas = oldComp.getCanvas();
+        if (!Canvas.checkSize((long) canvas.getWidth() + east + west,
+            (long) canvas.getHeight() + north + south)) {
+            return CompletableFuture.completedFuture(oldComp);
+        }
+        return super.process(oldComp);
+    }
+
     @Override
     protected void changeCanvasSize(Canvas newCanvas, View view) {
         newCanvasWidth = newCanvas.getWidth() + east + west;
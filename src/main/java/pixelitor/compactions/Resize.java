@@ -80,6 +80,9 @@ public class Resize implements CompAction {
             canvasTargetWidth = (int) (scale * canvasCurrWidth);
             canvasTargetHeight = (int) (scale * canvasCurrHeight);
         }
+        if (!Canvas.checkSize(canvasTargetWidth, canvasTargetHeight)) {
+            return CompletableFuture.completedFuture(oldComp);
+        }
         var targetSize = new Dimension(canvasTargetWidth, canvasTargetHeight);
 
         // The resize runs outside the EDT so that the progress bar animation
@@ -28,7 +28,6 @@ import pixelitor.utils.StatusBarProgressTracker;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.Random;
-import java.util.concurrent.Future;
 
 import static java.awt.Color.BLACK;
 import static java.awt.Color.WHITE;
@@ -89,13 +88,8 @@ public class Clouds extends ParametrizedFilter {
         int[] color1 = {c1.getAlpha(), c1.getRed(), c1.getGreen(), c1.getBlue()};
         int[] color2 = {c2.getAlpha(), c2.getRed(), c2.getGreen(), c2.getBlue()};
 
-        Future<?>[] futures = new Future[height];
-        for (int y = 0; y < height; y++) {
-            int finalY = y;
-            Runnable lineTask = () -> calculateLine(scale, roughness, width, finalY, destData, color1, color2);
-            futures[y] = ThreadPool.submit(lineTask);
-        }
-        ThreadPool.waitFor(futures, pt);
+        ThreadPool.processRows(width, height,
+            y -> calculateLine(scale, roughness, width, y, destData, color1, color2), pt);
     }
 
     private static void calculateLine(float startingScale, float roughness,
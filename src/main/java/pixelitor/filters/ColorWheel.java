@@ -27,7 +27,6 @@ import pixelitor.utils.StatusBarProgressTracker;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.util.concurrent.Future;
 
 /**
  * Renders a color wheel
@@ -62,14 +61,8 @@ public class ColorWheel extends ParametrizedFilter {
 
         var pt = new StatusBarProgressTracker(NAME, height);
 
-        Future<?>[] futures = new Future[height];
-        for (int y = 0; y < height; y++) {
-            int finalY = y;
-            Runnable lineTask = () -> calculateLine(
-                destData, width, finalY, cx, cy, hueShift, saturation, brightness);
-            futures[y] = ThreadPool.submit(lineTask);
-        }
-        ThreadPool.waitFor(futures, pt);
+        ThreadPool.processRows(width, height, y -> calculateLine(
+            destData, width, y, cx, cy, hueShift, saturation, brightness), pt);
         pt.finished();
 
         return dest;
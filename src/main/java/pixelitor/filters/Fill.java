@@ -19,6 +19,7 @@ package pixelitor.filters;
 
 import pixelitor.colors.FillType;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.TiledImage;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
@@ -46,10 +47,21 @@ public class Fill extends Filter {
      * Fills the BufferedImage with the specified color
      */
     public static void fillImage(BufferedImage img, Color c) {
-        int[] pixels = ImageUtils.getPixelsAsArray(img);
-
         int fillColor = c.getRGB();
 
+        if (TiledImage.isTiled(img)) {
+            // getPixelsAsArray would return a copy
+            TiledImage tiledImage = TiledImage.from(img);
+            int width = tiledImage.getWidth();
+            int[] row = new int[width];
+            Arrays.fill(row, fillColor);
+            for (int y = 0, height = tiledImage.getHeight(); y < height; y++) {
+                tiledImage.setRow(0, y, width, row, 0);
+            }
+            return;
+        }
+
+        int[] pixels = ImageUtils.getPixelsAsArray(img);
         Arrays.fill(pixels, fillColor);
     }
 
@@ -23,9 +23,11 @@ import pixelitor.filters.util.FilterUtils;
 import pixelitor.gui.PixelitorWindow;
 import pixelitor.gui.utils.Dialogs;
 import pixelitor.gui.utils.GUIUtils;
+import pixelitor.io.SubsampledSource;
 import pixelitor.layers.Drawable;
 import pixelitor.layers.Layer;
 import pixelitor.layers.LayerMask;
+import pixelitor.utils.CancellationToken;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
 import pixelitor.utils.test.RandomGUITest;
@@ -34,6 +36,7 @@ import java.awt.Component;
 import java.awt.image.BufferedImage;
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.concurrent.CancellationException;
 
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
 import static pixelitor.FilterContext.FILTER_WITHOUT_DIALOG;
@@ -83,11 +86,31 @@ public abstract class Filter implements Serializable {
     }
 
     public void startOn(Drawable dr, FilterContext context, Component busyCursorParent) {
+        startOn(dr, context, busyCursorParent, CancellationToken.NONE);
+    }
+
+    /**
+     * Runs the filter so that it can be stopped by cancelling the
+     * given token. A cancelled run leaves the drawable unchanged.
+     */
+    public void startOn(Drawable dr, FilterContext context,
+                        Component busyCursorParent, CancellationToken token) {
         long startTime = System.nanoTime();
 
-        Runnable task = () -> runFilter(dr, context);
+        Runnable task = () -> token.runBound(() -> runFilter(dr, context));
         GUIUtils.runWithBusyCursor(busyCursorParent, task);
 
+        if (token.isCancelled()) {
+            return;
+        }
+
+        runFinished(startTime);
+    }
+
+    /**
+     * Called after a successful run that was started at the given time.
+     */
+    public void runFinished(long startTime) {
         long totalTime = (System.nanoTime() - startTime) / 1_000_000;
         Messages.showPerformanceMessage(getName(), totalTime);
 
@@ -105,14 +128,38 @@ public abstract class Filter implements Serializable {
 
             assert dest != null;
 
-            if (context.isPreview()) {
-                dr.changePreviewImage(dest, getName(), context);
-            } else {
-                dr.filterWithoutDialogFinished(dest, context, getName());
+            if (CancellationToken.current().isCancelled()) {
+                // the result is stale
+                return;
             }
-        } catch (OutOfMemoryError e) {
-            Dialogs.showOutOfMemoryDialog(e);
+
+            setResult(dr, dest, context);
+        } catch (CancellationException e) {
+            // the filter was stopped because its result is no longer needed
         } catch (Throwable e) {
+            handleRunError(dr, e);
+        }
+    }
+
+    /**
+     * Sends the calculated image to the drawable.
+     */
+    public void setResult(Drawable dr, BufferedImage dest, FilterContext context) {
+        if (context.isPreview()) {
+            dr.changePreviewImage(dest, getName(), context);
+        } else {
+            dr.filterWithoutDialogFinished(dest, context, getName());
+            SubsampledSource.filterApplied(this, dr);
+        }
+    }
+
+    /**
+     * Reports an error that happened while running this filter on the given drawable.
+     */
+    public void handleRunError(Drawable dr, Throwable e) {
+        if (e instanceof OutOfMemoryError) {
+            Dialogs.showOutOfMemoryDialog((OutOfMemoryError) e);
+        } else {
             Layer layer = (Layer) dr;
             if (layer instanceof LayerMask) {
                 LayerMask mask = (LayerMask) layer;
@@ -168,6 +215,24 @@ public abstract class Filter implements Serializable {
         this.filterAction = filterAction;
     }
 
+    /**
+     * Returns whether {@link #createNewInstance()} can be called.
+     */
+    public boolean canCreateNewInstance() {
+        return filterAction != null;
+    }
+
+    /**
+     * Returns a new instance of this filter with the default settings,
+     * which can run independently of this one.
+     */
+    public Filter createNewInstance() {
+        if (filterAction == null) {
+            throw new UnsupportedOperationException(getName() + " has no action");
+        }
+        return filterAction.createNewFilter();
+    }
+
     public String getName() {
         if (filterAction != null) {
             return filterAction.getName();
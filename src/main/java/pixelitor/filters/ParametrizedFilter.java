@@ -21,9 +21,13 @@ import pixelitor.filters.gui.*;
 import pixelitor.layers.Drawable;
 import pixelitor.utils.ImageUtils;
 
+import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
 
+import static java.awt.RenderingHints.KEY_INTERPOLATION;
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+
 /**
  * A filter that keeps its settings in a ParamSet object
  * The advantage is that subclasses don't need to create their own adjustment GUIs,
@@ -40,6 +44,11 @@ public abstract class ParametrizedFilter extends FilterWithGUI {
     // the area affected by a filter
     private Shape[] affectedAreaShapes;
 
+    // the size of the filtered image relative to the image on which the settings
+    // were chosen, not 1.0 only while calculating a low-resolution preview
+    // or while re-applying the filter at a different resolution
+    private transient double previewScale = 1.0;
+
     protected ParametrizedFilter(boolean addShowOriginal) {
         this.addShowOriginal = addShowOriginal;
     }
@@ -72,6 +81,66 @@ public abstract class ParametrizedFilter extends FilterWithGUI {
 
     public abstract BufferedImage doTransform(BufferedImage src, BufferedImage dest);
 
+    /**
+     * Whether a quick preview can be calculated on a downscaled copy
+     * of the image before the full-resolution preview. The filters
+     * returning true must multiply their pixel distance params
+     * (radius, tile size, etc.) with {@link #getPreviewScale()}.
+     */
+    public boolean supportsProgressivePreview() {
+        return false;
+    }
+
+    /**
+     * Returns the factor by which the pixel distance params must be
+     * multiplied, so that a low-resolution preview looks like the real result.
+     */
+    protected double getPreviewScale() {
+        return previewScale;
+    }
+
+    /**
+     * Runs the filter on the given downscaled version of the source image,
+     * and returns the result scaled back to the size of the source image.
+     */
+    public BufferedImage transformDownscaled(BufferedImage src, BufferedImage smallSrc, double scale) {
+        assert supportsProgressivePreview();
+
+        previewScale = scale;
+        BufferedImage smallDest;
+        try {
+            smallDest = transformImage(smallSrc);
+        } finally {
+            previewScale = 1.0;
+        }
+
+        if (smallDest == smallSrc) {
+            // the filter decided that no change is necessary
+            return src;
+        }
+
+        BufferedImage dest = ImageUtils.createImageWithSameCM(src);
+        Graphics2D g = dest.createGraphics();
+        g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(smallDest, 0, 0, src.getWidth(), src.getHeight(), null);
+        g.dispose();
+        return dest;
+    }
+
+    /**
+     * Runs the filter on an image that is larger (or smaller) than the one
+     * on which the settings were chosen by the given scale. The pixel distance
+     * params are multiplied by the scale, if the filter supports progressive previews.
+     */
+    public BufferedImage transformScaled(BufferedImage src, double scale) {
+        previewScale = scale;
+        try {
+            return transformImage(src);
+        } finally {
+            previewScale = 1.0;
+        }
+    }
+
     private void setParamSet(ParamSet paramSet) {
         this.paramSet = paramSet;
         // switch the affected area functionality here on-off
@@ -19,6 +19,7 @@ package pixelitor.filters;
 
 import pixelitor.filters.gui.FilterGUI;
 import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.filters.gui.PreviewEngine;
 import pixelitor.layers.Drawable;
 
 import javax.swing.*;
@@ -91,6 +92,7 @@ public class RandomFilterGUI extends FilterGUI {
             if (filterSource.getLastFilter() != null) { // there was a filter before
                 // need to clear the preview of the previous filters
                 // so that the image position selectors show the original image
+                PreviewEngine.cancelLatestAndWait();
                 dr.stopPreviewing(); // stop the last one
                 dr.startPreviewing(); // start the new one
             }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters;
+
+import pixelitor.filters.gui.IntChoiceParam;
+import pixelitor.filters.gui.IntChoiceParam.Item;
+import pixelitor.filters.gui.RangeParam;
+import pixelitor.filters.impl.RankFilter;
+import pixelitor.gui.GUIText;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A rank filter (median, minimum, maximum or any percentile)
+ * with a square neighborhood of arbitrary radius
+ */
+public class Rank extends ParametrizedFilter {
+    public static final String NAME = "Rank Filter";
+
+    private static final int TYPE_MEDIAN = 1;
+    private static final int TYPE_MINIMUM = 2;
+    private static final int TYPE_MAXIMUM = 3;
+    private static final int TYPE_PERCENTILE = 4;
+
+    private final IntChoiceParam type = new IntChoiceParam("Type", new Item[]{
+        new Item("Median", TYPE_MEDIAN),
+        new Item("Minimum", TYPE_MINIMUM),
+        new Item("Maximum", TYPE_MAXIMUM),
+        new Item("Percentile", TYPE_PERCENTILE),
+    });
+    private final RangeParam percentile = new RangeParam("Percentile", 0, 50, 100);
+    private final RangeParam radius = new RangeParam(GUIText.RADIUS, 1, 2, 50);
+
+    private RankFilter filter;
+
+    public Rank() {
+        super(true);
+
+        type.setupEnableOtherIf(percentile,
+            selected -> selected.getValue() == TYPE_PERCENTILE);
+
+        setParams(type, percentile, radius);
+
+        helpURL = "https://en.wikipedia.org/wiki/Median_filter";
+    }
+
+    @Override
+    public BufferedImage doTransform(BufferedImage src, BufferedImage dest) {
+        if (filter == null) {
+            filter = new RankFilter(NAME);
+        }
+
+        filter.setRadius((int) Math.round(radius.getValue() * getPreviewScale()));
+        switch (type.getValue()) {
+            case TYPE_MEDIAN -> filter.setPercentile(50);
+            case TYPE_MINIMUM -> filter.setPercentile(0);
+            case TYPE_MAXIMUM -> filter.setPercentile(100);
+            case TYPE_PERCENTILE -> filter.setPercentile(percentile.getValue());
+            default -> throw new IllegalStateException("type = " + type.getValue());
+        }
+
+        return filter.filter(src, dest);
+    }
+
+    @Override
+    public boolean supportsProgressivePreview() {
+        return true;
+    }
+}
@@ -154,10 +154,14 @@ class RenderTweenFramesTask extends SwingWorker<Void, Void> {
         long runCountAfter = Filter.runCount;
         assert runCountAfter == runCountBefore + 1;
 
+        // the composite cache is updated only on the EDT
         var comp = dr.getComp();
-        comp.repaint();
-
-        return comp.getCompositeImage();
+        BufferedImage[] frame = new BufferedImage[1];
+        GUIUtils.invokeAndWait(() -> {
+            comp.repaint();
+            frame[0] = comp.getCompositeImage();
+        });
+        return frame[0];
     }
 
     private void finishOnEDT(AnimationWriter animationWriter, boolean canceled) {
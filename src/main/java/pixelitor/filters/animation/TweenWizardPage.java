@@ -21,6 +21,7 @@ import pixelitor.automate.Wizard;
 import pixelitor.automate.WizardPage;
 import pixelitor.filters.ParametrizedFilter;
 import pixelitor.filters.gui.ParametrizedFilterGUI;
+import pixelitor.filters.gui.PreviewEngine;
 import pixelitor.filters.util.FilterAction;
 import pixelitor.filters.util.FilterSearchPanel;
 import pixelitor.filters.util.FilterUtils;
@@ -96,6 +97,7 @@ public enum TweenWizardPage implements WizardPage {
 
         @Override
         public void onWizardCanceled(Drawable dr) {
+            PreviewEngine.cancelLatestAndWait();
             dr.onFilterDialogCanceled();
         }
 
@@ -127,6 +129,7 @@ public enum TweenWizardPage implements WizardPage {
         public JComponent createPanel(Wizard wizard, Drawable dr) {
             // the following 3 lines are necessary because otherwise the image position
             // selectors will show the result of the initial filter and not the original image
+            PreviewEngine.cancelLatestAndWait();
             dr.stopPreviewing(); // stop the initial one
             dr.startPreviewing(); // start the final one
 
@@ -135,6 +138,7 @@ public enum TweenWizardPage implements WizardPage {
 
         @Override
         public void onWizardCanceled(Drawable dr) {
+            PreviewEngine.cancelLatestAndWait();
             dr.onFilterDialogCanceled();
         }
 
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.convolve;
+
+import com.jhlabs.image.PixelUtils;
+import com.jhlabs.math.FFT;
+import pixelitor.ThreadPool;
+import pixelitor.utils.ProgressTracker;
+import pixelitor.utils.SubtaskProgressTracker;
+
+import java.awt.image.Kernel;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Convolves ARGB pixels with a kernel, either directly or with FFTs,
+ * depending on which one is estimated to be faster for the given
+ * image and kernel size. The FFT path uses the overlap-save method
+ * on power-of-two tiles, which are processed in parallel.
+ *
+ * As in {@link com.jhlabs.image.ConvolveFilter}, the kernel is applied as
+ * out(x, y) = sum(k(col, row) * in(x + col - xOrigin, y + row - yOrigin)),
+ * where the origin is the center of the kernel. The edges are clamped.
+ */
+public class ConvolutionEngine {
+    // the relative costs of a multiplication in the direct convolution,
+    // and of an FFT butterfly per element and per level
+    private static final double DIRECT_COST = 1.0;
+    private static final double FFT_COST = 1.8;
+
+    // the largest tile side that is considered, unless the kernel is even larger
+    private static final int MAX_TILE_SIDE = 1024;
+
+    private static final int MAX_CACHED_KERNELS = 8;
+
+    // the kernels and their FFT transforms, by the parameters they were created from
+    private static final Map<Object, CachedKernel> kernelCache =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedKernel> eldest) {
+                return size() > MAX_CACHED_KERNELS;
+            }
+        };
+
+    private static final BufferPool bufferPool = new BufferPool();
+
+    private ConvolutionEngine() {
+    }
+
+    /**
+     * Convolves the given pixels, and puts the result into outPixels.
+     *
+     * @param kernelKey     the parameters from which the kernel is created,
+     *                      with a proper equals/hashCode (for example a List)
+     * @param kernelFactory creates the kernel if it's not in the cache
+     * @param convolveAlpha if false, the alpha values are kept
+     * @param inputLUT      maps the a, r, g, b channel values (in this order)
+     *                      to the input values of the convolution, or null
+     * @param pt            a tracker that expects height work units
+     */
+    public static void convolve(int[] inPixels, int[] outPixels, int width, int height,
+                                Object kernelKey, Supplier<Kernel> kernelFactory,
+                                boolean convolveAlpha, float[][] inputLUT, ProgressTracker pt) {
+        CachedKernel cachedKernel = getCachedKernel(kernelKey, kernelFactory);
+        Kernel kernel = cachedKernel.kernel;
+        int kw = kernel.getWidth();
+        int kh = kernel.getHeight();
+
+        if (inputLUT == null) {
+            inputLUT = createIdentityLUT();
+        }
+        int numChannels = convolveAlpha ? 4 : 3;
+        // two channels are transformed together as the real and imaginary parts
+        int numPairs = (numChannels + 1) / 2;
+
+        double directCost = DIRECT_COST * width * height * cachedKernel.numNonZero * numChannels;
+        TileLayout tiles = findBestTiles(width, height, kw, kh, numPairs);
+        if (tiles == null || directCost <= tiles.cost) {
+            convolveDirectly(inPixels, outPixels, width, height, cachedKernel,
+                convolveAlpha, inputLUT, pt);
+        } else {
+            convolveWithFFT(inPixels, outPixels, width, height, cachedKernel,
+                tiles, convolveAlpha, inputLUT, pt);
+        }
+    }
+
+    private static CachedKernel getCachedKernel(Object kernelKey, Supplier<Kernel> kernelFactory) {
+        synchronized (kernelCache) {
+            return kernelCache.computeIfAbsent(kernelKey,
+                k -> new CachedKernel(kernelFactory.get()));
+        }
+    }
+
+    private static float[][] createIdentityLUT() {
+        float[][] lut = new float[4][256];
+        for (int c = 0; c < 4; c++) {
+            for (int v = 0; v < 256; v++) {
+                lut[c][v] = v;
+            }
+        }
+        return lut;
+    }
+
+    private static int toChannelValue(float f) {
+        return PixelUtils.clamp((int) (f + 0.5f));
+    }
+
+    private static void convolveDirectly(int[] inPixels, int[] outPixels, int width, int height,
+                                         CachedKernel cachedKernel, boolean convolveAlpha,
+                                         float[][] lut, ProgressTracker pt) {
+        int[] tapX = cachedKernel.tapX;
+        int[] tapY = cachedKernel.tapY;
+        float[] tapWeight = cachedKernel.tapWeight;
+        int numTaps = tapWeight.length;
+        int maxX = width - 1;
+        int maxY = height - 1;
+
+        ThreadPool.processRows(width, height, y -> {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int i = 0; i < numTaps; i++) {
+                    int ix = x + tapX[i];
+                    ix = ix < 0 ? 0 : (ix > maxX ? maxX : ix);
+                    int iy = y + tapY[i];
+                    iy = iy < 0 ? 0 : (iy > maxY ? maxY : iy);
+
+                    int rgb = inPixels[iy * width + ix];
+                    float f = tapWeight[i];
+                    a += f * lut[0][(rgb >>> 24) & 0xFF];
+                    r += f * lut[1][(rgb >>> 16) & 0xFF];
+                    g += f * lut[2][(rgb >>> 8) & 0xFF];
+                    b += f * lut[3][rgb & 0xFF];
+                }
+                int ia = convolveAlpha
+                    ? toChannelValue(a)
+                    : (inPixels[offset + x] >>> 24);
+                outPixels[offset + x] = ia << 24
+                    | toChannelValue(r) << 16
+                    | toChannelValue(g) << 8
+                    | toChannelValue(b);
+            }
+        }, pt);
+    }
+
+    /**
+     * Finds the tile size with the lowest estimated cost.
+     * Returns null if the image is too large for the FFT path.
+     */
+    private static TileLayout findBestTiles(int width, int height, int kw, int kh, int numPairs) {
+        int maxTileWidth = Math.max(MAX_TILE_SIDE, 2 * nextPowerOfTwo(kw));
+        int maxTileHeight = Math.max(MAX_TILE_SIDE, 2 * nextPowerOfTwo(kh));
+
+        TileLayout best = null;
+        for (int tw = nextPowerOfTwo(kw); tw <= maxTileWidth; tw *= 2) {
+            // the number of valid output columns in a tile
+            int validWidth = tw - kw + 1;
+            if (validWidth < 1) {
+                continue;
+            }
+            int tilesX = ceilDiv(width, validWidth);
+            for (int th = nextPowerOfTwo(kh); th <= maxTileHeight; th *= 2) {
+                int validHeight = th - kh + 1;
+                if (validHeight < 1) {
+                    continue;
+                }
+                int tilesY = ceilDiv(height, validHeight);
+
+                // forward and inverse 2D transforms, and the multiplication
+                double tileSize = (double) tw * th;
+                double tileCost = numPairs * (2 * FFT_COST * tileSize * log2(tw * th) + tileSize);
+                double cost = tileCost * tilesX * tilesY;
+                if (best == null || cost < best.cost) {
+                    best = new TileLayout(tw, th, validWidth, validHeight, tilesX, tilesY, cost);
+                }
+                if (validHeight >= height) {
+                    break; // higher tiles would only waste work
+                }
+            }
+            if (validWidth >= width) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    private static void convolveWithFFT(int[] inPixels, int[] outPixels, int width, int height,
+                                        CachedKernel cachedKernel, TileLayout tiles,
+                                        boolean convolveAlpha, float[][] lut, ProgressTracker pt) {
+        int tw = tiles.tileWidth;
+        int th = tiles.tileHeight;
+        FFT fft = new FFT(Math.max(log2(tw), log2(th)));
+        int numTiles = tiles.tilesX * tiles.tilesY;
+
+        // if there are only a few tiles, the transforms themselves run in parallel
+        boolean parallelTransforms = numTiles < ThreadPool.getNumCores();
+
+        float[][] kernelFFT = cachedKernel.getTransform(fft, tw, th);
+        Kernel kernel = cachedKernel.kernel;
+        int originX = kernel.getXOrigin();
+        int originY = kernel.getYOrigin();
+
+        // the strips of the thread pool are made of tiles instead of rows
+        var tilePT = new SubtaskProgressTracker(height / (double) numTiles, pt);
+        ThreadPool.processStrips(tw * th, numTiles, (startTile, endTile) -> {
+            for (int tile = startTile; tile < endTile; tile++) {
+                if (pt.isCancelled()) {
+                    return;
+                }
+                int outX = (tile % tiles.tilesX) * tiles.validWidth;
+                int outY = (tile / tiles.tilesX) * tiles.validHeight;
+                convolveTile(inPixels, outPixels, width, height, fft, kernelFFT,
+                    outX, outY, originX, originY, tiles, convolveAlpha, lut, parallelTransforms);
+            }
+        }, tilePT);
+    }
+
+    private static void convolveTile(int[] inPixels, int[] outPixels, int width, int height,
+                                     FFT fft, float[][] kernelFFT, int outX, int outY,
+                                     int originX, int originY, TileLayout tiles,
+                                     boolean convolveAlpha, float[][] lut, boolean parallel) {
+        int tw = tiles.tileWidth;
+        int th = tiles.tileHeight;
+        int tileSize = tw * th;
+        int inX = outX - originX;
+        int inY = outY - originY;
+        int outWidth = Math.min(tiles.validWidth, width - outX);
+        int outHeight = Math.min(tiles.validHeight, height - outY);
+
+        // the channel index is the shift of the channel value in the ARGB int
+        int[] shifts = convolveAlpha
+            ? new int[]{24, 16, 8, 0}
+            : new int[]{16, 8, 0};
+
+        float[] re = bufferPool.get(tileSize);
+        float[] im = bufferPool.get(tileSize);
+        float[][] results = new float[shifts.length][];
+        try {
+            for (int c = 0; c < shifts.length; c += 2) {
+                boolean hasPair = c + 1 < shifts.length;
+                int shift1 = shifts[c];
+                int shift2 = hasPair ? shifts[c + 1] : 0;
+                float[] lut1 = lut[3 - shift1 / 8];
+                float[] lut2 = lut[3 - shift2 / 8];
+
+                // load the tile with clamped edges
+                for (int y = 0; y < th; y++) {
+                    int iy = Math.min(height - 1, Math.max(0, inY + y));
+                    int rowOffset = iy * width;
+                    int i = y * tw;
+                    for (int x = 0; x < tw; x++, i++) {
+                        int ix = Math.min(width - 1, Math.max(0, inX + x));
+                        int rgb = inPixels[rowOffset + ix];
+                        re[i] = lut1[(rgb >>> shift1) & 0xFF];
+                        im[i] = hasPair ? lut2[(rgb >>> shift2) & 0xFF] : 0;
+                    }
+                }
+
+                fft.transform2D(re, im, tw, th, true, parallel);
+
+                // multiply with the transformed kernel (a convolution in the
+                // image space), which is linear, so the two channels stay separate
+                float[] kre = kernelFFT[0];
+                float[] kim = kernelFFT[1];
+                for (int i = 0; i < tileSize; i++) {
+                    float a = re[i];
+                    float b = im[i];
+                    re[i] = a * kre[i] - b * kim[i];
+                    im[i] = a * kim[i] + b * kre[i];
+                }
+
+                fft.transform2D(re, im, tw, th, false, parallel);
+
+                results[c] = extractValid(re, tw, originX, originY, outWidth, outHeight);
+                if (hasPair) {
+                    results[c + 1] = extractValid(im, tw, originX, originY, outWidth, outHeight);
+                }
+            }
+        } finally {
+            bufferPool.release(re);
+            bufferPool.release(im);
+        }
+
+        for (int y = 0; y < outHeight; y++) {
+            int offset = (outY + y) * width + outX;
+            int i = y * outWidth;
+            for (int x = 0; x < outWidth; x++, i++) {
+                int rgb;
+                if (convolveAlpha) {
+                    rgb = toChannelValue(results[0][i]) << 24
+                        | toChannelValue(results[1][i]) << 16
+                        | toChannelValue(results[2][i]) << 8
+                        | toChannelValue(results[3][i]);
+                } else {
+                    rgb = inPixels[offset + x] & 0xFF_00_00_00
+                        | toChannelValue(results[0][i]) << 16
+                        | toChannelValue(results[1][i]) << 8
+                        | toChannelValue(results[2][i]);
+                }
+                outPixels[offset + x] = rgb;
+            }
+        }
+    }
+
+    // copies the part of the circular convolution that isn't affected by the wrap-around
+    private static float[] extractValid(float[] data, int tw, int originX, int originY,
+                                        int outWidth, int outHeight) {
+        float[] valid = new float[outWidth * outHeight];
+        for (int y = 0; y < outHeight; y++) {
+            System.arraycopy(data, (y + originY) * tw + originX,
+                valid, y * outWidth, outWidth);
+        }
+        return valid;
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p *= 2;
+        }
+        return p;
+    }
+
+    private static int log2(int powerOfTwo) {
+        return Integer.numberOfTrailingZeros(powerOfTwo);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * A kernel with the precalculated data of both paths
+     */
+    private static class CachedKernel {
+        private final Kernel kernel;
+        private final int numNonZero;
+
+        // the non-zero elements, relative to the origin
+        private final int[] tapX;
+        private final int[] tapY;
+        private final float[] tapWeight;
+
+        // the transforms for the different tile sizes, softly referenced,
+        // because a transform for a large tile can use hundreds of megabytes
+        private final Map<Long, SoftReference<float[][]>> transforms = new HashMap<>();
+
+        CachedKernel(Kernel kernel) {
+            this.kernel = kernel;
+
+            float[] data = kernel.getKernelData(null);
+            int kw = kernel.getWidth();
+            int count = 0;
+            for (float f : data) {
+                if (f != 0) {
+                    count++;
+                }
+            }
+            numNonZero = count;
+            tapX = new int[count];
+            tapY = new int[count];
+            tapWeight = new float[count];
+            int tap = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != 0) {
+                    tapX[tap] = i % kw - kernel.getXOrigin();
+                    tapY[tap] = i / kw - kernel.getYOrigin();
+                    tapWeight[tap] = data[i];
+                    tap++;
+                }
+            }
+        }
+
+        /**
+         * Returns the transform of the kernel for the given tile size,
+         * with the origin wrapped to the top-left corner and mirrored,
+         * so that the circular convolution calculates the formula in the class doc.
+         */
+        float[][] getTransform(FFT fft, int tw, int th) {
+            Long key = ((long) tw << 32) | th;
+            float[][] transform = getCachedTransform(key);
+            if (transform != null) {
+                return transform;
+            }
+
+            // calculated without holding the lock, because the transform
+            // itself runs in parallel, and it can take a long time
+            transform = calcTransform(fft, tw, th);
+
+            synchronized (transforms) {
+                // another thread could have calculated it in the meantime
+                float[][] published = getCachedTransform(key);
+                if (published != null) {
+                    return published;
+                }
+                transforms.put(key, new SoftReference<>(transform));
+            }
+            return transform;
+        }
+
+        private float[][] getCachedTransform(Long key) {
+            synchronized (transforms) {
+                SoftReference<float[][]> ref = transforms.get(key);
+                return ref == null ? null : ref.get();
+            }
+        }
+
+        private float[][] calcTransform(FFT fft, int tw, int th) {
+            float[] re = new float[tw * th];
+            float[] im = new float[tw * th];
+            for (int i = 0; i < tapWeight.length; i++) {
+                int x = Math.floorMod(-tapX[i], tw);
+                int y = Math.floorMod(-tapY[i], th);
+                re[y * tw + x] += tapWeight[i];
+            }
+            fft.transform2D(re, im, tw, th, true, true);
+            return new float[][]{re, im};
+        }
+    }
+
+    /**
+     * The tiling of an image for the FFT path
+     */
+    private static class TileLayout {
+        private final int tileWidth;
+        private final int tileHeight;
+        private final int validWidth;
+        private final int validHeight;
+        private final int tilesX;
+        private final int tilesY;
+        private final double cost;
+
+        TileLayout(int tileWidth, int tileHeight, int validWidth, int validHeight,
+                   int tilesX, int tilesY, double cost) {
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.validWidth = validWidth;
+            this.validHeight = validHeight;
+            this.tilesX = tilesX;
+            this.tilesY = tilesY;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Keeps the tile buffers of the recent convolutions,
+     * so that they don't have to be allocated for every tile.
+     */
+    private static class BufferPool {
+        private static final int MAX_BUFFERS = 4 * ThreadPool.getNumCores();
+        private final Deque<float[]> buffers = new ArrayDeque<>();
+
+        synchronized float[] get(int length) {
+            for (Iterator<float[]> it = buffers.iterator(); it.hasNext(); ) {
+                float[] buffer = it.next();
+                if (buffer.length == length) {
+                    it.remove();
+                    return buffer;
+                }
+            }
+            return new float[length];
+        }
+
+        synchronized void release(float[] buffer) {
+            if (buffers.size() >= MAX_BUFFERS) {
+                // drop the least recently released buffer,
+                // which might have a no longer used size
+                buffers.removeLast();
+            }
+            buffers.addFirst(buffer);
+        }
+    }
+}
@@ -17,17 +17,16 @@
 
 package pixelitor.filters.convolve;
 
-import com.jhlabs.image.ConvolveFilter;
 import pixelitor.filters.gui.FilterGUI;
 import pixelitor.filters.gui.FilterWithGUI;
 import pixelitor.filters.util.FilterAction;
 import pixelitor.layers.Drawable;
-import pixelitor.utils.Messages;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.StatusBarProgressTracker;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
-import java.awt.image.ImagingOpException;
 import java.awt.image.Kernel;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -53,14 +52,20 @@ public class Convolve extends FilterWithGUI {
 
     @Override
     public BufferedImage transform(BufferedImage src, BufferedImage dest) {
-        Kernel kernel = new Kernel(size, size, kernelMatrix);
-        BufferedImageOp convolveOp = createConvolveOp(kernel);
-        try {
-            convolveOp.filter(src, dest);
-        } catch (ImagingOpException e) {
-            Messages.showException(e);
-        }
-
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] inPixels = ImageUtils.getPixelsAsArray(src);
+        int[] outPixels = new int[width * height];
+
+        // the matrix can be replaced, but it's never modified
+        float[] matrix = kernelMatrix;
+        var pt = new StatusBarProgressTracker(filterName, height);
+        ConvolutionEngine.convolve(inPixels, outPixels, width, height,
+            Arrays.toString(matrix), () -> new Kernel(size, size, matrix),
+            false, null, pt);
+        pt.finished();
+
+        dest.setRGB(0, 0, width, height, outPixels, 0, width);
         return dest;
     }
 
@@ -74,13 +79,6 @@ public class Convolve extends FilterWithGUI {
         kernelMatrix = getRandomKernelMatrix(size);
     }
 
-    private BufferedImageOp createConvolveOp(Kernel kernel) {
-        var filter = new ConvolveFilter(kernel, filterName);
-        filter.setEdgeAction(ConvolveFilter.CLAMP_EDGES);
-        filter.setPremultiplyAlpha(false);
-        return filter;
-    }
-
     /**
      * Returns a randomized array that is on average close to being normalized
      */
@@ -19,11 +19,10 @@ package pixelitor.filters.gui;
 
 import pixelitor.filters.Filter;
 import pixelitor.layers.Drawable;
+import pixelitor.utils.CancellationToken;
 
 import javax.swing.*;
 
-import static pixelitor.FilterContext.PREVIEWING;
-
 /**
  * The superclass of all filter configuration panels.
  * Instances must not be cached (since they store a Drawable reference).
@@ -32,12 +31,28 @@ public abstract class FilterGUI extends JPanel {
     protected Filter filter;
     private final Drawable dr;
 
+    // the token of the last started preview
+    private CancellationToken previewToken;
+
     protected FilterGUI(Filter filter, Drawable dr) {
         this.filter = filter;
         this.dr = dr;
     }
 
     public void runFilterPreview() {
-        filter.startOn(dr, PREVIEWING, this);
+        cancelRunningPreview();
+        previewToken = new CancellationToken();
+        PreviewEngine.schedule(filter, dr, previewToken);
+    }
+
+    /**
+     * Stops the currently running preview, because
+     * its result would be thrown away anyway.
+     */
+    public void cancelRunningPreview() {
+        if (previewToken != null) {
+            previewToken.cancel();
+            previewToken = null;
+        }
     }
 }
@@ -19,6 +19,7 @@ package pixelitor.filters.gui;
 
 import pixelitor.filters.Filter;
 import pixelitor.gui.utils.DialogBuilder;
+import pixelitor.io.SubsampledSource;
 import pixelitor.layers.Drawable;
 import pixelitor.tools.Tools;
 
@@ -112,8 +113,15 @@ public abstract class FilterWithGUI extends Filter implements DialogMenuOwner {
             .align(FRAME_RIGHT)
             .withScrollbars()
             .enableCopyVisibleShortcut()
-            .okAction(() -> dr.onFilterDialogAccepted(getName()))
-            .cancelAction(dr::onFilterDialogCanceled)
+            .okAction(() -> {
+                PreviewEngine.finishLatest();
+                dr.onFilterDialogAccepted(getName());
+                SubsampledSource.filterApplied(this, dr);
+            })
+            .cancelAction(() -> {
+                PreviewEngine.cancelLatestAndWait();
+                dr.onFilterDialogCanceled();
+            })
             .show();
     }
 }
@@ -123,6 +123,7 @@ public class ParametrizedFilterGUI extends FilterGUI implements ParamAdjustmentL
             // mode should be automatically stopped
             showOriginalCB.deselectWithoutTriggering();
         }
+        // also cancels the stale preview for the old parameter values
         runFilterPreview();
     }
 
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.filters.gui;
+
+import pixelitor.filters.Filter;
+import pixelitor.filters.ParametrizedFilter;
+import pixelitor.layers.Drawable;
+import pixelitor.utils.CancellationToken;
+import pixelitor.utils.ImageUtils;
+
+import javax.swing.Timer;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.awt.RenderingHints.KEY_INTERPOLATION;
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+import static pixelitor.FilterContext.PREVIEWING;
+import static pixelitor.utils.Threads.calledOnEDT;
+import static pixelitor.utils.Threads.threadInfo;
+
+/**
+ * Calculates the filter previews on a background thread,
+ * so that the EDT stays responsive while a slow filter is running.
+ * <p>
+ * Bursts of preview requests are coalesced: if new requests arrive
+ * while a preview is calculated, only the latest one runs afterwards.
+ * The finished preview images are sent to the drawable on the EDT.
+ * <p>
+ * For big images and filters supporting it, the previews are progressive:
+ * first a low-resolution preview is calculated from a downscaled copy
+ * of the image, and the full-resolution preview is calculated only
+ * after the settings haven't changed for a while.
+ */
+public class PreviewEngine {
+    // progressive previews are used above this image size
+    private static final int PROGRESSIVE_MIN_PIXELS = 2_000_000;
+
+    // the approximate size of the low-resolution previews
+    private static final int LOW_RES_PIXELS = 500_000;
+
+    // the full-resolution preview starts after this quiet period
+    private static final int REFINE_DELAY_MILLIS = 300;
+
+    private static final ExecutorService executor =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Filter Preview");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // the request waiting for the preview thread
+    private static final AtomicReference<PreviewJob> pending = new AtomicReference<>();
+
+    // the most recently scheduled request, accessed only on the EDT
+    private static PreviewJob latest;
+
+    // the full-resolution request waiting for the quiet period, accessed only on the EDT
+    private static PreviewJob refineJob;
+
+    private static final Timer refineTimer = createRefineTimer();
+
+    // the jobs are numbered in the order of their creation, so that
+    // an older result never overwrites a newer one, accessed only on the EDT
+    private static long lastJobNumber = 0;
+    private static long lastAppliedJobNumber = 0;
+
+    // the downscaled source image is reused while the settings change
+    // in the same filter dialog (the source can be painted in place
+    // between the dialogs), accessed only on the preview thread
+    private static BufferedImage lowResSrcOrigin;
+    private static BufferedImage lowResSrc;
+
+    private PreviewEngine() {
+        // do not instantiate
+    }
+
+    /**
+     * Schedules the calculation of a preview. The preview is
+     * dropped if the given token is cancelled before it finishes.
+     */
+    public static void schedule(Filter filter, Drawable dr, CancellationToken token) {
+        assert calledOnEDT() : threadInfo();
+
+        refineTimer.stop();
+        refineJob = null;
+
+        // the source image is determined on the EDT,
+        // but it is only read on the preview thread
+        BufferedImage src = dr.getFilterSourceImage();
+        if (isProgressive(filter, src)) {
+            double scale = Math.sqrt(LOW_RES_PIXELS / ((double) src.getWidth() * src.getHeight()));
+            submit(new PreviewJob(filter, dr, src, token, scale));
+
+            refineJob = new PreviewJob(filter, dr, src, token, 1.0);
+            refineTimer.restart();
+        } else {
+            submit(new PreviewJob(filter, dr, src, token, 1.0));
+        }
+    }
+
+    private static boolean isProgressive(Filter filter, BufferedImage src) {
+        return filter instanceof ParametrizedFilter
+            && ((ParametrizedFilter) filter).supportsProgressivePreview()
+            && (long) src.getWidth() * src.getHeight() > PROGRESSIVE_MIN_PIXELS;
+    }
+
+    private static Timer createRefineTimer() {
+        var timer = new Timer(REFINE_DELAY_MILLIS, e -> startRefining());
+        timer.setRepeats(false);
+        return timer;
+    }
+
+    private static void startRefining() {
+        if (refineJob != null) {
+            if (!refineJob.token.isCancelled()) {
+                submit(refineJob);
+            }
+            refineJob = null;
+        }
+    }
+
+    private static void submit(PreviewJob job) {
+        latest = job;
+
+        PreviewJob replaced = pending.getAndSet(job);
+        if (replaced != null) {
+            replaced.skip();
+        }
+        executor.execute(PreviewEngine::runPending);
+    }
+
+    private static void runPending() {
+        PreviewJob job = pending.getAndSet(null);
+        if (job != null) { // otherwise it was already run by an earlier call
+            job.run();
+        }
+    }
+
+    /**
+     * Waits until the latest scheduled preview is calculated, and
+     * sends it to its drawable. Called when the filter dialog is
+     * accepted, because then the current settings must be applied.
+     */
+    public static void finishLatest() {
+        assert calledOnEDT() : threadInfo();
+
+        // the accepted result must have the full resolution
+        refineTimer.stop();
+        startRefining();
+
+        if (latest != null) {
+            latest.waitAndFinish();
+            latest = null;
+        }
+        executor.execute(PreviewEngine::clearLowResSource);
+    }
+
+    private static void cancelLatest() {
+        assert calledOnEDT() : threadInfo();
+
+        refineTimer.stop();
+        refineJob = null;
+
+        if (latest != null) {
+            latest.token.cancel();
+            latest = null;
+        }
+    }
+
+    /**
+     * Cancels the latest scheduled preview, for example because
+     * the filter dialog is closed without accepting the settings.
+     * It also waits until the preview thread stops running the filter,
+     * because the same filter instance can be used right after the
+     * dialog (for example in batch filtering or tweening),
+     * and a filter can't run on two threads at the same time.
+     */
+    public static void cancelLatestAndWait() {
+        cancelLatest();
+
+        // the executor runs the tasks in order on a
+        // single thread, so this runs after the current job
+        try {
+            executor.submit(PreviewEngine::clearLowResSource).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // called on the preview thread
+    private static BufferedImage getLowResSource(BufferedImage src, double scale) {
+        if (src != lowResSrcOrigin) {
+            int width = Math.max(1, (int) (src.getWidth() * scale));
+            int height = Math.max(1, (int) (src.getHeight() * scale));
+            BufferedImage small = ImageUtils.createImageWithSameCM(src, width, height);
+            Graphics2D g = small.createGraphics();
+            g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(src, 0, 0, width, height, null);
+            g.dispose();
+
+            lowResSrcOrigin = src;
+            lowResSrc = small;
+        }
+        return lowResSrc;
+    }
+
+    // called on the preview thread at the end of a filter dialog, so that
+    // the next dialog doesn't reuse it, and the images can be collected
+    private static void clearLowResSource() {
+        lowResSrcOrigin = null;
+        lowResSrc = null;
+    }
+
+    private static class PreviewJob {
+        private final Filter filter;
+        private final Drawable dr;
+        private final BufferedImage src;
+        private final CancellationToken token;
+
+        // smaller than 1.0 for low-resolution previews
+        private final double scale;
+
+        private final long startTime;
+        private final long number;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // written on the preview thread before the
+        // latch is released, read on the EDT afterwards
+        private BufferedImage result;
+        private Throwable error;
+
+        // accessed only on the EDT
+        private boolean finished = false;
+
+        PreviewJob(Filter filter, Drawable dr, BufferedImage src,
+                   CancellationToken token, double scale) {
+            this.filter = filter;
+            this.dr = dr;
+            this.src = src;
+            this.token = token;
+            this.scale = scale;
+            startTime = System.nanoTime();
+            number = ++lastJobNumber;
+        }
+
+        // runs on the preview thread
+        void run() {
+            try {
+                if (!token.isCancelled()) {
+                    token.runBound(() -> result = calcResult());
+                }
+            } catch (CancellationException e) {
+                // the result is no longer needed
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                done.countDown();
+            }
+            EventQueue.invokeLater(this::finish);
+        }
+
+        private BufferedImage calcResult() {
+            if (scale < 1.0) {
+                BufferedImage smallSrc = getLowResSource(src, scale);
+                return ((ParametrizedFilter) filter).transformDownscaled(src, smallSrc, scale);
+            }
+            return filter.transformImage(src);
+        }
+
+        void skip() {
+            done.countDown();
+        }
+
+        void waitAndFinish() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            finish();
+        }
+
+        private void finish() {
+            assert calledOnEDT() : threadInfo();
+
+            if (finished || token.isCancelled() || number < lastAppliedJobNumber) {
+                return;
+            }
+            finished = true;
+            lastAppliedJobNumber = number;
+
+            if (error != null) {
+                filter.handleRunError(dr, error);
+            } else if (result != null) {
+                filter.setResult(dr, result, PREVIEWING);
+                if (scale == 1.0) {
+                    filter.runFinished(startTime);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.impl;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.ProgressTracker;
+import pixelitor.utils.SubtaskProgressTracker;
+
+import java.util.Arrays;
+
+import static pixelitor.filters.impl.MorphologyFilter.*;
+
+/**
+ * Grayscale morphology on single-channel byte planes, with a cost
+ * per pixel that doesn't depend on the radius of the structuring element.
+ *
+ * The running maximums and minimums along the lines are calculated with
+ * the van Herk/Gil-Werman algorithm, which needs three comparisons per
+ * pixel for any window size. The square is decomposed into a horizontal
+ * and a vertical line, the diamond into two diagonal lines and one or
+ * two 3x3 crosses, and the disk is approximated by an octagon, which is
+ * the combination of a square and a diamond.
+ *
+ * The pixels outside the plane are ignored, as if they had the
+ * identity value of the operation (0 for dilation, 255 for erosion).
+ */
+public class MorphologyEngine {
+    private static final int HORIZONTAL = 0;
+    private static final int VERTICAL = 1;
+    private static final int DIAGONAL = 2;
+    private static final int ANTI_DIAGONAL = 3;
+
+    private MorphologyEngine() {
+    }
+
+    /**
+     * Applies the given operation to the plane in place.
+     *
+     * @param op     one of the OP_ constants of {@link MorphologyFilter}
+     * @param kernel one of the KERNEL_ constants of {@link MorphologyFilter}
+     * @param pt     a tracker that expects height work units
+     */
+    public static void morph(byte[] plane, int width, int height,
+                             int op, int kernel, int radius, ProgressTracker pt) {
+        switch (op) {
+            case OP_DILATE -> apply(plane, width, height, kernel, radius, true, pt, 1);
+            case OP_ERODE -> apply(plane, width, height, kernel, radius, false, pt, 1);
+            case OP_OPEN -> {
+                apply(plane, width, height, kernel, radius, false, pt, 2);
+                apply(plane, width, height, kernel, radius, true, pt, 2);
+            }
+            case OP_CLOSE -> {
+                apply(plane, width, height, kernel, radius, true, pt, 2);
+                apply(plane, width, height, kernel, radius, false, pt, 2);
+            }
+            case OP_TOP_HAT -> {
+                // the plane minus its opening: the details
+                // that are smaller than the structuring element
+                byte[] opened = plane.clone();
+                apply(opened, width, height, kernel, radius, false, pt, 2);
+                apply(opened, width, height, kernel, radius, true, pt, 2);
+                for (int i = 0; i < plane.length; i++) {
+                    plane[i] = (byte) ((plane[i] & 0xFF) - (opened[i] & 0xFF));
+                }
+            }
+            case OP_GRADIENT -> {
+                // the dilation minus the erosion: the edges
+                byte[] dilated = plane.clone();
+                apply(dilated, width, height, kernel, radius, true, pt, 2);
+                apply(plane, width, height, kernel, radius, false, pt, 2);
+                for (int i = 0; i < plane.length; i++) {
+                    plane[i] = (byte) ((dilated[i] & 0xFF) - (plane[i] & 0xFF));
+                }
+            }
+            default -> throw new IllegalArgumentException("op = " + op);
+        }
+    }
+
+    /**
+     * Dilates or erodes the plane in place. The given tracker expects
+     * height work units, and this call is one of numCalls similar calls.
+     */
+    private static void apply(byte[] plane, int width, int height, int kernel,
+                              int radius, boolean dilate, ProgressTracker pt, int numCalls) {
+        // the radius of the square and diamond parts
+        int squareRadius = 0;
+        int diamondRadius = 0;
+        switch (kernel) {
+            case KERNEL_SQUARE -> squareRadius = radius;
+            case KERNEL_DIAMOND -> diamondRadius = radius;
+            case KERNEL_DISK -> {
+                // an octagon whose sides are approximately equal
+                squareRadius = (int) Math.round(radius * (Math.sqrt(2) - 1));
+                diamondRadius = radius - squareRadius;
+            }
+            default -> throw new IllegalArgumentException("kernel = " + kernel);
+        }
+
+        // a diamond of radius 2d + 1 is two diagonal lines of
+        // radius d followed by a 3x3 cross, and a diamond of radius
+        // 2d + 2 is the same, but followed by two crosses
+        int diagonalRadius = 0;
+        int numCrosses = 0;
+        if (diamondRadius > 0) {
+            numCrosses = diamondRadius % 2 == 1 ? 1 : 2;
+            diagonalRadius = (diamondRadius - numCrosses) / 2;
+        }
+
+        int numPasses = numCrosses;
+        if (squareRadius > 0) {
+            numPasses += 2;
+        }
+        if (diagonalRadius > 0) {
+            numPasses += 2;
+        }
+        if (numPasses == 0) {
+            pt.unitsDone(height / numCalls);
+            return;
+        }
+        double passUnits = height / (double) (numCalls * numPasses);
+
+        // The paths through a diagonal decomposition can leave the plane
+        // and come back, so in that case the plane is padded on each side
+        // with the identity value, which is never chosen at the end.
+        // The other decompositions always have a path within the plane.
+        int pad = diagonalRadius > 0 ? radius : 0;
+        int w = width + 2 * pad;
+        int h = height + 2 * pad;
+        byte[] p = pad > 0 ? pad(plane, width, height, pad, dilate) : plane;
+
+        if (squareRadius > 0) {
+            linePass(p, w, h, HORIZONTAL, squareRadius, dilate, passUnits, pt);
+            linePass(p, w, h, VERTICAL, squareRadius, dilate, passUnits, pt);
+        }
+        if (diagonalRadius > 0) {
+            linePass(p, w, h, DIAGONAL, diagonalRadius, dilate, passUnits, pt);
+            linePass(p, w, h, ANTI_DIAGONAL, diagonalRadius, dilate, passUnits, pt);
+        }
+        for (int i = 0; i < numCrosses; i++) {
+            crossPass(p, w, h, dilate, passUnits, pt);
+        }
+
+        if (pad > 0) {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(p, (y + pad) * w + pad, plane, y * width, width);
+            }
+        }
+    }
+
+    private static byte[] pad(byte[] plane, int width, int height, int pad, boolean dilate) {
+        int w = width + 2 * pad;
+        byte[] padded = new byte[w * (height + 2 * pad)];
+        if (!dilate) {
+            Arrays.fill(padded, (byte) 0xFF);
+        }
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(plane, y * width, padded, (y + pad) * w + pad, width);
+        }
+        return padded;
+    }
+
+    /**
+     * Replaces every pixel with the maximum or minimum within the given
+     * radius along the lines of the given direction. The lines are
+     * disjoint, so they can be processed in parallel and in place.
+     */
+    private static void linePass(byte[] p, int w, int h, int direction, int radius,
+                                 boolean dilate, double passUnits, ProgressTracker pt) {
+        int numLines = switch (direction) {
+            case HORIZONTAL -> h;
+            case VERTICAL -> w;
+            default -> w + h - 1;
+        };
+        int maxLength = direction == HORIZONTAL ? w : (direction == VERTICAL ? h : Math.min(w, h));
+        var linePT = new SubtaskProgressTracker(passUnits / numLines, pt);
+
+        ThreadPool.processStrips(maxLength, numLines, (startLine, endLine) -> {
+            var runner = new LineRunner(maxLength, radius, dilate);
+            for (int line = startLine; line < endLine; line++) {
+                switch (direction) {
+                    case HORIZONTAL -> runner.run(p, line * w, 1, w);
+                    case VERTICAL -> runner.run(p, line, w, h);
+                    case DIAGONAL -> {
+                        // the lines start in the top row, then in the left column
+                        if (line < w) {
+                            runner.run(p, line, w + 1, Math.min(w - line, h));
+                        } else {
+                            int y = line - w + 1;
+                            runner.run(p, y * w, w + 1, Math.min(w, h - y));
+                        }
+                    }
+                    case ANTI_DIAGONAL -> {
+                        // the lines start in the top row, then in the right column
+                        if (line < w) {
+                            runner.run(p, line, w - 1, Math.min(line + 1, h));
+                        } else {
+                            int y = line - w + 1;
+                            runner.run(p, y * w + w - 1, w - 1, Math.min(w, h - y));
+                        }
+                    }
+                    default -> throw new IllegalStateException("direction = " + direction);
+                }
+            }
+        }, linePT);
+    }
+
+    /**
+     * Replaces every pixel with the maximum or minimum of
+     * itself and its four horizontal and vertical neighbors.
+     */
+    private static void crossPass(byte[] p, int w, int h, boolean dilate,
+                                  double passUnits, ProgressTracker pt) {
+        byte[] src = p.clone();
+        var rowPT = new SubtaskProgressTracker(passUnits / h, pt);
+        ThreadPool.processRows(w, h, y -> {
+            int rowStart = y * w;
+            for (int x = 0; x < w; x++) {
+                int i = rowStart + x;
+                int v = src[i] & 0xFF;
+                if (x > 0) {
+                    v = best(v, src[i - 1] & 0xFF, dilate);
+                }
+                if (x < w - 1) {
+                    v = best(v, src[i + 1] & 0xFF, dilate);
+                }
+                if (y > 0) {
+                    v = best(v, src[i - w] & 0xFF, dilate);
+                }
+                if (y < h - 1) {
+                    v = best(v, src[i + w] & 0xFF, dilate);
+                }
+                p[i] = (byte) v;
+            }
+        }, rowPT);
+    }
+
+    private static int best(int a, int b, boolean dilate) {
+        if (dilate) {
+            return Math.max(a, b);
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * Calculates the running maximums or minimums along
+     * lines with the van Herk/Gil-Werman algorithm.
+     * Each parallel task has its own instance.
+     */
+    private static class LineRunner {
+        private final int radius;
+        private final int windowSize;
+        private final boolean dilate;
+        private final int identity;
+
+        // the line padded with the identity value on both sides
+        private final int[] line;
+
+        // the running results from the start and to the end of each window-sized block
+        private final int[] fromStart;
+        private final int[] toEnd;
+
+        LineRunner(int maxLength, int radius, boolean dilate) {
+            this.radius = radius;
+            this.dilate = dilate;
+            windowSize = 2 * radius + 1;
+            identity = dilate ? 0 : 0xFF;
+
+            int maxPaddedLength = maxLength + 2 * radius;
+            line = new int[maxPaddedLength];
+            fromStart = new int[maxPaddedLength];
+            toEnd = new int[maxPaddedLength];
+        }
+
+        /**
+         * Processes the line of the given length, whose pixels
+         * are at start, start + stride, start + 2 * stride, ...
+         */
+        void run(byte[] p, int start, int stride, int length) {
+            int paddedLength = length + 2 * radius;
+            for (int i = 0; i < radius; i++) {
+                line[i] = identity;
+                line[radius + length + i] = identity;
+            }
+            for (int i = 0, pi = start; i < length; i++, pi += stride) {
+                line[radius + i] = p[pi] & 0xFF;
+            }
+
+            for (int blockStart = 0; blockStart < paddedLength; blockStart += windowSize) {
+                int blockEnd = Math.min(blockStart + windowSize, paddedLength);
+
+                fromStart[blockStart] = line[blockStart];
+                for (int i = blockStart + 1; i < blockEnd; i++) {
+                    fromStart[i] = best(fromStart[i - 1], line[i], dilate);
+                }
+
+                toEnd[blockEnd - 1] = line[blockEnd - 1];
+                for (int i = blockEnd - 2; i >= blockStart; i--) {
+                    toEnd[i] = best(toEnd[i + 1], line[i], dilate);
+                }
+            }
+
+            // the window of the output pixel i is [i, i + windowSize)
+            // in the padded line, and it covers the end of one block
+            // and the start of the next one (or exactly one block)
+            for (int i = 0, pi = start; i < length; i++, pi += stride) {
+                p[pi] = (byte) best(toEnd[i], fromStart[i + windowSize - 1], dilate);
+            }
+        }
+    }
+}
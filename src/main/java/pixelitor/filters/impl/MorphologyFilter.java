@@ -20,20 +20,26 @@ package pixelitor.filters.impl;
 import com.jhlabs.image.WholeImageFilter;
 import pixelitor.filters.Morphology;
 
-import java.awt.*;
+import java.awt.Rectangle;
 
 /**
  * The implementation of the {@link Morphology} filter.
+ * The channels are processed separately by the {@link MorphologyEngine}.
  */
 public class MorphologyFilter extends WholeImageFilter {
-    private int iterations = 1;
+    private int radius = 1;
 
     public static final int OP_ERODE = 1;
     public static final int OP_DILATE = 2;
+    public static final int OP_OPEN = 10;
+    public static final int OP_CLOSE = 11;
+    public static final int OP_TOP_HAT = 12;
+    public static final int OP_GRADIENT = 13;
     private int op;
 
     public static final int KERNEL_DIAMOND = 3;
     public static final int KERNEL_SQUARE = 4;
+    public static final int KERNEL_DISK = 5;
     private int kernel;
 
     public MorphologyFilter(String filterName) {
@@ -48,99 +54,45 @@ public class MorphologyFilter extends WholeImageFilter {
         this.op = op;
     }
 
-    public void setIterations(int iterations) {
-        this.iterations = iterations;
+    public void setRadius(int radius) {
+        this.radius = radius;
     }
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int numPixels = inPixels.length;
-        short[] inA = new short[numPixels];
-        short[] inR = new short[numPixels];
-        short[] inG = new short[numPixels];
-        short[] inB = new short[numPixels];
-
-        pt = createProgressTracker(iterations);
-        int[] outPixels = new int[width * height];
-        for (int it = 0; it < iterations; it++) {
-            if (it > 0) {
-                System.arraycopy(outPixels, 0, inPixels, 0, numPixels);
-            }
+        // the top-hat and the gradient are differences,
+        // so they would make the image transparent
+        boolean morphAlpha = op != OP_TOP_HAT && op != OP_GRADIENT;
+        int firstShift = morphAlpha ? 24 : 16;
+        int numChannels = firstShift / 8 + 1;
+
+        pt = createProgressTracker(numChannels * height);
+
+        int numPixels = width * height;
+        int[] outPixels = new int[numPixels];
+        if (!morphAlpha) {
             for (int i = 0; i < numPixels; i++) {
-                int rgb = inPixels[i];
-                inA[i] = (short) ((rgb >> 24) & 0xff);
-                inR[i] = (short) ((rgb >> 16) & 0xff);
-                inG[i] = (short) ((rgb >> 8) & 0xff);
-                inB[i] = (short) (rgb & 0xff);
+                outPixels[i] = inPixels[i] & 0xFF_00_00_00;
             }
+        }
 
-            int index = 0;
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    short a = 0xff;
-                    short r = 0xff;
-                    short g = 0xff;
-                    short b = 0xff;
-
-                    if (op == OP_DILATE) {
-                        r = 0;
-                        g = 0;
-                        b = 0;
-                    }
-
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int iy = y + dy;
-                        if (0 <= iy && iy < height) {
-                            int xOffset = iy * width;
-                            for (int dx = -1; dx <= 1; dx++) {
-                                if (kernel == KERNEL_DIAMOND) {
-                                    if (dx == dy && dx != 0) {
-                                        continue;
-                                    }
-                                    if (dx == -dy && dx != 0) {
-                                        continue;
-                                    }
-                                }
-
-                                int ix = x + dx;
-                                if (0 <= ix && ix < width) {
-                                    int comparedIndex = xOffset + ix;
-
-                                    if (op == OP_ERODE) {
-                                        a = min(a, inA[comparedIndex]);
-                                        r = min(r, inR[comparedIndex]);
-                                        g = min(g, inG[comparedIndex]);
-                                        b = min(b, inB[comparedIndex]);
-                                    } else {
-                                        a = max(a, inA[comparedIndex]);
-                                        r = max(r, inR[comparedIndex]);
-                                        g = max(g, inG[comparedIndex]);
-                                        b = max(b, inB[comparedIndex]);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    outPixels[index++] = a << 24 | r << 16 | g << 8 | b;
-                }
+        byte[] plane = new byte[numPixels];
+        for (int shift = firstShift; shift >= 0; shift -= 8) {
+            for (int i = 0; i < numPixels; i++) {
+                plane[i] = (byte) (inPixels[i] >> shift);
+            }
+            MorphologyEngine.morph(plane, width, height, op, kernel, radius, pt);
+            for (int i = 0; i < numPixels; i++) {
+                outPixels[i] |= (plane[i] & 0xFF) << shift;
             }
-            pt.unitDone();
         }
+
         finishProgressTracker();
         return outPixels;
     }
 
-    private static short min(short a, short b) {
-        return (a <= b) ? a : b;
-    }
-
-    private static short max(short a, short b) {
-        return (a >= b) ? a : b;
-    }
-
     @Override
     public String toString() {
         return "Blur/Minimum";
     }
 }
-
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.impl;
+
+import com.jhlabs.image.WholeImageFilter;
+import pixelitor.filters.Rank;
+
+import java.util.Arrays;
+
+/**
+ * The implementation of the {@link Rank} filter: it replaces each
+ * channel value with the value of the given rank (percentile) among
+ * the channel values in the surrounding square.
+ *
+ * It uses the constant-time median filtering algorithm of
+ * S. Perreault, P. Hébert: "Median Filtering in Constant Time"
+ * (IEEE Trans. Image Processing 16, 2007): every column has a histogram
+ * of the values in its 2r+1 rows, which is updated with one add and one
+ * remove per row, and the histogram of the square is updated by adding
+ * and removing whole column histograms. The histograms have two levels,
+ * and the fine-level bins of the square are updated only when needed.
+ * The edges are clamped, and the bands of the image are filtered in parallel.
+ */
+public class RankFilter extends WholeImageFilter {
+    private static final int NUM_CHANNELS = 4;
+    private static final int FINE_BINS = 256;
+    private static final int COARSE_BINS = 16;
+
+    // the number of fine bins in a coarse bin
+    private static final int SEGMENT = FINE_BINS / COARSE_BINS;
+
+    private static final int NOT_UPDATED = Integer.MIN_VALUE;
+
+    private int radius = 1;
+    private double percentile = 50;
+
+    public RankFilter(String filterName) {
+        super(filterName);
+    }
+
+    public void setRadius(int radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Sets the rank as a percentile: 0 is the minimum,
+     * 50 is the median, and 100 is the maximum.
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    @Override
+    protected void filterBand(int width, int height, int[] inPixels, int[] outPixels, int startY, int endY) {
+        int size = 2 * radius + 1;
+        int rank = (int) Math.round(percentile / 100.0 * (size * size - 1));
+
+        new BandFilter(width, height, inPixels, outPixels, rank)
+            .filterRows(startY, endY);
+    }
+
+    @Override
+    protected int getHaloRows() {
+        return radius;
+    }
+
+    /**
+     * Filters a horizontal band with its own histograms.
+     */
+    private class BandFilter {
+        private final int width;
+        private final int height;
+        private final int[] inPixels;
+        private final int[] outPixels;
+        private final int rank;
+
+        // the histograms of the columns, indexed by [channel][x * bins + value]
+        private final short[][] colFine = new short[NUM_CHANNELS][];
+        private final short[][] colCoarse = new short[NUM_CHANNELS][];
+
+        // the histograms of the current square
+        private final int[][] fine = new int[NUM_CHANNELS][FINE_BINS];
+        private final int[][] coarse = new int[NUM_CHANNELS][COARSE_BINS];
+
+        // the x at which each fine-level segment of the square was last updated
+        private final int[][] segmentX = new int[NUM_CHANNELS][COARSE_BINS];
+
+        BandFilter(int width, int height, int[] inPixels, int[] outPixels, int rank) {
+            this.width = width;
+            this.height = height;
+            this.inPixels = inPixels;
+            this.outPixels = outPixels;
+            this.rank = rank;
+
+            for (int c = 0; c < NUM_CHANNELS; c++) {
+                colFine[c] = new short[width * FINE_BINS];
+                colCoarse[c] = new short[width * COARSE_BINS];
+            }
+        }
+
+        void filterRows(int startY, int endY) {
+            for (int y = startY - radius; y < startY + radius; y++) {
+                updateColumns(clampY(y), 1);
+            }
+
+            for (int y = startY; y < endY; y++) {
+                if (pt.isCancelled()) {
+                    return;
+                }
+                updateColumns(clampY(y + radius), 1);
+                if (y > startY) {
+                    updateColumns(clampY(y - radius - 1), -1);
+                }
+                filterRow(y);
+            }
+        }
+
+        private void updateColumns(int y, int delta) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int rgb = inPixels[offset + x];
+                for (int c = 0; c < NUM_CHANNELS; c++) {
+                    int value = (rgb >>> (24 - 8 * c)) & 0xFF;
+                    colFine[c][x * FINE_BINS + value] += delta;
+                    colCoarse[c][x * COARSE_BINS + value / SEGMENT] += delta;
+                }
+            }
+        }
+
+        private void filterRow(int y) {
+            for (int c = 0; c < NUM_CHANNELS; c++) {
+                int[] chCoarse = coarse[c];
+                Arrays.fill(chCoarse, 0);
+                short[] chColCoarse = colCoarse[c];
+                for (int x = -radius; x <= radius; x++) {
+                    int colOffset = clampX(x) * COARSE_BINS;
+                    for (int b = 0; b < COARSE_BINS; b++) {
+                        chCoarse[b] += chColCoarse[colOffset + b];
+                    }
+                }
+                Arrays.fill(segmentX[c], NOT_UPDATED);
+            }
+
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if (x > 0) {
+                    int addOffset = clampX(x + radius) * COARSE_BINS;
+                    int removeOffset = clampX(x - radius - 1) * COARSE_BINS;
+                    for (int c = 0; c < NUM_CHANNELS; c++) {
+                        int[] chCoarse = coarse[c];
+                        short[] chColCoarse = colCoarse[c];
+                        for (int b = 0; b < COARSE_BINS; b++) {
+                            chCoarse[b] += chColCoarse[addOffset + b] - chColCoarse[removeOffset + b];
+                        }
+                    }
+                }
+
+                int rgb = 0;
+                for (int c = 0; c < NUM_CHANNELS; c++) {
+                    rgb = (rgb << 8) | findRankValue(c, x);
+                }
+                outPixels[offset + x] = rgb;
+            }
+        }
+
+        private int findRankValue(int c, int x) {
+            int[] chCoarse = coarse[c];
+            int count = 0;
+            int b = 0;
+            while (count + chCoarse[b] <= rank) {
+                count += chCoarse[b];
+                b++;
+            }
+
+            updateSegment(c, b, x);
+
+            int[] chFine = fine[c];
+            int value = b * SEGMENT;
+            while (count + chFine[value] <= rank) {
+                count += chFine[value];
+                value++;
+            }
+            return value;
+        }
+
+        // brings the fine-level bins of the given segment up to date
+        private void updateSegment(int c, int b, int x) {
+            int[] chFine = fine[c];
+            short[] chColFine = colFine[c];
+            int segmentStart = b * SEGMENT;
+            int lastX = segmentX[c][b];
+
+            if (lastX == NOT_UPDATED || x - lastX > radius) {
+                // it's faster to sum all the columns again
+                for (int i = 0; i < SEGMENT; i++) {
+                    chFine[segmentStart + i] = 0;
+                }
+                for (int xx = x - radius; xx <= x + radius; xx++) {
+                    int colOffset = clampX(xx) * FINE_BINS + segmentStart;
+                    for (int i = 0; i < SEGMENT; i++) {
+                        chFine[segmentStart + i] += chColFine[colOffset + i];
+                    }
+                }
+            } else {
+                for (int xx = lastX + 1; xx <= x; xx++) {
+                    int addOffset = clampX(xx + radius) * FINE_BINS + segmentStart;
+                    int removeOffset = clampX(xx - radius - 1) * FINE_BINS + segmentStart;
+                    for (int i = 0; i < SEGMENT; i++) {
+                        chFine[segmentStart + i] += chColFine[addOffset + i] - chColFine[removeOffset + i];
+                    }
+                }
+            }
+            segmentX[c][b] = x;
+        }
+
+        private int clampX(int x) {
+            return x < 0 ? 0 : (x >= width ? width - 1 : x);
+        }
+
+        private int clampY(int y) {
+            return y < 0 ? 0 : (y >= height ? height - 1 : y);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Blur/Rank";
+    }
+}
@@ -65,8 +65,9 @@ public class JHBoxBlur extends ParametrizedFilter {
             filter = new BoxBlurFilter(NAME);
         }
 
-        filter.setHRadius(hRadius);
-        filter.setVRadius(vRadius);
+        double scale = getPreviewScale();
+        filter.setHRadius((float) (hRadius * scale));
+        filter.setVRadius((float) (vRadius * scale));
         filter.setIterations(numberOfIterations.getValue());
         filter.setPremultiplyAlpha(false);
 
@@ -78,4 +79,9 @@ public class JHBoxBlur extends ParametrizedFilter {
 
         return dest;
     }
+
+    @Override
+    public boolean supportsProgressivePreview() {
+        return true;
+    }
 }
\ No newline at end of file
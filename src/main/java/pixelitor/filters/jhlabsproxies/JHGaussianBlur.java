@@ -57,7 +57,7 @@ public class JHGaussianBlur extends ParametrizedFilter {
             filter = new GaussianFilter(NAME);
         }
 
-        filter.setRadius(radius.getValueAsFloat());
+        filter.setRadius((float) (radius.getValueAsFloat() * getPreviewScale()));
         filter.setPremultiplyAlpha(false);
         filter.setUseAlpha(!keepAlpha.isChecked());
 
@@ -74,4 +74,9 @@ public class JHGaussianBlur extends ParametrizedFilter {
     protected boolean createDefaultDestImg() {
         return false;
     }
+
+    @Override
+    public boolean supportsProgressivePreview() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -60,8 +60,13 @@ public class JHGlow extends ParametrizedFilter {
         }
 
         filter.setAmount(amountValue);
-        filter.setRadius(softness.getValueAsFloat());
+        filter.setRadius((float) (softness.getValueAsFloat() * getPreviewScale()));
 
         return filter.filter(src, dest);
     }
+
+    @Override
+    public boolean supportsProgressivePreview() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -61,7 +61,7 @@ public class JHSmartBlur extends ParametrizedFilter {
 
         // The SmartBlurFilter API allows setting the horizontal and vertical
         // radii separately, but the implementation seems to be buggy
-        filter.setRadius(radius);
+        filter.setRadius(Math.max(1, (int) Math.round(radius * getPreviewScale())));
 
         filter.setThreshold(threshold.getValue());
 
@@ -78,4 +78,9 @@ public class JHSmartBlur extends ParametrizedFilter {
     public boolean excludedFromAnimation() {
         return true;
     }
+
+    @Override
+    public boolean supportsProgressivePreview() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -76,6 +76,15 @@ public class FilterAction extends DrawableAction {
         return filter;
     }
 
+    /**
+     * Creates a filter that is independent of the one used by this action.
+     */
+    public Filter createNewFilter() {
+        Filter newFilter = filterSupplier.get();
+        newFilter.setFilterAction(this);
+        return newFilter;
+    }
+
     // overrides the constructor parameter
     // a bit ugly, but it simplifies the builders
     public FilterAction noGUI() {
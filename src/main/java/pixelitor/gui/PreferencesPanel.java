@@ -25,10 +25,12 @@ import pixelitor.gui.utils.*;
 import pixelitor.guides.GuideStrokeType;
 import pixelitor.guides.GuideStyle;
 import pixelitor.history.History;
+import pixelitor.io.PXCCodec;
 import pixelitor.layers.LayerButtonLayout;
 import pixelitor.utils.AppPreferences;
 import pixelitor.utils.Cursors;
 import pixelitor.utils.Language;
+import pixelitor.utils.Utils;
 
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -50,9 +52,12 @@ public class PreferencesPanel extends JPanel {
     private static final Border EMPTY_BORDER =
         BorderFactory.createEmptyBorder(0, 10, 5, 0);
     private static final String UNDO_LEVELS_LABEL = "Undo/Redo Levels";
+    private static final String UNDO_MEMORY_LABEL = "Undo Memory Limit (MB)";
     private static final String IMAGEMAGICK_FOLDER_LABEL = "ImageMagick 7 Folder";
     private JTextField undoLevelsTF;
+    private JTextField undoMemoryTF;
     private JComboBox<Item> thumbSizeCB;
+    private JComboBox<PXCCodec> pxcCodecCB;
     private JComboBox<MouseZoomMethod> zoomMethodCB;
     private JComboBox<PanMethod> panMethodCB;
     private JTextField magickDirTF;
@@ -89,7 +94,9 @@ public class PreferencesPanel extends JPanel {
 //        addThemeChooser(gbh);
         addUIChooser(gbh);
         addUndoLevelsChooser(gbh);
+        addUndoMemoryChooser(gbh);
         addThumbSizeChooser(gbh);
+        addPXCCodecChooser(gbh);
         addMagickDirField(gbh);
 
         generalPanel.setBorder(EMPTY_BORDER);
@@ -156,6 +163,16 @@ public class PreferencesPanel extends JPanel {
                 undoLevelsTF, true));
     }
 
+    private void addUndoMemoryChooser(GridBagHelper gbh) {
+        undoMemoryTF = new JTextField(5);
+        undoMemoryTF.setName("undoMemoryTF");
+        long megabytes = History.getUndoMemoryLimit() / Utils.BYTES_IN_1_MEGABYTE;
+        undoMemoryTF.setText(String.valueOf(megabytes));
+        gbh.addLabelAndControl(UNDO_MEMORY_LABEL + ": ",
+            TextFieldValidator.createPositiveIntLayer(UNDO_MEMORY_LABEL,
+                undoMemoryTF, true));
+    }
+
     private void addThumbSizeChooser(GridBagHelper gbh) {
         thumbSizeCB = new JComboBox<>(new Item[]{
             new Item("24x24 pixels", 24),
@@ -172,6 +189,13 @@ public class PreferencesPanel extends JPanel {
         thumbSizeCB.addActionListener(e -> updateThumbSize());
     }
 
+    private void addPXCCodecChooser(GridBagHelper gbh) {
+        pxcCodecCB = new JComboBox<>(PXCCodec.values());
+        pxcCodecCB.setSelectedItem(PXCCodec.getDefault());
+        pxcCodecCB.setName("pxcCodecCB");
+        gbh.addLabelAndControl("PXC Compression: ", pxcCodecCB);
+    }
+
     private void addMagickDirField(GridBagHelper gbh) {
         magickDirTF = new JTextField(AppPreferences.magickDirName);
         // don't let the textfield grow too large
@@ -278,6 +302,20 @@ public class PreferencesPanel extends JPanel {
             return false;
         }
 
+        int undoMemory;
+        try {
+            undoMemory = parseInt(undoMemoryTF.getText().trim());
+        } catch (NumberFormatException ex) {
+            undoMemory = -1;
+        }
+        if (undoMemory >= 0) {
+            History.setUndoMemoryLimit((long) undoMemory * Utils.BYTES_IN_1_MEGABYTE);
+        } else {
+            Dialogs.showErrorDialog(d, "Error",
+                "<html><b>" + UNDO_MEMORY_LABEL + "</b> must be a positive integer.");
+            return false;
+        }
+
         // validate the given ImageMagick directory
         String magickDirName = magickDirTF.getText().trim();
         if (!magickDirName.isEmpty()) {
@@ -299,6 +337,7 @@ public class PreferencesPanel extends JPanel {
         // these can't be set interactively => set it here
         MouseZoomMethod.changeTo((MouseZoomMethod) zoomMethodCB.getSelectedItem());
         PanMethod.changeTo((PanMethod) panMethodCB.getSelectedItem());
+        PXCCodec.setDefault((PXCCodec) pxcCodecCB.getSelectedItem());
         AppPreferences.magickDirName = magickDirName;
 
         return true;
@@ -315,7 +315,7 @@ public class View extends JComponent implements MouseListener, MouseMotionListen
             assert mask != null : "no mask in " + maskViewMode;
             mask.paintLayerOnGraphics(g2, true);
         } else {
-            g2.drawImage(comp.getCompositeImage(), 0, 0, null);
+            comp.paintCompositeImage(g2);
 
             if (maskViewMode.showRuby()) {
                 LayerMask mask = comp.getActiveLayer().getMask();
@@ -17,7 +17,9 @@
 
 package pixelitor.gui.utils;
 
+import pixelitor.io.FileFormat;
 import pixelitor.io.FileUtils;
+import pixelitor.io.PXCFormat;
 import pixelitor.io.TrackedIO;
 import pixelitor.utils.JProgressBarTracker;
 import pixelitor.utils.ProgressPanel;
@@ -87,8 +89,10 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
             return ThumbInfo.failure(ThumbInfo.PREVIEW_ERROR);
         }
 
-        // Currently no thumb extraction is attempted for ora and pxc files.
-        if (FileUtils.hasMultiLayerExtension(file)) {
+        // Currently no thumb extraction is attempted for ora files,
+        // and only the newer pxc files contain a stored preview.
+        boolean pxc = FileFormat.fromFile(file).orElse(null) == FileFormat.PXC;
+        if (FileUtils.hasMultiLayerExtension(file) && !pxc) {
             ThumbInfo fakeThumbInfo = ThumbInfo.failure(ThumbInfo.NO_PREVIEW);
             thumbsCache.put(filePath, new SoftReference<>(fakeThumbInfo));
             return fakeThumbInfo;
@@ -97,8 +101,13 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
         int availableWidth = getWidth() - EMPTY_SPACE_AT_LEFT;
         int availableHeight = getHeight();
         try {
-            ProgressTracker pt = new JProgressBarTracker(progressPanel);
-            ThumbInfo newThumbInfo = TrackedIO.readSubsampledThumb(file, availableWidth, availableHeight, pt);
+            ThumbInfo newThumbInfo;
+            if (pxc) {
+                newThumbInfo = PXCFormat.readThumb(file, availableWidth, availableHeight);
+            } else {
+                ProgressTracker pt = new JProgressBarTracker(progressPanel);
+                newThumbInfo = TrackedIO.readSubsampledThumb(file, availableWidth, availableHeight, pt);
+            }
             thumbsCache.put(filePath, new SoftReference<>(newThumbInfo));
             return newThumbInfo;
         } catch (Exception ex) {
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import pixelitor.utils.Messages;
+import pixelitor.utils.debug.DebugNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static pixelitor.utils.Utils.BYTES_IN_1_MEGABYTE;
+
+/**
+ * Keeps the memory used by the {@link ImageBackup}s under a budget.
+ * When the budget is exceeded, the oldest backups are compressed
+ * in memory, and if that is not enough, then the compressed
+ * backups are moved to a swap file in the temp directory.
+ */
+public final class BackupStore {
+    // the backups in the order of their creation
+    private static final List<ImageBackup> backups = new ArrayList<>();
+
+    private static final ExecutorService executor =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Undo Backups");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+    private static volatile long memoryLimit = Long.MAX_VALUE;
+
+    private static FileChannel swapChannel;
+    private static long swapEnd = 0;
+    private static long swapUsed = 0;
+
+    // the unused ranges inside the swap file (position -> length),
+    // never adjacent to each other or to the end of the file
+    private static final TreeMap<Long, Long> freeRanges = new TreeMap<>();
+
+    // set after the first swap error, so that it's reported only once
+    private static volatile boolean swapFailed = false;
+
+    private BackupStore() {
+    }
+
+    /**
+     * Sets the maximum number of bytes the undo backups can use in memory.
+     */
+    public static void setMemoryLimit(long bytes) {
+        memoryLimit = bytes;
+        scheduleMaintenance();
+    }
+
+    public static long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    static void add(ImageBackup backup) {
+        synchronized (backups) {
+            backups.add(backup);
+        }
+        scheduleMaintenance();
+    }
+
+    static void remove(ImageBackup backup) {
+        synchronized (backups) {
+            backups.remove(backup);
+        }
+    }
+
+    public static long getMemoryUsage() {
+        long sum = 0;
+        for (ImageBackup backup : getBackups()) {
+            sum += backup.getMemorySize();
+        }
+        return sum;
+    }
+
+    private static List<ImageBackup> getBackups() {
+        synchronized (backups) {
+            return new ArrayList<>(backups);
+        }
+    }
+
+    private static void scheduleMaintenance() {
+        if (getMemoryUsage() > memoryLimit) {
+            executor.execute(BackupStore::enforceMemoryLimit);
+        }
+    }
+
+    /**
+     * First compresses, then swaps out the oldest backups
+     * until the memory usage gets under the limit.
+     * The newest backup is never touched, because
+     * it's needed for a fast undo or fade.
+     */
+    private static void enforceMemoryLimit() {
+        List<ImageBackup> candidates = getBackups();
+        if (candidates.isEmpty()) {
+            return;
+        }
+        candidates.remove(candidates.size() - 1);
+
+        for (ImageBackup backup : candidates) {
+            if (getMemoryUsage() <= memoryLimit) {
+                return;
+            }
+            if (backup.needsCompression()) {
+                backup.compress();
+            }
+        }
+
+        for (ImageBackup backup : candidates) {
+            if (getMemoryUsage() <= memoryLimit) {
+                return;
+            }
+            if (backup.canBeSwapped() && !swapFailed) {
+                try {
+                    backup.swap();
+                } catch (IOException e) {
+                    // the backups simply stay in memory
+                    swapFailed = true;
+                    Messages.showExceptionOnEDT(e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the given data into the first large enough free range
+     * of the swap file (or to its end), and returns its position.
+     */
+    static synchronized long writeToSwap(byte[] data) throws IOException {
+        if (swapChannel == null) {
+            Path path = Files.createTempFile("pixelitor-undo", ".swap");
+            path.toFile().deleteOnExit();
+            swapChannel = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+        }
+        long position = allocateSwapSpace(data.length);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                swapChannel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            freeSwapSpace(position, data.length);
+            throw e;
+        }
+        return position;
+    }
+
+    private static long allocateSwapSpace(int length) {
+        swapUsed += length;
+        for (Map.Entry<Long, Long> range : freeRanges.entrySet()) {
+            long rangeLength = range.getValue();
+            if (rangeLength >= length) {
+                long position = range.getKey();
+                freeRanges.remove(position);
+                if (rangeLength > length) {
+                    freeRanges.put(position + length, rangeLength - length);
+                }
+                return position;
+            }
+        }
+        long position = swapEnd;
+        swapEnd += length;
+        return position;
+    }
+
+    static synchronized byte[] readFromSwap(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (swapChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of the swap file");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Signals that a swapped backup is not needed anymore. Its range
+     * is merged with the neighboring free ranges, so that it can be
+     * reused by later backups, and the file is truncated if its end
+     * becomes free.
+     */
+    static synchronized void freeSwapSpace(long position, int length) {
+        swapUsed -= length;
+        long start = position;
+        long end = position + length;
+
+        Map.Entry<Long, Long> before = freeRanges.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            freeRanges.remove(before.getKey());
+            start = before.getKey();
+        }
+        Long afterLength = freeRanges.remove(end);
+        if (afterLength != null) {
+            end += afterLength;
+        }
+
+        if (end == swapEnd) {
+            swapEnd = start;
+            try {
+                swapChannel.truncate(swapEnd);
+            } catch (IOException e) {
+                // only the disk space is wasted
+                Messages.showExceptionOnEDT(e);
+            }
+        } else {
+            freeRanges.put(start, end - start);
+        }
+    }
+
+    public static DebugNode createDebugNode() {
+        var node = new DebugNode("undo backups", BackupStore.class);
+
+        node.addInt("num backups", getBackups().size());
+        node.addInt("memory usage (MB)", toMegabytes(getMemoryUsage()));
+        node.addInt("memory limit (MB)", toMegabytes(memoryLimit));
+        synchronized (BackupStore.class) {
+            node.addInt("swap file used (MB)", toMegabytes(swapUsed));
+            node.addInt("swap file size (MB)", toMegabytes(swapEnd));
+        }
+
+        return node;
+    }
+
+    private static int toMegabytes(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, bytes / BYTES_IN_1_MEGABYTE);
+    }
+}
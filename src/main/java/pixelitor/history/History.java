@@ -52,6 +52,7 @@ public class History {
 
     static {
         setUndoLevels(AppPreferences.loadUndoLevels());
+        setUndoMemoryLimit(AppPreferences.loadUndoMemoryLimit());
     }
 
     private History() {
@@ -195,6 +196,18 @@ public class History {
         return undoManager.getLimit();
     }
 
+    /**
+     * Sets the number of bytes the image backups of the history
+     * can use in memory before they are compressed or swapped to disk.
+     */
+    public static void setUndoMemoryLimit(long bytes) {
+        BackupStore.setMemoryLimit(bytes);
+    }
+
+    public static long getUndoMemoryLimit() {
+        return BackupStore.getMemoryLimit();
+    }
+
     /**
      * Used for the name of the fade/repeat menu items
      */
@@ -206,7 +219,6 @@ public class History {
         return "";
     }
 
-    @VisibleForTesting
     public static PixelitorEdit getLastEdit() {
         return undoManager.getLastEdit();
     }
@@ -347,6 +359,7 @@ public class History {
         node.addBoolean("can undo", canUndo());
         node.addBoolean("can redo", canRedo());
         node.addBoolean("can fade", canFade());
+        node.add(BackupStore.createDebugNode());
 
         return node;
     }
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import pixelitor.utils.TiledImage;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The pixels of an image or raster saved for undo/redo.
+ * The pixels are initially kept as they are, but they can be replaced
+ * by their difference from the current image (see {@link #encodeAsDelta(Raster)}),
+ * and older backups are compressed or swapped to disk by the {@link BackupStore}
+ * if the history uses more memory than allowed. Unlike with soft references,
+ * the pixels are never lost, only their retrieval gets slower.
+ */
+public final class ImageBackup {
+    private enum State {RAW, ENCODED, SWAPPED, RELEASED}
+
+    // the size of the tiles compared by the delta encoding
+    private static final int TILE_SIZE = 64;
+
+    private State state = State.RAW;
+
+    // only one of these two is set in the RAW state
+    private BufferedImage image;
+    private Raster raster;
+
+    // the information necessary for recreating the image or raster
+    private final boolean isImage;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    private final boolean tiled;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int height;
+
+    // the encoded pixels in the ENCODED state
+    private byte[] data;
+    private boolean dataCompressed;
+
+    // the tiles stored in a delta-encoded backup, or null if all pixels are stored
+    private BitSet changedTiles;
+
+    // the checksum of the reference pixels used for the delta encoding
+    private long referenceChecksum;
+
+    // the location of the compressed pixels in the SWAPPED state
+    private long swapPosition;
+    private int swapLength;
+
+    private ImageBackup(BufferedImage image, Raster raster) {
+        this.image = image;
+        this.raster = raster;
+        isImage = image != null;
+        Raster r = isImage ? image.getRaster() : raster;
+        colorModel = isImage ? image.getColorModel() : null;
+        tiled = isImage && TiledImage.isTiled(image);
+        minX = r.getMinX();
+        minY = r.getMinY();
+        width = r.getWidth();
+        height = r.getHeight();
+        sampleModel = r.getSampleModel().createCompatibleSampleModel(width, height);
+    }
+
+    /**
+     * Creates a backup of the given image, which must not be modified afterwards.
+     */
+    public static ImageBackup of(BufferedImage image) {
+        var backup = new ImageBackup(image, null);
+        BackupStore.add(backup);
+        return backup;
+    }
+
+    /**
+     * Creates a backup of the given raster, which must not be modified afterwards.
+     */
+    public static ImageBackup of(Raster raster) {
+        var backup = new ImageBackup(null, raster);
+        BackupStore.add(backup);
+        return backup;
+    }
+
+    /**
+     * Replaces the stored pixels with their XOR difference from the given
+     * raster, keeping only the tiles that are different. The same pixels
+     * must be passed to the getters, therefore this can be used only if the
+     * reference is in the state in which the backup will be restored.
+     * Returns false (and the full backup is kept) if the reference
+     * is not compatible with the backup.
+     */
+    public synchronized boolean encodeAsDelta(Raster reference) {
+        if (state != State.RAW || !canBeCompressed() || !isCompatible(reference)) {
+            return false;
+        }
+        Raster source = isImage ? image.getRaster() : raster;
+        int elemsPerPixel = sampleModel.getNumDataElements();
+        boolean intData = sampleModel.getTransferType() == DataBuffer.TYPE_INT;
+        int numTilesX = ceilDiv(width, TILE_SIZE);
+        int numTiles = numTilesX * ceilDiv(height, TILE_SIZE);
+
+        BitSet changed = new BitSet(numTiles);
+        var out = new ByteArrayOutputStream();
+        Object oldPixels = null;
+        Object refPixels = null;
+        ByteBuffer buffer = null;
+        long checksum = 0;
+        for (int i = 0; i < numTiles; i++) {
+            Rectangle tile = getTileBounds(i, numTilesX);
+            oldPixels = source.getDataElements(tile.x, tile.y, tile.width, tile.height, oldPixels);
+            refPixels = reference.getDataElements(tile.x, tile.y, tile.width, tile.height, refPixels);
+            int length = tile.width * tile.height * elemsPerPixel;
+            checksum = updateChecksum(checksum, refPixels, length);
+            if (intData) {
+                int[] a = (int[]) oldPixels;
+                int[] b = (int[]) refPixels;
+                if (Arrays.equals(a, 0, length, b, 0, length)) {
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(a.length * 4);
+                }
+                for (int j = 0; j < length; j++) {
+                    buffer.putInt(j * 4, a[j] ^ b[j]);
+                }
+                out.write(buffer.array(), 0, length * 4);
+            } else {
+                byte[] a = (byte[]) oldPixels;
+                byte[] b = (byte[]) refPixels;
+                if (Arrays.equals(a, 0, length, b, 0, length)) {
+                    continue;
+                }
+                for (int j = 0; j < length; j++) {
+                    a[j] ^= b[j];
+                }
+                out.write(a, 0, length);
+            }
+            changed.set(i);
+        }
+
+        changedTiles = changed;
+        referenceChecksum = checksum;
+        data = out.toByteArray();
+        dataCompressed = false;
+        image = null;
+        raster = null;
+        state = State.ENCODED;
+        return true;
+    }
+
+    /**
+     * Returns the backed-up image. If it was encoded, then a new image is
+     * recreated, and for delta-encoded backups the given reference image
+     * must contain the same pixels as at the time of the encoding.
+     * Returns null if the backup can't be restored, for example
+     * because the reference doesn't match the one used for the delta.
+     */
+    public synchronized BufferedImage getImage(BufferedImage reference) {
+        assert isImage;
+        if (state == State.RAW) {
+            return image;
+        }
+        if (state == State.RELEASED) {
+            return null;
+        }
+        if (changedTiles != null && !isCompatible(reference.getRaster())) {
+            return null;
+        }
+
+        BufferedImage img;
+        WritableRaster dest;
+        if (tiled) {
+            img = new TiledImage(width, height,
+                colorModel.isAlphaPremultiplied()).asBufferedImage();
+            dest = img.getRaster();
+        } else {
+            dest = Raster.createWritableRaster(sampleModel, null);
+            img = new BufferedImage(colorModel, dest, colorModel.isAlphaPremultiplied(), null);
+        }
+        if (!decodeInto(dest, reference.getRaster())) {
+            return null;
+        }
+        return img;
+    }
+
+    /**
+     * Returns the backed-up raster. Works like {@link #getImage(BufferedImage)},
+     * but the reference can be larger, and it's read at the location of the backup.
+     */
+    public synchronized Raster getRaster(Raster reference) {
+        assert !isImage;
+        if (state == State.RAW) {
+            return raster;
+        }
+        if (state == State.RELEASED) {
+            return null;
+        }
+        if (changedTiles != null && !isCompatible(reference)) {
+            return null;
+        }
+
+        WritableRaster dest = Raster.createWritableRaster(sampleModel, new Point(minX, minY));
+        if (!decodeInto(dest, reference)) {
+            return null;
+        }
+        return dest;
+    }
+
+    /**
+     * Returns true if the given image is the one currently held by this backup.
+     */
+    public synchronized boolean holds(BufferedImage img) {
+        return state == State.RAW && image == img;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public synchronized boolean isDelta() {
+        return changedTiles != null;
+    }
+
+    /**
+     * Frees the memory or disk space used by this backup.
+     */
+    public void release() {
+        synchronized (this) {
+            if (state == State.SWAPPED) {
+                BackupStore.freeSwapSpace(swapPosition, swapLength);
+            }
+            state = State.RELEASED;
+            image = null;
+            raster = null;
+            data = null;
+        }
+        BackupStore.remove(this);
+    }
+
+    /**
+     * Returns the number of bytes this backup uses in memory.
+     */
+    synchronized long getMemorySize() {
+        return switch (state) {
+            // the transparent tiles of a tiled image are not allocated
+            case RAW -> tiled ? TiledImage.from(image).getAllocatedBytes()
+                : (long) width * height * sampleModel.getNumDataElements()
+                * DataBuffer.getDataTypeSize(sampleModel.getTransferType()) / 8;
+            case ENCODED -> data.length;
+            case SWAPPED, RELEASED -> 0;
+        };
+    }
+
+    synchronized boolean needsCompression() {
+        if (state == State.RAW) {
+            return canBeCompressed();
+        }
+        return state == State.ENCODED && !dataCompressed;
+    }
+
+    synchronized boolean canBeSwapped() {
+        return state == State.ENCODED;
+    }
+
+    private boolean canBeCompressed() {
+        int type = sampleModel.getTransferType();
+        return type == DataBuffer.TYPE_INT || type == DataBuffer.TYPE_BYTE;
+    }
+
+    private boolean isCompatible(Raster reference) {
+        SampleModel refModel = reference.getSampleModel();
+        return refModel.getTransferType() == sampleModel.getTransferType()
+            && refModel.getNumDataElements() == sampleModel.getNumDataElements()
+            && reference.getBounds().contains(minX, minY, width, height);
+    }
+
+    /**
+     * Compresses the pixels. The potentially slow compression
+     * runs without holding the lock, and its result is discarded
+     * if the backup was changed in the meantime.
+     */
+    void compress() {
+        Raster source = null;
+        byte[] uncompressed = null;
+        synchronized (this) {
+            if (state == State.RAW) {
+                source = isImage ? image.getRaster() : raster;
+            } else if (state == State.ENCODED && !dataCompressed) {
+                uncompressed = data;
+            } else {
+                return;
+            }
+        }
+
+        byte[] compressed = source != null ? compress(source) : compress(uncompressed);
+
+        synchronized (this) {
+            boolean unchanged = source != null
+                ? state == State.RAW
+                : state == State.ENCODED && data == uncompressed;
+            if (!unchanged) {
+                return;
+            }
+            image = null;
+            raster = null;
+            data = compressed;
+            dataCompressed = true;
+            state = State.ENCODED;
+        }
+    }
+
+    /**
+     * Moves the encoded pixels to the swap file.
+     */
+    void swap() throws IOException {
+        byte[] swapped;
+        synchronized (this) {
+            if (state != State.ENCODED) {
+                return;
+            }
+            swapped = data;
+        }
+
+        long position = BackupStore.writeToSwap(swapped);
+
+        synchronized (this) {
+            if (state != State.ENCODED || data != swapped) {
+                BackupStore.freeSwapSpace(position, swapped.length);
+                return;
+            }
+            swapPosition = position;
+            swapLength = swapped.length;
+            data = null;
+            state = State.SWAPPED;
+        }
+    }
+
+    private InputStream openData() throws IOException {
+        byte[] bytes = state == State.SWAPPED
+            ? BackupStore.readFromSwap(swapPosition, swapLength)
+            : data;
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (dataCompressed) {
+            in = new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Writes the saved pixels into the given raster, which has the
+     * location of the backup, and for delta-encoded backups the
+     * unchanged pixels are copied from the given reference.
+     * Returns false if the reference has different pixels than at
+     * the time of the encoding, because then the result would be garbage.
+     */
+    private boolean decodeInto(WritableRaster dest, Raster reference) {
+        int elemsPerPixel = sampleModel.getNumDataElements();
+        boolean intData = sampleModel.getTransferType() == DataBuffer.TYPE_INT;
+        int bytesPerElem = intData ? 4 : 1;
+        int dx = dest.getMinX() - minX;
+        int dy = dest.getMinY() - minY;
+
+        try (InputStream in = openData()) {
+            if (changedTiles == null) {
+                byte[] bytes = new byte[width * elemsPerPixel * bytesPerElem];
+                Object pixels = intData ? new int[width * elemsPerPixel] : bytes;
+                for (int y = 0; y < height; y++) {
+                    readFully(in, bytes);
+                    if (intData) {
+                        ByteBuffer.wrap(bytes).asIntBuffer().get((int[]) pixels);
+                    }
+                    dest.setDataElements(minX + dx, minY + y + dy, width, 1, pixels);
+                }
+                return true;
+            }
+
+            int numTilesX = ceilDiv(width, TILE_SIZE);
+            int numTiles = numTilesX * ceilDiv(height, TILE_SIZE);
+            Object pixels = null;
+            byte[] bytes = new byte[TILE_SIZE * TILE_SIZE * elemsPerPixel * bytesPerElem];
+            long checksum = 0;
+            for (int i = 0; i < numTiles; i++) {
+                Rectangle tile = getTileBounds(i, numTilesX);
+                pixels = reference.getDataElements(tile.x, tile.y, tile.width, tile.height, pixels);
+                int length = tile.width * tile.height * elemsPerPixel;
+                checksum = updateChecksum(checksum, pixels, length);
+                if (changedTiles.get(i)) {
+                    readFully(in, bytes, length * bytesPerElem);
+                    if (intData) {
+                        int[] ints = (int[]) pixels;
+                        ByteBuffer diff = ByteBuffer.wrap(bytes);
+                        for (int j = 0; j < length; j++) {
+                            ints[j] ^= diff.getInt(j * 4);
+                        }
+                    } else {
+                        byte[] elems = (byte[]) pixels;
+                        for (int j = 0; j < length; j++) {
+                            elems[j] ^= bytes[j];
+                        }
+                    }
+                }
+                dest.setDataElements(tile.x + dx, tile.y + dy, tile.width, tile.height, pixels);
+            }
+            return checksum == referenceChecksum;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long updateChecksum(long checksum, Object pixels, int length) {
+        if (pixels instanceof int[]) {
+            int[] ints = (int[]) pixels;
+            for (int i = 0; i < length; i++) {
+                checksum = 31 * checksum + ints[i];
+            }
+        } else {
+            byte[] bytes = (byte[]) pixels;
+            for (int i = 0; i < length; i++) {
+                checksum = 31 * checksum + bytes[i];
+            }
+        }
+        return checksum;
+    }
+
+    private Rectangle getTileBounds(int index, int numTilesX) {
+        int x = (index % numTilesX) * TILE_SIZE;
+        int y = (index / numTilesX) * TILE_SIZE;
+        return new Rectangle(minX + x, minY + y,
+            Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    private byte[] compress(Raster source) {
+        int rowLength = width * sampleModel.getNumDataElements();
+        boolean intData = sampleModel.getTransferType() == DataBuffer.TYPE_INT;
+        int rowBytes = intData ? rowLength * 4 : rowLength;
+
+        var bos = new ByteArrayOutputStream(rowBytes * height / 4 + 64);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(bos, deflater, 1 << 16)) {
+            ByteBuffer buffer = ByteBuffer.allocate(rowBytes);
+            Object row = null;
+            for (int y = 0; y < height; y++) {
+                row = source.getDataElements(minX, minY + y, width, 1, row);
+                if (intData) {
+                    buffer.asIntBuffer().put((int[]) row);
+                    out.write(buffer.array(), 0, rowBytes);
+                } else {
+                    out.write((byte[]) row, 0, rowBytes);
+                }
+            }
+        } catch (IOException e) {
+            // can't happen with in-memory streams
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] compress(byte[] bytes) {
+        var bos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(bos, deflater, 1 << 16)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            // can't happen with in-memory streams
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return bos.toByteArray();
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        readFully(in, bytes, bytes.length);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        if (in.readNBytes(bytes, 0, length) != length) {
+            throw new IOException("unexpected end of the backup data");
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
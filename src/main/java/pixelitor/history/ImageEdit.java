@@ -24,7 +24,6 @@ import pixelitor.utils.debug.DebugNode;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.awt.image.BufferedImage;
-import java.lang.ref.SoftReference;
 
 /**
  * A PixelitorEdit that represents the changes made to an image.
@@ -33,7 +32,7 @@ public class ImageEdit extends FadeableEdit {
     // selections are ignored for example when the image is enlarged by the move tool
     private final boolean ignoreSelection;
 
-    private SoftReference<BufferedImage> imgRef;
+    private ImageBackup backup;
     protected Drawable dr;
 
     public ImageEdit(String name, Composition comp, Drawable dr,
@@ -47,8 +46,8 @@ public class ImageEdit extends FadeableEdit {
 
 //        Utils.debugImage(backupImage, "Backup for " + name);
 
-        // the backup image is stored in an SoftReference
-        imgRef = new SoftReference<>(backupImage);
+        // the backup store might compress or swap out the image
+        backup = ImageBackup.of(backupImage);
         this.dr = dr;
 
         checkBackupDifferentFromActive();
@@ -58,7 +57,7 @@ public class ImageEdit extends FadeableEdit {
     // otherwise the backup might be also edited
     private void checkBackupDifferentFromActive() {
         BufferedImage layerImage = dr.getImage();
-        if (layerImage == imgRef.get()) {
+        if (backup.holds(layerImage)) {
             throw new IllegalStateException("backup image is identical to the active one");
         }
     }
@@ -93,25 +92,44 @@ public class ImageEdit extends FadeableEdit {
         }
     }
 
+    /**
+     * Replaces the backup with its difference from the current image,
+     * which reduces the memory usage if the edit changed only some areas.
+     * This can be called only if the drawable is already in the state
+     * created by this edit, because this is the state in which it's undone.
+     */
+    public void storeBackupAsDelta() {
+        BufferedImage current = getCurrentImage();
+        if (current.getWidth() == backup.getWidth()
+            && current.getHeight() == backup.getHeight()) {
+            backup.encodeAsDelta(current.getRaster());
+        }
+    }
+
+    private BufferedImage getCurrentImage() {
+        if (ignoreSelection) {
+            return dr.getImage();
+        }
+        return dr.getSelectedSubImage(false);
+    }
+
     /**
      * Returns true if successful
      */
     private boolean swapImages() {
-        BufferedImage backupImage = imgRef.get();
+        BufferedImage tmp = getCurrentImage();
+        BufferedImage backupImage = backup.getImage(tmp);
         if (backupImage == null) {
             return false;
         }
+        backup.release();
 
-        BufferedImage tmp;
-        if (ignoreSelection) {
-            tmp = dr.getImage();
-        } else {
-            tmp = dr.getSelectedSubImage(false);
-        }
         dr.changeImageForUndoRedo(backupImage, ignoreSelection);
 
-        // create new backup image from tmp
-        imgRef = new SoftReference<>(tmp);
+        // create new backup image from tmp, and since the
+        // next swap starts from the current state, it can be a delta
+        backup = ImageBackup.of(tmp);
+        storeBackupAsDelta();
 
         if (!embedded) {
             comp.update();
@@ -126,20 +144,16 @@ public class ImageEdit extends FadeableEdit {
     public void die() {
         super.die();
 
-        BufferedImage backupImage = imgRef.get();
-        if (backupImage != null) {
-            backupImage.flush();
-        }
+        backup.release();
 
-        imgRef = null;
+        backup = null;
         dr = null;
     }
 
     @Override
     public BufferedImage getBackupImage() {
-        if (imgRef != null) {
-            // this still could be null
-            return imgRef.get();
+        if (backup != null) {
+            return backup.getImage(getCurrentImage());
         }
         return null;
     }
@@ -148,10 +162,10 @@ public class ImageEdit extends FadeableEdit {
     public DebugNode createDebugNode() {
         var node = super.createDebugNode();
 
-        BufferedImage img = imgRef.get();
-        if (img != null) {
-            node.addInt("backup image width", img.getWidth());
-            node.addInt("backup image height", img.getHeight());
+        if (backup != null) {
+            node.addInt("backup image width", backup.getWidth());
+            node.addInt("backup image height", backup.getHeight());
+            node.addBoolean("delta backup", backup.isDelta());
         }
 
         node.addBoolean("ignoreSelection", ignoreSelection);
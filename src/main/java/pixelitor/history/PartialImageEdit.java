@@ -29,7 +29,6 @@ import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
-import java.lang.ref.SoftReference;
 
 import static java.lang.String.format;
 
@@ -39,7 +38,7 @@ import static java.lang.String.format;
  */
 public class PartialImageEdit extends FadeableEdit {
     private final Rectangle saveRect;
-    private SoftReference<Raster> backupRasterRef;
+    private ImageBackup backup;
 
     private final Drawable dr;
 
@@ -51,7 +50,7 @@ public class PartialImageEdit extends FadeableEdit {
         this.saveRect = saveRect;
 
         Raster backupRaster = image.getData(this.saveRect);
-        backupRasterRef = new SoftReference<>(backupRaster);
+        backup = ImageBackup.of(backupRaster);
     }
 
     @Override
@@ -72,17 +71,25 @@ public class PartialImageEdit extends FadeableEdit {
         }
     }
 
+    /**
+     * Replaces the backup with its difference from the current image.
+     * This can be called only if the drawable is already in the state
+     * created by this edit, because this is the state in which it's undone.
+     */
+    public void storeBackupAsDelta() {
+        backup.encodeAsDelta(dr.getImage().getRaster());
+    }
+
     /**
      * Returns true if successful
      */
     private boolean swapRasters() {
-        Raster backupRaster = backupRasterRef.get();
+        BufferedImage image = dr.getImage();
+        Raster backupRaster = backup.getRaster(image.getRaster());
         if (backupRaster == null) {
             return false;
         }
 
-        BufferedImage image = dr.getImage();
-
         Raster tmpRaster = null;
         try {
             tmpRaster = image.getData(saveRect);
@@ -99,7 +106,13 @@ public class PartialImageEdit extends FadeableEdit {
             throw e;
         }
 
-        backupRasterRef = new SoftReference<>(tmpRaster);
+        backup.release();
+        backup = ImageBackup.of(tmpRaster);
+        storeBackupAsDelta();
+
+        Rectangle canvasRect = new Rectangle(saveRect);
+        canvasRect.translate(dr.getTx(), dr.getTy());
+        dr.contentRegionChanged(canvasRect);
 
         comp.update();
         dr.updateIconImage();
@@ -133,16 +146,17 @@ public class PartialImageEdit extends FadeableEdit {
     public void die() {
         super.die();
 
-        backupRasterRef = null;
+        backup.release();
+        backup = null;
     }
 
     @Override
     public BufferedImage getBackupImage() {
-        if (backupRasterRef == null) { // died
+        if (backup == null) { // died
             return null;
         }
-        Raster backupRaster = backupRasterRef.get();
-        if (backupRaster == null) { // soft reference lost
+        Raster backupRaster = backup.getRaster(dr.getImage().getRaster());
+        if (backupRaster == null) {
             return null;
         }
 
@@ -169,10 +183,9 @@ public class PartialImageEdit extends FadeableEdit {
 
         int width = -1;
         int height = -1;
-        Raster backupRaster = backupRasterRef.get();
-        if (backupRaster != null) {
-            width = backupRaster.getWidth();
-            height = backupRaster.getHeight();
+        if (backup != null) {
+            width = backup.getWidth();
+            height = backup.getHeight();
         }
 
         node.addInt("backup image width", width);
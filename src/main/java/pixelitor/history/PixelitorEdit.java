@@ -33,6 +33,7 @@ public abstract class PixelitorEdit extends AbstractUndoableEdit {
     private final String name;
     private final boolean wasDirty;
     private boolean cleanedByUndo = false;
+    private boolean undone = false;
 
     // if true, this is part of another edit,
     // not added to the history by itself
@@ -51,6 +52,7 @@ public abstract class PixelitorEdit extends AbstractUndoableEdit {
     @Override
     public void undo() throws CannotUndoException {
         super.undo();
+        undone = true;
 
         // any action triggered from this method
         // must not add something to the history
@@ -67,6 +69,7 @@ public abstract class PixelitorEdit extends AbstractUndoableEdit {
     @Override
     public void redo() throws CannotRedoException {
         super.redo();
+        undone = false;
 
         try {
             History.setForbidEdits(true);
@@ -116,6 +119,14 @@ public abstract class PixelitorEdit extends AbstractUndoableEdit {
         return comp;
     }
 
+    /**
+     * Returns true if this edit was undone, and it wasn't redone since then.
+     * Unlike {@link #canRedo()}, this doesn't change when the edit dies.
+     */
+    public boolean isUndone() {
+        return undone;
+    }
+
     @Override
     public void die() {
         super.die();
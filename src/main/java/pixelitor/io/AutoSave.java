@@ -0,0 +1,488 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.OpenImages;
+import pixelitor.gui.View;
+import pixelitor.gui.utils.Dialogs;
+import pixelitor.layers.Drawable;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.Messages;
+import pixelitor.utils.TiledImage;
+
+import javax.swing.Timer;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static pixelitor.utils.Threads.*;
+
+/**
+ * Periodically saves the unsaved changes of the open images
+ * into recovery files, so that they can be recovered after a crash.
+ *
+ * The state of a composition is captured on the EDT: the layer structure
+ * is serialized without the pixels, and only the images that changed
+ * since the last autosave are snapshotted (tiled images share their
+ * tiles copy-on-write, the other images are copied). The snapshots are
+ * compressed and written on the IO thread, each image into its own file,
+ * so that the unchanged images don't have to be written again.
+ */
+public class AutoSave {
+    private static final int INTERVAL_MILLIS = 60_000;
+
+    // the codec of the recovery files: fast, because
+    // the compression ratio matters less than the speed
+    private static final PXCCodec CODEC = PXCCodec.FAST_LZ;
+
+    private static final File RECOVERY_DIR = new File(System.getProperty("user.home"),
+        ".pixelitor" + File.separator + "recovery");
+    private static final String SESSION_DIR_PREFIX = "session-";
+    private static final String LOCK_FILE_NAME = "session.lock";
+    private static final String MANIFEST_FILE_NAME = "composition.bin";
+    private static final int MANIFEST_MAGIC = 0x50_58_52_31; // "PXR1"
+
+    private static final Map<Composition, CompState> states = new WeakHashMap<>();
+    private static File sessionDir;
+
+    // the lock on the session dir is held while the app is running,
+    // so that other instances don't treat it as abandoned
+    private static FileChannel lockChannel;
+
+    private static Timer timer;
+    private static int nextCompId = 1;
+    private static volatile boolean stopped = false;
+
+    private AutoSave() {
+    }
+
+    /**
+     * Offers the recovery of the images left behind by the sessions
+     * that didn't exit normally, and starts the periodic autosave.
+     */
+    public static void start() {
+        assert calledOnEDT() : threadInfo();
+
+        List<File> abandonedSessions = findAbandonedSessions();
+        try {
+            createSessionDir();
+        } catch (IOException e) {
+            Messages.showException(e);
+            return;
+        }
+        if (!abandonedSessions.isEmpty()) {
+            offerRecovery(abandonedSessions);
+        }
+
+        timer = new Timer(INTERVAL_MILLIS, e -> saveChangedComps());
+        timer.start();
+    }
+
+    /**
+     * Stops the autosave and deletes the recovery files.
+     * Called when the app exits normally.
+     */
+    public static void stop() {
+        assert calledOnEDT() : threadInfo();
+
+        if (timer == null) {
+            return;
+        }
+        timer.stop();
+        stopped = true;
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            // deleting the dir is still worth a try
+        }
+        deleteRecursively(sessionDir);
+    }
+
+    /**
+     * Called after the composition was saved by the user,
+     * so that its recovery files are no longer needed.
+     */
+    public static void compSaved(Composition comp) {
+        CompState state = states.get(comp);
+        if (state != null) {
+            // a write that didn't start yet is skipped after the reset,
+            // and the deletion waits for the one in progress, because
+            // it could recreate the dir (the IO tasks can run in parallel)
+            state.reset();
+            File dir = state.dir;
+            state.pendingWrite.handleAsync((v, e) -> {
+                deleteRecursively(dir);
+                return null;
+            }, onIOThread);
+        }
+    }
+
+    public static void compClosed(Composition comp) {
+        compSaved(comp);
+        states.remove(comp);
+    }
+
+    private static void createSessionDir() throws IOException {
+        String name = SESSION_DIR_PREFIX + ProcessHandle.current().pid()
+            + "-" + System.currentTimeMillis();
+        sessionDir = new File(RECOVERY_DIR, name);
+        Files.createDirectories(sessionDir.toPath());
+
+        File lockFile = new File(sessionDir, LOCK_FILE_NAME);
+        lockChannel = FileChannel.open(lockFile.toPath(), CREATE, WRITE);
+        if (lockChannel.tryLock() == null) {
+            throw new IOException("Could not lock " + lockFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the session dirs whose owner is no longer running.
+     */
+    private static List<File> findAbandonedSessions() {
+        File[] dirs = RECOVERY_DIR.listFiles(f ->
+            f.isDirectory() && f.getName().startsWith(SESSION_DIR_PREFIX));
+        if (dirs == null) {
+            return Collections.emptyList();
+        }
+
+        List<File> abandoned = new ArrayList<>();
+        for (File dir : dirs) {
+            File lockFile = new File(dir, LOCK_FILE_NAME);
+            try (var channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE)) {
+                // the lock is released when the channel is closed
+                if (channel.tryLock() != null) {
+                    abandoned.add(dir);
+                }
+            } catch (IOException e) {
+                // locked by this JVM or not accessible: ignore it
+            }
+        }
+        return abandoned;
+    }
+
+    private static void offerRecovery(List<File> sessions) {
+        List<File> manifests = new ArrayList<>();
+        for (File session : sessions) {
+            File[] compDirs = session.listFiles(File::isDirectory);
+            if (compDirs != null) {
+                for (File compDir : compDirs) {
+                    File manifest = new File(compDir, MANIFEST_FILE_NAME);
+                    if (manifest.exists()) {
+                        manifests.add(manifest);
+                    }
+                }
+            }
+        }
+
+        if (!manifests.isEmpty()) {
+            String msg = "<html>Pixelitor didn't exit normally last time, "
+                + "but the unsaved changes of " + (manifests.size() == 1
+                ? "an image were" : manifests.size() + " images were")
+                + " autosaved.<br>Do you want to recover them?";
+            if (Dialogs.showYesNoQuestionDialog("Recover Unsaved Images", msg)) {
+                recover(manifests, sessions);
+                return;
+            }
+        }
+        onIOThread.execute(() -> sessions.forEach(AutoSave::deleteRecursively));
+    }
+
+    private static void recover(List<File> manifests, List<File> sessions) {
+        List<CompletableFuture<Composition>> recovered = new ArrayList<>();
+        for (File manifest : manifests) {
+            recovered.add(CompletableFuture
+                .supplyAsync(() -> readRecovered(manifest), onIOThread)
+                .thenApplyAsync(comp -> {
+                    OpenImages.addAsNewComp(comp);
+                    return comp;
+                }, onEDT)
+                .whenComplete((comp, e) -> IO.checkForReadingProblems(e)));
+        }
+
+        // the old recovery files are deleted only after the
+        // recovered images were autosaved in this session
+        CompletableFuture
+            .allOf(recovered.toArray(new CompletableFuture<?>[0]))
+            .handleAsync((v, e) -> {
+                saveChangedComps();
+                return null;
+            }, onEDT)
+            .thenRunAsync(() -> sessions.forEach(AutoSave::deleteRecursively), onIOThread);
+    }
+
+    private static Composition readRecovered(File manifest) {
+        File dir = manifest.getParentFile();
+        try (var in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(manifest)))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("corrupt recovery file " + manifest.getAbsolutePath());
+            }
+            String path = in.readUTF();
+            byte[] graph = new byte[in.readInt()];
+            in.readFully(graph);
+
+            int numImages = in.readInt();
+            List<BufferedImage> images = new ArrayList<>(numImages);
+            for (int i = 0; i < numImages; i++) {
+                images.add(readImage(new File(dir, in.readUTF())));
+            }
+
+            Composition comp = PXCFormat.deserializeGraph(graph, images);
+            if (!path.isEmpty()) {
+                comp.setFile(new File(path));
+            }
+            comp.setDirty(true);
+            return comp;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static BufferedImage readImage(File file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 1 << 16))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            int type = in.readInt();
+            return PXCFormat.readChunks(in, width, height, type, CODEC);
+        }
+    }
+
+    /**
+     * Starts the autosave of the open compositions
+     * that changed since their last autosave.
+     */
+    private static void saveChangedComps() {
+        assert calledOnEDT() : threadInfo();
+
+        for (View view : OpenImages.getViews()) {
+            Composition comp = view.getComp();
+            CompState state = states.computeIfAbsent(comp, c ->
+                new CompState(new File(sessionDir, "comp-" + nextCompId++)));
+            if (comp.isDirty() && !state.writing
+                && comp.getNumChanges() != state.savedNumChanges) {
+                startSave(comp, state);
+            }
+        }
+    }
+
+    private static void startSave(Composition comp, CompState state) {
+        List<Drawable> drawables = new ArrayList<>();
+        comp.forEachDrawable(drawables::add);
+
+        Map<BufferedImage, Integer> versions = new IdentityHashMap<>();
+        for (Drawable dr : drawables) {
+            BufferedImage img = dr.getImage();
+            if (TiledImage.isTiled(img) && !TiledImage.from(img).isFullyLoaded()) {
+                // postponed until the image is completely loaded
+                return;
+            }
+            versions.put(img, dr.getPixelsVersion());
+        }
+
+        List<BufferedImage> images = new ArrayList<>();
+        byte[] graph;
+        try {
+            graph = PXCFormat.serializeGraph(comp, images);
+        } catch (IOException e) {
+            autoSaveFailed(e);
+            return;
+        }
+
+        // only the changed images are snapshotted and written
+        Map<BufferedImage, SavedImage> savedImages = new IdentityHashMap<>();
+        Map<String, BufferedImage> snapshots = new LinkedHashMap<>();
+        List<String> fileNames = new ArrayList<>(images.size());
+        for (BufferedImage img : images) {
+            Integer version = versions.get(img);
+            SavedImage saved = state.savedImages.get(img);
+            if (saved == null || version == null || saved.pixelsVersion != version) {
+                saved = new SavedImage("image-" + state.nextImageId++ + ".bin",
+                    version == null ? -1 : version);
+                snapshots.put(saved.fileName, createSnapshot(img));
+            }
+            savedImages.put(img, saved);
+            fileNames.add(saved.fileName);
+        }
+
+        Set<String> obsoleteFiles = new HashSet<>();
+        for (SavedImage saved : state.savedImages.values()) {
+            obsoleteFiles.add(saved.fileName);
+        }
+        obsoleteFiles.removeAll(fileNames);
+
+        File file = comp.getFile();
+        String path = file == null ? "" : file.getAbsolutePath();
+        int generation = state.generation;
+        int numChanges = comp.getNumChanges();
+        File dir = state.dir;
+
+        state.writing = true;
+        state.pendingWrite = CompletableFuture.runAsync(() -> {
+            if (state.generation == generation) {
+                write(dir, path, graph, fileNames, snapshots, obsoleteFiles);
+            }
+        }, onIOThread);
+        state.pendingWrite
+            .handleAsync((v, e) -> {
+                state.writing = false;
+                if (e != null) {
+                    autoSaveFailed(e);
+                } else if (state.generation == generation) {
+                    state.savedImages = savedImages;
+                    state.savedNumChanges = numChanges;
+                }
+                return null;
+            }, onEDT);
+    }
+
+    /**
+     * Returns a copy of the given image that is not affected
+     * by the later changes of the original.
+     */
+    private static BufferedImage createSnapshot(BufferedImage img) {
+        if (TiledImage.isTiled(img)) {
+            return TiledImage.from(img).snapshot().asBufferedImage();
+        }
+        return ImageUtils.copyImage(img);
+    }
+
+    private static void write(File dir, String path, byte[] graph,
+                              List<String> fileNames,
+                              Map<String, BufferedImage> snapshots,
+                              Set<String> obsoleteFiles) {
+        if (stopped) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir.toPath());
+            for (var entry : snapshots.entrySet()) {
+                writeImage(new File(dir, entry.getKey()), entry.getValue());
+            }
+
+            // the manifest is replaced atomically, so that a crash
+            // while writing leaves the previous autosave intact
+            File tmpManifest = new File(dir, MANIFEST_FILE_NAME + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpManifest)))) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeUTF(path);
+                out.writeInt(graph.length);
+                out.write(graph);
+                out.writeInt(fileNames.size());
+                for (String fileName : fileNames) {
+                    out.writeUTF(fileName);
+                }
+            }
+            Files.move(tmpManifest.toPath(), new File(dir, MANIFEST_FILE_NAME).toPath(),
+                REPLACE_EXISTING, ATOMIC_MOVE);
+
+            for (String fileName : obsoleteFiles) {
+                Files.deleteIfExists(new File(dir, fileName).toPath());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeImage(File file, BufferedImage img) throws IOException {
+        int type = TiledImage.isTiled(img) ? TYPE_INT_ARGB : img.getType();
+        List<Future<byte[]>> chunks = ImageChunks.compressAsync(img, CODEC);
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(img.getWidth());
+            out.writeInt(img.getHeight());
+            out.writeInt(type);
+            out.writeInt(ImageChunks.calcRowsPerChunk(img.getWidth()));
+            out.writeInt(chunks.size());
+            for (Future<byte[]> chunk : chunks) {
+                byte[] data = IO.getResult(chunk);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+    }
+
+    private static void autoSaveFailed(Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        Messages.showExceptionOnEDT(cause);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The autosave state of a composition
+     */
+    private static class CompState {
+        private final File dir;
+
+        // the saved files of the images, with the pixel versions at the time of saving
+        private Map<BufferedImage, SavedImage> savedImages = new IdentityHashMap<>();
+        private int savedNumChanges = -1;
+        private int nextImageId = 1;
+        private boolean writing = false;
+
+        // incremented when the recovery files are deleted,
+        // so that the older writes are skipped or their results ignored
+        private volatile int generation = 0;
+
+        // the last write started for this composition
+        private CompletableFuture<Void> pendingWrite = CompletableFuture.completedFuture(null);
+
+        private CompState(File dir) {
+            this.dir = dir;
+        }
+
+        private void reset() {
+            generation++;
+            savedImages = new IdentityHashMap<>();
+            savedNumChanges = -1;
+        }
+    }
+
+    private static class SavedImage {
+        private final String fileName;
+        private final int pixelsVersion;
+
+        private SavedImage(String fileName, int pixelsVersion) {
+            this.fileName = fileName;
+            this.pixelsVersion = pixelsVersion;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.io;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A simple and fast LZ77 compressor in pure Java, using the
+ * sequence format of LZ4 blocks: each sequence is a token with the
+ * literal and match lengths, the literals, and a 2-byte match offset.
+ * The compression ratio is lower than with Deflate,
+ * but both compression and decompression are much faster.
+ */
+class FastLZ {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    // the last bytes are always stored as literals, and no match
+    // is searched close to the end, as in the LZ4 format
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_SEARCH_LIMIT = 12;
+
+    private static final int HASH_BITS = 14;
+
+    private FastLZ() {
+    }
+
+    static byte[] compress(byte[] src) {
+        int length = src.length;
+        byte[] dest = new byte[length + length / 255 + 16];
+        // the positions + 1 of the last occurrences of 4-byte sequences
+        int[] table = new int[1 << HASH_BITS];
+
+        int anchor = 0; // the start of the not yet written literals
+        int pos = 0;
+        int destPos = 0;
+        while (pos < length - MATCH_SEARCH_LIMIT) {
+            int sequence = readInt(src, pos);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash] - 1;
+            table[hash] = pos + 1;
+
+            if (ref < 0 || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // skip faster in incompressible data
+                pos += 1 + ((pos - anchor) >>> 6);
+                continue;
+            }
+
+            // extend the match backwards and forwards
+            while (pos > anchor && ref > 0 && src[pos - 1] == src[ref - 1]) {
+                pos--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            int matchLimit = length - LAST_LITERALS;
+            while (pos + matchLength < matchLimit
+                && src[pos + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+
+            destPos = writeSequence(dest, destPos, src, anchor,
+                pos - anchor, pos - ref, matchLength);
+            pos += matchLength;
+            anchor = pos;
+        }
+
+        // the last sequence has only literals
+        destPos = writeSequence(dest, destPos, src, anchor, length - anchor, 0, 0);
+        return Arrays.copyOf(dest, destPos);
+    }
+
+    private static int writeSequence(byte[] dest, int destPos, byte[] src,
+                                     int literalsStart, int numLiterals,
+                                     int offset, int matchLength) {
+        int tokenPos = destPos++;
+        int literalsCode = Math.min(numLiterals, 15);
+        destPos = writeLength(dest, destPos, numLiterals - 15);
+        System.arraycopy(src, literalsStart, dest, destPos, numLiterals);
+        destPos += numLiterals;
+
+        int matchCode = 0;
+        if (matchLength > 0) {
+            dest[destPos++] = (byte) offset;
+            dest[destPos++] = (byte) (offset >>> 8);
+            matchCode = Math.min(matchLength - MIN_MATCH, 15);
+            destPos = writeLength(dest, destPos, matchLength - MIN_MATCH - 15);
+        }
+        dest[tokenPos] = (byte) (literalsCode << 4 | matchCode);
+        return destPos;
+    }
+
+    // writes the part of a length that doesn't fit into the token
+    private static int writeLength(byte[] dest, int destPos, int remaining) {
+        if (remaining < 0) {
+            return destPos;
+        }
+        while (remaining >= 255) {
+            dest[destPos++] = (byte) 255;
+            remaining -= 255;
+        }
+        dest[destPos++] = (byte) remaining;
+        return destPos;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16
+            | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+    }
+
+    /**
+     * Decompresses the given data, filling the whole destination array.
+     */
+    static void decompress(ByteBuffer src, byte[] dest) throws IOException {
+        int destPos = 0;
+        try {
+            while (true) {
+                int token = src.get() & 0xFF;
+                int numLiterals = token >>> 4;
+                if (numLiterals == 15) {
+                    numLiterals += readLength(src);
+                }
+                if (numLiterals > dest.length - destPos) {
+                    throw new IOException("corrupt compressed data");
+                }
+                src.get(dest, destPos, numLiterals);
+                destPos += numLiterals;
+
+                if (!src.hasRemaining()) {
+                    break; // the last sequence has only literals
+                }
+
+                int offset = (src.get() & 0xFF) | (src.get() & 0xFF) << 8;
+                int matchLength = (token & 0xF) + MIN_MATCH;
+                if ((token & 0xF) == 15) {
+                    matchLength += readLength(src);
+                }
+                int ref = destPos - offset;
+                if (offset == 0 || ref < 0 || matchLength > dest.length - destPos) {
+                    throw new IOException("corrupt compressed data");
+                }
+
+                // the match can overlap with the bytes it produces,
+                // then the copied periodic part doubles at each step
+                while (matchLength > 0) {
+                    int numBytes = Math.min(destPos - ref, matchLength);
+                    System.arraycopy(dest, ref, dest, destPos, numBytes);
+                    destPos += numBytes;
+                    matchLength -= numBytes;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("corrupt compressed data", e);
+        }
+        if (destPos != dest.length) {
+            throw new IOException("corrupt compressed data");
+        }
+    }
+
+    private static int readLength(ByteBuffer src) {
+        int length = 0;
+        int b;
+        do {
+            b = src.get() & 0xFF;
+            length += b;
+        } while (b == 255);
+        return length;
+    }
+}
@@ -20,7 +20,9 @@ package pixelitor.io;
 import pixelitor.Composition;
 import pixelitor.gui.GlobalEvents;
 import pixelitor.gui.PixelitorWindow;
+import pixelitor.gui.utils.DialogBuilder;
 import pixelitor.gui.utils.Dialogs;
+import pixelitor.gui.utils.GridBagHelper;
 import pixelitor.gui.utils.ImagePreviewPanel;
 import pixelitor.gui.utils.SaveFileChooser;
 import pixelitor.utils.Messages;
@@ -30,6 +32,7 @@ import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.BorderLayout;
+import java.awt.GridBagLayout;
 import java.io.File;
 import java.nio.file.Files;
 
@@ -157,6 +160,44 @@ public class FileChoosers {
         }
     }
 
+    /**
+     * Lets the user select a file and a subsampling factor,
+     * and opens the file as a subsampled preview.
+     */
+    public static void openAsPreviewAsync() {
+        initOpenChooser();
+
+        File selectedFile = askUserForOpenFile();
+        if (selectedFile == null) {
+            return;
+        }
+        String fileName = selectedFile.getName();
+        if (!FileUtils.hasSupportedInputExt(fileName)) {
+            handleUnsupportedExtensionWhileOpening(fileName);
+            return;
+        }
+        if (FileUtils.hasMultiLayerExtension(selectedFile)) {
+            Messages.showError("Error", "Layered files can't be opened as a preview.");
+            return;
+        }
+
+        var factors = SubsampledSource.SUBSAMPLING_FACTORS;
+        String[] resolutions = new String[factors.length];
+        for (int i = 0; i < factors.length; i++) {
+            resolutions[i] = "1/" + factors[i];
+        }
+        var resolutionCB = new JComboBox<>(resolutions);
+        var p = new JPanel(new GridBagLayout());
+        new GridBagHelper(p).addLabelAndControl("Resolution:", resolutionCB);
+
+        new DialogBuilder()
+            .title("Open as Preview")
+            .content(p)
+            .okAction(() -> SubsampledSource.openAsync(selectedFile,
+                factors[resolutionCB.getSelectedIndex()]))
+            .show();
+    }
+
     private static File askUserForOpenFile() {
         GlobalEvents.dialogOpened("Open");
         int result = openChooser.showOpenDialog(PixelitorWindow.get());
@@ -26,7 +26,9 @@ import java.io.File;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static pixelitor.utils.Threads.onDecodingThreads;
 import static pixelitor.utils.Threads.onEDT;
 import static pixelitor.utils.Threads.onIOThread;
 
@@ -40,7 +42,9 @@ public enum FileFormat {
     }, ORA(true, null, FileChoosers.oraFilter) {
         @Override
         public Runnable getSaveTask(Composition comp, SaveSettings settings) {
-            return () -> OpenRaster.uncheckedWrite(comp, settings.getFile());
+            // the merged image is taken on the EDT
+            Supplier<BufferedImage> merged = StripImage.compositeForWriting(comp, null);
+            return () -> OpenRaster.uncheckedWrite(comp, settings.getFile(), merged);
         }
 
         @Override
@@ -54,7 +58,10 @@ public enum FileFormat {
     }, PXC(true, null, FileChoosers.pxcFilter) {
         @Override
         public Runnable getSaveTask(Composition comp, SaveSettings settings) {
-            return () -> PXCFormat.write(comp, settings.getFile());
+            // the preview is created from a composite image taken on the EDT
+            BufferedImage composite = comp.getCompositeImage();
+            return () -> PXCFormat.write(comp, settings.getFile(),
+                PXCSettings.from(settings).getCodec(), composite);
         }
 
         @Override
@@ -79,7 +86,19 @@ public enum FileFormat {
     public Runnable getSaveTask(Composition comp, SaveSettings settings) {
         assert !hasLayers; // overwritten for multi-layered formats
 
-        return () -> saveSingleLayered(comp, settings);
+        // the composite cache is used on the EDT, so the
+        // composite image must be taken here, not in the save task
+        Supplier<BufferedImage> imageSupplier;
+        if (this == GIF) {
+            // the palette is calculated from all the pixels
+            BufferedImage composite = comp.getCompositeImage();
+            imageSupplier = () -> converter.apply(composite);
+        } else {
+            // the final conversion, which might be necessary
+            // before writing the image, can be done in strips
+            imageSupplier = StripImage.compositeForWriting(comp, converter);
+        }
+        return () -> IO.saveImageToFile(imageSupplier.get(), settings);
     }
 
     public CompletableFuture<Composition> readFrom(File file) {
@@ -88,24 +107,14 @@ public enum FileFormat {
     }
 
     /**
-     * Loads a composition from a file with a single-layer image format
+     * Loads a composition from a file with a single-layer image format.
+     * Several such files can be decoded in parallel.
      */
     private static CompletableFuture<Composition> readSimpleFrom(File file) {
-        return CompletableFuture.supplyAsync(() -> TrackedIO.uncheckedRead(file), onIOThread)
+        return CompletableFuture.supplyAsync(() -> TrackedIO.uncheckedRead(file), onDecodingThreads)
             .thenApplyAsync(img -> Composition.fromImage(img, file, null), onEDT);
     }
 
-    private void saveSingleLayered(Composition comp, SaveSettings settings) {
-        BufferedImage img = comp.getCompositeImage();
-        if (converter != null) {
-            // do the final conversion, which might be
-            // necessary before writing the image
-            img = converter.apply(img);
-        }
-
-        IO.saveImageToFile(img, settings);
-    }
-
     public FileFilter getFileFilter() {
         return fileFilter;
     }
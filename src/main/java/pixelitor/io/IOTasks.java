@@ -18,6 +18,8 @@
 package pixelitor.io;
 
 import pixelitor.ThreadPool;
+import pixelitor.utils.BoundedExecutor;
+import pixelitor.utils.MemoryInfo;
 import pixelitor.utils.SerialExecutor;
 import pixelitor.utils.Utils;
 import pixelitor.utils.VisibleForTesting;
@@ -32,12 +34,20 @@ import static pixelitor.utils.Threads.calledOnEDT;
 import static pixelitor.utils.Threads.threadInfo;
 
 /**
- * Makes sure that only one IO task runs at a time
+ * Makes sure that only one IO task runs at a time, except
+ * for the decoding of the single-layered image files,
+ * which runs with a limited parallelism.
  */
 public class IOTasks {
     private static final Executor executor
         = new SerialExecutor(ThreadPool.getExecutor());
 
+    // the estimated memory needed for decoding an image file
+    private static final long MB_PER_DECODING = 256;
+
+    private static final BoundedExecutor decodingExecutor
+        = new BoundedExecutor(ThreadPool.getExecutor(), IOTasks::calcMaxDecodings);
+
     private static final Set<String> currentReadPaths = new HashSet<>();
     private static final Set<String> currentWritePaths = new HashSet<>();
 
@@ -56,6 +66,27 @@ public class IOTasks {
         return executor;
     }
 
+    /**
+     * Returns the executor for decoding the image files
+     * while the other IO tasks (for example file writes) are still serialized.
+     */
+    public static Executor getDecodingExecutor() {
+        if (ALLOW_MULTIPLE_IO_THREADS) {
+            return ThreadPool.getExecutor();
+        }
+        return decodingExecutor;
+    }
+
+    /**
+     * Returns the number of files that can be decoded
+     * at the same time, limited by the cores and the free memory.
+     */
+    private static int calcMaxDecodings() {
+        int numCores = Runtime.getRuntime().availableProcessors();
+        long availableMB = new MemoryInfo().getAvailableMemoryMB();
+        return (int) Math.max(1, Math.min(numCores, availableMB / MB_PER_DECODING));
+    }
+
     public static synchronized boolean isProcessing(String absolutePath) {
         assert calledOnEDT() : threadInfo();
 
@@ -126,6 +157,9 @@ public class IOTasks {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        while (!decodingExecutor.isIdle()) {
+            Utils.sleep(50, TimeUnit.MILLISECONDS);
+        }
 
         Utils.sleep(200, TimeUnit.MILLISECONDS);
     }
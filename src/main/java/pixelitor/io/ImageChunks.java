@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.TiledImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static pixelitor.utils.ImageUtils.getPixelsAsArray;
+
+/**
+ * Compresses and decompresses the pixels of an image in independent
+ * chunks of rows, so that the chunks can be processed in parallel.
+ * The uncompressed chunk data is the same as in the older PXC versions:
+ * big-endian ints for the packed int images, and bytes for the gray images.
+ */
+class ImageChunks {
+    // the approximate number of pixels in a chunk
+    private static final int CHUNK_PIXELS = 1 << 20;
+
+    private ImageChunks() {
+    }
+
+    static int calcRowsPerChunk(int width) {
+        return Math.max(1, CHUNK_PIXELS / Math.max(1, width));
+    }
+
+    static int calcNumChunks(int height, int rowsPerChunk) {
+        return (height + rowsPerChunk - 1) / rowsPerChunk;
+    }
+
+    /**
+     * Starts compressing the chunks of the given image on the thread pool.
+     * The image must not be modified until all the returned futures complete.
+     */
+    static List<Future<byte[]>> compressAsync(BufferedImage img, PXCCodec codec) {
+        int rowsPerChunk = calcRowsPerChunk(img.getWidth());
+        int numChunks = calcNumChunks(img.getHeight(), rowsPerChunk);
+        List<Future<byte[]>> chunks = new ArrayList<>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            int startY = i * rowsPerChunk;
+            int endY = Math.min(img.getHeight(), startY + rowsPerChunk);
+            chunks.add(ThreadPool.submit(() ->
+                codec.compress(getRawRows(img, startY, endY))));
+        }
+        return chunks;
+    }
+
+    /**
+     * Decompresses the given chunk into the rows starting at startY.
+     */
+    static void decompress(ByteBuffer chunk, BufferedImage img,
+                           int startY, int endY, PXCCodec codec) {
+        int rawLength = (endY - startY) * img.getWidth() * (isGray(img) ? 1 : 4);
+        setRawRows(img, startY, endY, decompressRaw(chunk, rawLength, codec));
+    }
+
+    /**
+     * Decompresses the given chunk into the rows of a
+     * lazily loaded tiled image, starting at startY.
+     */
+    static void decompressLoaded(ByteBuffer chunk, TiledImage img,
+                                 int startY, int endY, PXCCodec codec) {
+        int width = img.getWidth();
+        byte[] raw = decompressRaw(chunk, (endY - startY) * width * 4, codec);
+
+        var buffer = ByteBuffer.wrap(raw).asIntBuffer();
+        int[] row = new int[width];
+        for (int y = startY; y < endY; y++) {
+            buffer.get(row);
+            img.setLoadedRow(y, row);
+        }
+    }
+
+    private static byte[] decompressRaw(ByteBuffer chunk, int rawLength, PXCCodec codec) {
+        byte[] raw = new byte[rawLength];
+        try {
+            codec.decompress(chunk, raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return raw;
+    }
+
+    private static boolean isGray(BufferedImage img) {
+        return img.getRaster().getTransferType() == DataBuffer.TYPE_BYTE;
+    }
+
+    private static byte[] getRawRows(BufferedImage img, int startY, int endY) {
+        int width = img.getWidth();
+        int numRows = endY - startY;
+        if (isGray(img)) {
+            byte[] raw = new byte[numRows * width];
+            img.getRaster().getDataElements(0, startY, width, numRows, raw);
+            return raw;
+        }
+
+        byte[] raw = new byte[numRows * width * 4];
+        var buffer = ByteBuffer.wrap(raw).asIntBuffer();
+        if (TiledImage.isTiled(img)) {
+            TiledImage tiled = TiledImage.from(img);
+            int[] row = new int[width];
+            for (int y = startY; y < endY; y++) {
+                tiled.getRow(0, y, width, row, 0);
+                buffer.put(row);
+            }
+        } else {
+            buffer.put(getPixelsAsArray(img), startY * width, numRows * width);
+        }
+        return raw;
+    }
+
+    private static void setRawRows(BufferedImage img, int startY, int endY, byte[] raw) {
+        int width = img.getWidth();
+        int numRows = endY - startY;
+        if (isGray(img)) {
+            img.getRaster().setDataElements(0, startY, width, numRows, raw);
+            return;
+        }
+
+        var buffer = ByteBuffer.wrap(raw).asIntBuffer();
+        if (TiledImage.isTiled(img)) {
+            TiledImage tiled = TiledImage.from(img);
+            int[] row = new int[width];
+            for (int y = startY; y < endY; y++) {
+                buffer.get(row);
+                tiled.setRow(0, y, width, row, 0);
+            }
+        } else {
+            buffer.get(getPixelsAsArray(img), startY * width, numRows * width);
+        }
+    }
+}
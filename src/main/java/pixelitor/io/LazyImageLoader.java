@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.io;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.Messages;
+import pixelitor.utils.TiledImage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static pixelitor.utils.TiledImage.TILE_SIZE;
+
+/**
+ * Reads and decodes the compressed chunks of a tiled image from
+ * an indexed PXC file: the tile rows that are accessed first are
+ * loaded on demand, and the rest of them in the background.
+ */
+class LazyImageLoader implements TiledImage.TileLoader {
+    private final TiledImage img;
+    private final PXCIndex.ImageEntry entry;
+
+    // the open file, which is closed by the owner after all the chunks are loaded
+    private final FileChannel channel;
+
+    // nonzero for the chunks that were already loaded
+    private final AtomicIntegerArray loadedChunks;
+    private final Object[] chunkLocks;
+    private final AtomicInteger numRemainingChunks;
+
+    // nonzero for the tile rows whose chunks are all decoded
+    private final AtomicIntegerArray loadedTileRows;
+
+    private final PXCCodec codec;
+    private final Runnable whenFinished;
+
+    LazyImageLoader(TiledImage img, PXCIndex.ImageEntry entry, FileChannel channel,
+                    PXCCodec codec, Runnable whenFinished) {
+        this.img = img;
+        this.entry = entry;
+        this.channel = channel;
+        this.codec = codec;
+        this.whenFinished = whenFinished;
+
+        int numChunks = entry.getNumChunks();
+        loadedChunks = new AtomicIntegerArray(numChunks);
+        chunkLocks = new Object[numChunks];
+        for (int i = 0; i < chunkLocks.length; i++) {
+            chunkLocks[i] = new Object();
+        }
+        numRemainingChunks = new AtomicInteger(numChunks);
+        loadedTileRows = new AtomicIntegerArray(img.getNumTilesY());
+
+        img.startLazyLoading(this);
+    }
+
+    /**
+     * Starts decoding all the chunks on the thread pool.
+     */
+    void loadInBackground() {
+        for (int i = 0, n = loadedChunks.length(); i < n; i++) {
+            int chunkIndex = i;
+            ThreadPool.submit(() -> {
+                try {
+                    loadChunk(chunkIndex);
+                } catch (UncheckedIOException e) {
+                    Messages.showException(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void loadTileRow(int tileY) {
+        if (loadedTileRows.get(tileY) != 0) {
+            return;
+        }
+        int startY = tileY * TILE_SIZE;
+        int endY = Math.min(img.getHeight(), startY + TILE_SIZE);
+        int lastChunk = entry.getChunkIndex(endY - 1);
+        for (int i = entry.getChunkIndex(startY); i <= lastChunk; i++) {
+            loadChunk(i);
+        }
+        loadedTileRows.set(tileY, 1);
+    }
+
+    private void loadChunk(int chunkIndex) {
+        if (loadedChunks.get(chunkIndex) != 0) {
+            return;
+        }
+        synchronized (chunkLocks[chunkIndex]) {
+            if (loadedChunks.get(chunkIndex) != 0) {
+                return; // loaded by another thread in the meantime
+            }
+            try {
+                ByteBuffer chunk = entry.readChunk(channel, chunkIndex);
+                ImageChunks.decompressLoaded(chunk, img,
+                    entry.getChunkStartY(chunkIndex), entry.getChunkEndY(chunkIndex), codec);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                // a corrupt chunk stays transparent, it isn't loaded again
+                loadedChunks.set(chunkIndex, 1);
+                if (numRemainingChunks.decrementAndGet() == 0) {
+                    img.finishLazyLoading();
+                    whenFinished.run();
+                }
+            }
+        }
+    }
+}
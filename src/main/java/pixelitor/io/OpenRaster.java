@@ -25,6 +25,7 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import pixelitor.Composition;
 import pixelitor.ImageMode;
+import pixelitor.ThreadPool;
 import pixelitor.layers.BlendingMode;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
@@ -35,6 +36,9 @@ import javax.xml.parsers.ParserConfigurationException;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -54,68 +58,77 @@ public class OpenRaster {
     private OpenRaster() {
     }
 
-    public static void uncheckedWrite(Composition comp, File outFile) {
+    public static void uncheckedWrite(Composition comp, File outFile,
+                                      Supplier<BufferedImage> merged) {
         try {
-            write(comp, outFile);
+            write(comp, outFile, merged);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    public static void write(Composition comp, File outFile) throws IOException {
-        var mainTracker = new StatusBarProgressTracker("Writing " + outFile.getName(), 100);
-
-        var fos = new FileOutputStream(outFile);
-        var zos = new ZipOutputStream(fos);
-
+    /**
+     * Writes the given composition. The merged image is
+     * supplied, because it must be taken on the EDT.
+     */
+    public static void write(Composition comp, File outFile,
+                             Supplier<BufferedImage> merged) throws IOException {
         String stackXML = format("""
             <?xml version='1.0' encoding='UTF-8'?>
             <image w="%d" h="%d">
             <stack>
             """, comp.getCanvasWidth(), comp.getCanvasHeight());
 
-        int numLayers = comp.getNumLayers();
-        int numImageLayers = comp.getNumImageLayers() + 1; // +1 for the merged image
-        double workRatio = 1.0 / numImageLayers;
+        // The PNG encoding (and compression) of the layers runs in
+        // parallel, and the results are written into the zip in order.
+        List<String> entryNames = new ArrayList<>();
+        List<Future<byte[]>> pngs = new ArrayList<>();
 
         // Reverse iteration: in stack.xml the first element in a stack is the uppermost.
+        int numLayers = comp.getNumLayers();
         for (int i = numLayers - 1; i >= 0; i--) {
             Layer layer = comp.getLayer(i);
             if (layer instanceof ImageLayer) {
                 ImageLayer imageLayer = (ImageLayer) layer;
-                var subTracker = new SubtaskProgressTracker(workRatio, mainTracker);
-                stackXML += writeLayer(imageLayer, i, zos, subTracker);
+                stackXML += createLayerXML(imageLayer, i);
+                entryNames.add(format("data/%d.png", i));
+                pngs.add(encodePNGAsync(imageLayer.getImage()));
             }
         }
 
         // add merged image
-        zos.putNextEntry(new ZipEntry(MERGED_IMAGE_NAME));
-        var subTaskTracker = new SubtaskProgressTracker(workRatio, mainTracker);
-        var img = comp.getCompositeImage();
-        TrackedIO.writeToStream(img, zos, "PNG", subTaskTracker);
-        zos.closeEntry();
+        entryNames.add(MERGED_IMAGE_NAME);
+        pngs.add(encodePNGAsync(merged.get()));
 
         stackXML += "</stack>\n</image>";
 
-        // write the stack.xml file
-        zos.putNextEntry(new ZipEntry("stack.xml"));
-        zos.write(stackXML.getBytes(UTF_8));
-        zos.closeEntry();
+        var mainTracker = new StatusBarProgressTracker(
+            "Writing " + outFile.getName(), pngs.size());
+        try (var zos = new ZipOutputStream(new BufferedOutputStream(
+            new FileOutputStream(outFile), 1 << 16))) {
+            for (int i = 0; i < pngs.size(); i++) {
+                writeStoredEntry(entryNames.get(i), IO.getResult(pngs.get(i)), zos);
+                mainTracker.unitDone();
+            }
 
-        // write the mimetype
-        zos.putNextEntry(new ZipEntry("mimetype"));
-        zos.write("image/openraster".getBytes(UTF_8));
-        zos.closeEntry();
-        zos.close();
+            // write the stack.xml file
+            zos.putNextEntry(new ZipEntry("stack.xml"));
+            zos.write(stackXML.getBytes(UTF_8));
+            zos.closeEntry();
+
+            // write the mimetype
+            zos.putNextEntry(new ZipEntry("mimetype"));
+            zos.write("image/openraster".getBytes(UTF_8));
+            zos.closeEntry();
+        } finally {
+            pngs.forEach(png -> png.cancel(false));
+        }
 
         mainTracker.finished();
     }
 
-    private static String writeLayer(ImageLayer layer,
-                                     int layerIndex,
-                                     ZipOutputStream zos,
-                                     ProgressTracker pt) throws IOException {
-        String stackXML = format(Locale.ENGLISH,
+    private static String createLayerXML(ImageLayer layer, int layerIndex) {
+        return format(Locale.ENGLISH,
             "<layer name=\"%s\" visibility=\"%s\" composite-op=\"%s\" " +
                 "opacity=\"%f\" src=\"data/%d.png\" x=\"%d\" y=\"%d\"/>\n",
             layer.getName(),
@@ -125,15 +138,37 @@ public class OpenRaster {
             layerIndex,
             layer.getTx(),
             layer.getTy());
+    }
 
-        var entry = new ZipEntry(format("data/%d.png", layerIndex));
-        zos.putNextEntry(entry);
-        BufferedImage image = layer.getImage();
+    private static Future<byte[]> encodePNGAsync(BufferedImage image) {
+        return ThreadPool.submit(() -> {
+            var bos = new ByteArrayOutputStream();
+            try {
+                TrackedIO.writeToStream(image, bos, "PNG", ProgressTracker.NULL_TRACKER);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bos.toByteArray();
+        });
+    }
+
+    /**
+     * Writes an already compressed PNG file without compressing it again.
+     */
+    private static void writeStoredEntry(String name, byte[] data,
+                                         ZipOutputStream zos) throws IOException {
+        var crc = new CRC32();
+        crc.update(data);
 
-        TrackedIO.writeToStream(image, zos, "PNG", pt);
+        var entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
 
+        zos.putNextEntry(entry);
+        zos.write(data);
         zos.closeEntry();
-        return stackXML;
     }
 
     public static Composition read(File file) throws IOException, ParserConfigurationException, SAXException {
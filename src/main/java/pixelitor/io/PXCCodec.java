@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.io;
+
+import pixelitor.utils.AppPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression methods of the image chunks in the PXC files.
+ * The id of the codec is stored in the file header.
+ */
+public enum PXCCodec {
+    DEFLATE("Normal", 0) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return deflate(raw, Deflater.DEFAULT_COMPRESSION);
+        }
+    }, STORE("None (Fastest, Largest)", 1) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return raw;
+        }
+
+        @Override
+        void decompress(ByteBuffer chunk, byte[] raw) throws IOException {
+            if (chunk.remaining() != raw.length) {
+                throw new IOException("corrupt pxc image data");
+            }
+            chunk.get(raw);
+        }
+    }, FAST_DEFLATE("Fast Deflate", 2) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return deflate(raw, Deflater.BEST_SPEED);
+        }
+    }, BEST_DEFLATE("Best Deflate (Smallest)", 3) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return deflate(raw, Deflater.BEST_COMPRESSION);
+        }
+    }, FAST_LZ("Fast LZ", 4) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return FastLZ.compress(raw);
+        }
+
+        @Override
+        void decompress(ByteBuffer chunk, byte[] raw) throws IOException {
+            FastLZ.decompress(chunk, raw);
+        }
+    };
+
+    private static PXCCodec defaultCodec;
+
+    private final String guiName;
+    private final int id;
+
+    PXCCodec(String guiName, int id) {
+        this.guiName = guiName;
+        this.id = id;
+    }
+
+    abstract byte[] compress(byte[] raw);
+
+    /**
+     * Decompresses the given chunk, filling the whole raw array.
+     */
+    void decompress(ByteBuffer chunk, byte[] raw) throws IOException {
+        inflate(chunk, raw);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    static PXCCodec fromId(int id) throws IOException {
+        for (PXCCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("unknown pxc compression " + id);
+    }
+
+    /**
+     * Returns the codec used when no codec is explicitly requested.
+     */
+    public static PXCCodec getDefault() {
+        if (defaultCodec == null) {
+            defaultCodec = DEFLATE;
+            String loadedCode = AppPreferences.loadPXCCodec();
+            for (PXCCodec codec : values()) {
+                if (codec.saveCode().equals(loadedCode)) {
+                    defaultCodec = codec;
+                    break;
+                }
+            }
+        }
+        return defaultCodec;
+    }
+
+    public static void setDefault(PXCCodec codec) {
+        defaultCodec = codec;
+    }
+
+    public String saveCode() {
+        return name();
+    }
+
+    private static byte[] deflate(byte[] raw, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            var out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int numBytes = deflater.deflate(buffer);
+                out.write(buffer, 0, numBytes);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(ByteBuffer chunk, byte[] raw) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(chunk);
+            int offset = 0;
+            while (offset < raw.length) {
+                int numBytes = inflater.inflate(raw, offset, raw.length - offset);
+                if (numBytes == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("corrupt pxc image data");
+                }
+                offset += numBytes;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return guiName;
+    }
+}
@@ -18,37 +18,61 @@
 package pixelitor.io;
 
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
+import pixelitor.gui.utils.ThumbInfo;
+import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
 import pixelitor.utils.ProgressTracker;
 import pixelitor.utils.StatusBarProgressTracker;
 import pixelitor.utils.SubtaskProgressTracker;
+import pixelitor.utils.TiledImage;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static pixelitor.utils.ImageUtils.getPixelsAsArray;
+import static pixelitor.utils.Threads.onEDT;
 
 /**
  * PXC file format support.
  */
 public class PXCFormat {
-    private static final int CURRENT_PXC_VERSION_NUMBER = 0x03;
+    // version 3: the serialized composition (with the pixels) in a GZIP stream
+    // version 6: indexed file, see PXCIndex
+    private static final int OLD_PXC_VERSION_NUMBER = 0x03;
+    private static final int CURRENT_PXC_VERSION_NUMBER = 0x06;
 
-    // tracks the reading-writing of the whole file
-    private static ProgressTracker mainPT;
+    // the number of pixels converted and read at once in the old version
+    private static final int BLOCK_SIZE = 1 << 16;
 
-    private static double workRatioForOneImage;
+    // the maximum width or height of the stored composite preview
+    private static final int PREVIEW_SIZE = 1024;
 
     private PXCFormat() {
     }
 
     public static Composition read(File file) throws BadPxcFormatException {
         long fileSize = file.length();
-        mainPT = new StatusBarProgressTracker(
+        // tracks the reading of the whole file
+        var mainPT = new StatusBarProgressTracker(
             "Reading " + file.getName(), (int) fileSize);
         Composition comp = null;
         try (InputStream is = new ProgressTrackingInputStream(
@@ -78,20 +102,25 @@ public class PXCFormat {
                     + " is in an obsolete pxc format, "
                     + "it can only be opened in the old Pixelitor versions 0.9.9-1.1.2");
             }
-            if (versionByte > CURRENT_PXC_VERSION_NUMBER) {
+            if (versionByte != OLD_PXC_VERSION_NUMBER
+                && versionByte != CURRENT_PXC_VERSION_NUMBER) {
                 throw new BadPxcFormatException(file.getName()
                     + " has unknown version byte " + versionByte);
             }
 
-            try (GZIPInputStream gs = new GZIPInputStream(is)) {
-                try (ObjectInput ois = new ObjectInputStream(gs)) {
-                    comp = (Composition) ois.readObject();
-                    mainPT.finished();
-                    mainPT = null;
+            if (versionByte == CURRENT_PXC_VERSION_NUMBER) {
+                comp = readIndexed(file);
+                mainPT.finished();
+                return comp;
+            }
 
-                    // file is transient in Composition because the pxc file can be renamed
-                    comp.setFile(file);
-                }
+            // the images are read by deserializeImage from the same stream
+            try (ObjectInput ois = new ObjectInputStream(new GZIPInputStream(is))) {
+                comp = (Composition) ois.readObject();
+                mainPT.finished();
+
+                // file is transient in Composition because the pxc file can be renamed
+                comp.setFile(file);
             }
         } catch (IOException | ClassNotFoundException e) {
             Messages.showException(e);
@@ -100,89 +129,446 @@ public class PXCFormat {
         return comp;
     }
 
+    /**
+     * Reads an indexed (version 6) file. Only the table of contents and the
+     * serialized composition are read, and the small images are decoded
+     * in parallel before returning, but the chunks of the tiled images
+     * are read and decoded on demand or in the background, and in the
+     * meantime the stored composite preview is shown instead of them.
+     * The file is kept open until all the tiled images are loaded.
+     */
+    private static Composition readIndexed(File file) throws IOException, ClassNotFoundException {
+        List<LazyImageLoader> loaders = new ArrayList<>();
+        CompletableFuture<Void> allLoaded = new CompletableFuture<>();
+        // starts at one so that it can't reach zero until all the loaders are created
+        AtomicInteger numLoadingImages = new AtomicInteger(1);
+        Runnable imageLoaded = () -> {
+            if (numLoadingImages.decrementAndGet() == 0) {
+                allLoaded.complete(null);
+            }
+        };
+
+        Composition comp;
+        BufferedImage preview = null;
+        FileChannel channel = FileChannel.open(file.toPath(), READ);
+        allLoaded.whenComplete((v, e) -> closeLazilyRead(channel));
+        try {
+            PXCIndex index = PXCIndex.read(channel);
+
+            List<Future<?>> tasks = new ArrayList<>();
+            List<BufferedImage> images = new ArrayList<>();
+            for (PXCIndex.ImageEntry entry : index.getImages()) {
+                int width = entry.getWidth();
+                int height = entry.getHeight();
+                if (entry.getType() == TYPE_INT_ARGB && TiledImage.shouldBeTiled(width, height)) {
+                    var img = new TiledImage(width, height, false);
+                    numLoadingImages.incrementAndGet();
+                    loaders.add(new LazyImageLoader(img, entry, channel,
+                        index.getCodec(), imageLoaded));
+                    images.add(img.asBufferedImage());
+                } else {
+                    var img = new BufferedImage(width, height, entry.getType());
+                    ByteBuffer[] chunks = entry.readChunks(channel);
+                    for (int i = 0; i < chunks.length; i++) {
+                        ByteBuffer chunk = chunks[i];
+                        int startY = entry.getChunkStartY(i);
+                        int endY = entry.getChunkEndY(i);
+                        tasks.add(ThreadPool.submit(() ->
+                            ImageChunks.decompress(chunk, img, startY, endY, index.getCodec())));
+                    }
+                    images.add(img);
+                }
+            }
+
+            comp = deserializeGraph(index.readGraph(channel), images);
+            for (Future<?> task : tasks) {
+                IO.getResult(task);
+            }
+
+            if (!loaders.isEmpty() && index.getPreview() != null) {
+                preview = decodeEagerly(index.getPreview(), channel, index.getCodec());
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        // file is transient in Composition because the pxc file can be renamed
+        comp.setFile(file);
+
+        if (!loaders.isEmpty()) {
+            comp.setLoadingPreview(preview);
+            allLoaded.thenRunAsync(comp::lazyLoadingFinished, onEDT);
+            loaders.forEach(LazyImageLoader::loadInBackground);
+        }
+        imageLoaded.run(); // all the loaders were created
+        return comp;
+    }
+
+    private static void closeLazilyRead(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Messages.showExceptionOnEDT(e);
+        }
+    }
+
+    private static BufferedImage decodeEagerly(PXCIndex.ImageEntry entry,
+                                               FileChannel channel,
+                                               PXCCodec codec) throws IOException {
+        var img = new BufferedImage(entry.getWidth(), entry.getHeight(), entry.getType());
+        ByteBuffer[] chunks = entry.readChunks(channel);
+        for (int i = 0; i < chunks.length; i++) {
+            ImageChunks.decompress(chunks[i], img,
+                entry.getChunkStartY(i), entry.getChunkEndY(i), codec);
+        }
+        return img;
+    }
+
+    /**
+     * Returns the thumbnail of a pxc file, created from the stored preview
+     * of the indexed files. Older files have no stored preview.
+     */
+    public static ThumbInfo readThumb(File file, int maxWidth, int maxHeight) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            if (!PXCIndex.isIndexed(channel)) {
+                return ThumbInfo.failure(ThumbInfo.NO_PREVIEW);
+            }
+            PXCIndex index = PXCIndex.read(channel);
+            int canvasWidth = index.getCanvasWidth();
+            int canvasHeight = index.getCanvasHeight();
+            if (index.getPreview() == null) {
+                return ThumbInfo.failure(canvasWidth, canvasHeight, ThumbInfo.NO_PREVIEW);
+            }
+
+            BufferedImage preview = decodeEagerly(index.getPreview(), channel, index.getCodec());
+            BufferedImage thumb = ImageUtils.createThumbnail(preview, maxWidth, maxHeight, null);
+            return ThumbInfo.success(thumb, canvasWidth, canvasHeight);
+        }
+    }
+
+    // must be called on the EDT, because it takes the composite image
     public static void write(Composition comp, File file) {
-        mainPT = new StatusBarProgressTracker(
+        write(comp, file, PXCCodec.getDefault(), comp.getCompositeImage());
+    }
+
+    /**
+     * Writes the given composition. The composite image for the
+     * preview is given, because it must be taken on the EDT.
+     */
+    public static void write(Composition comp, File file, PXCCodec codec,
+                             BufferedImage composite) {
+        // tracks the writing of the whole file
+        var mainPT = new StatusBarProgressTracker(
             "Writing " + file.getName(), 100);
-        int numImages = comp.calcNumImages();
-        if (numImages > 0) {
-            workRatioForOneImage = 1.0 / numImages;
-        } else {
-            workRatioForOneImage = -1;
-        }
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(new byte[]{(byte) 0xAB, (byte) 0xC4, CURRENT_PXC_VERSION_NUMBER});
 
-            try (GZIPOutputStream gz = new GZIPOutputStream(fos)) {
-                try (ObjectOutput oos = new ObjectOutputStream(gz)) {
-                    oos.writeObject(comp);
-                    oos.flush();
+        // lazily loaded pixels can't be read after their file is overwritten
+        comp.forEachDrawable(dr -> {
+            BufferedImage img = dr.getImage();
+            if (TiledImage.isTiled(img)) {
+                TiledImage.from(img).ensureFullyLoaded();
+            }
+        });
+
+        List<List<Future<byte[]>>> compressedImages = new ArrayList<>();
+        try {
+            List<BufferedImage> images = new ArrayList<>();
+            byte[] graph = serializeGraph(comp, images);
+            for (BufferedImage img : images) {
+                compressedImages.add(ImageChunks.compressAsync(img, codec));
+            }
+
+            BufferedImage preview = createPreview(composite);
+            List<Future<byte[]>> previewChunks = ImageChunks.compressAsync(preview, codec);
+
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                CREATE, WRITE, TRUNCATE_EXISTING)) {
+                PXCIndex index = new PXCIndex();
+                index.setCodec(codec);
+                index.setCanvasSize(comp.getCanvasWidth(), comp.getCanvasHeight());
+
+                channel.position(PXCIndex.HEADER_SIZE);
+                index.setGraph(PXCIndex.HEADER_SIZE, graph.length);
+                PXCIndex.writeFully(channel, ByteBuffer.wrap(graph));
+
+                for (int i = 0; i < images.size(); i++) {
+                    var imageTracker = new SubtaskProgressTracker(
+                        1.0 / images.size(), mainPT);
+                    index.addImage(writeChunks(channel, images.get(i),
+                        compressedImages.get(i), imageTracker));
                 }
+                index.setPreview(writeChunks(channel, preview,
+                    previewChunks, ProgressTracker.NULL_TRACKER));
+
+                index.write(channel, CURRENT_PXC_VERSION_NUMBER);
             }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            compressedImages.forEach(chunks ->
+                chunks.forEach(chunk -> chunk.cancel(false)));
         }
         mainPT.finished();
-        mainPT = null;
     }
 
-    public static void serializeImage(ObjectOutputStream out,
-                                      BufferedImage img) throws IOException {
-        assert img != null;
-        int imgType = img.getType();
+    /**
+     * Writes the compressed chunks of an image at the current position
+     * of the channel, and returns their location for the index.
+     */
+    private static PXCIndex.ImageEntry writeChunks(FileChannel channel, BufferedImage img,
+                                                   List<Future<byte[]>> chunks,
+                                                   ProgressTracker pt) throws IOException {
         int imgWidth = img.getWidth();
         int imgHeight = img.getHeight();
+        // tiled images are stored in the same way as
+        // the non-premultiplied packed int images
+        int imgType = TiledImage.isTiled(img) ? TYPE_INT_ARGB : img.getType();
+        int rowsPerChunk = ImageChunks.calcRowsPerChunk(imgWidth);
 
-        out.writeInt(imgWidth);
-        out.writeInt(imgHeight);
-        out.writeInt(imgType);
+        long[] offsets = new long[chunks.size()];
+        int[] lengths = new int[chunks.size()];
+        var progress = new BlockProgress(pt, (long) imgWidth * imgHeight);
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = IO.getResult(chunks.get(i));
+            offsets[i] = channel.position();
+            lengths[i] = chunk.length;
+            PXCIndex.writeFully(channel, ByteBuffer.wrap(chunk));
 
-        ProgressTracker pt = getImageTracker();
+            int numRows = Math.min(rowsPerChunk, imgHeight - i * rowsPerChunk);
+            progress.pixelsDone((long) numRows * imgWidth);
+        }
+        return new PXCIndex.ImageEntry(imgWidth, imgHeight, imgType,
+            rowsPerChunk, offsets, lengths);
+    }
 
-        if (imgType == TYPE_BYTE_GRAY) {
-            ImageIO.write(img, "PNG", out);
-        } else {
-            int[] pixels = getPixelsAsArray(img);
-            int length = pixels.length;
-            int progress = 0;
-            int fiveUnits = length / 20;
-            for (int pixel : pixels) {
-                out.writeInt(pixel);
-                progress++;
-                if (progress > fiveUnits) {
-                    pt.unitsDone(5);
-                    progress = 0;
-                }
+    /**
+     * Creates the stored preview by averaging four samples for each pixel,
+     * so that even for huge images only a few pixels have to be read.
+     */
+    private static BufferedImage createPreview(BufferedImage src) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        Dimension size = new Dimension(srcWidth, srcHeight);
+        if (srcWidth > PREVIEW_SIZE || srcHeight > PREVIEW_SIZE) {
+            size = ImageUtils.calcThumbDimensions(srcWidth, srcHeight, PREVIEW_SIZE);
+        }
+
+        var preview = new BufferedImage(size.width, size.height, TYPE_INT_ARGB);
+        int[] pixels = getPixelsAsArray(preview);
+        double scaleX = srcWidth / (double) size.width;
+        double scaleY = srcHeight / (double) size.height;
+        for (int y = 0; y < size.height; y++) {
+            int y1 = (int) ((y + 0.25) * scaleY);
+            int y2 = Math.min(srcHeight - 1, (int) ((y + 0.75) * scaleY));
+            for (int x = 0; x < size.width; x++) {
+                int x1 = (int) ((x + 0.25) * scaleX);
+                int x2 = Math.min(srcWidth - 1, (int) ((x + 0.75) * scaleX));
+                pixels[y * size.width + x] = average(src.getRGB(x1, y1),
+                    src.getRGB(x2, y1), src.getRGB(x1, y2), src.getRGB(x2, y2));
             }
         }
+        return preview;
+    }
+
+    // averages non-premultiplied pixels, weighting the colors by the alpha
+    private static int average(int... argbs) {
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int argb : argbs) {
+            int alpha = argb >>> 24;
+            a += alpha;
+            r += ((argb >>> 16) & 0xFF) * alpha;
+            g += ((argb >>> 8) & 0xFF) * alpha;
+            b += (argb & 0xFF) * alpha;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return (a / argbs.length) << 24 | (r / a) << 16 | (g / a) << 8 | (b / a);
+    }
+
+    /**
+     * Serializes the composition without the pixels of its images.
+     * The images are added to the given list, and only their index
+     * in this list is serialized, so that they can be stored separately.
+     * It's fast, because no pixels are copied.
+     */
+    static byte[] serializeGraph(Composition comp,
+                                 List<BufferedImage> images) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (ObjectOutput oos = new GraphOutputStream(bytes, images)) {
+            oos.writeObject(comp);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a composition serialized by {@link #serializeGraph},
+     * using the given images in the same order.
+     */
+    static Composition deserializeGraph(byte[] graph, List<BufferedImage> images)
+        throws IOException, ClassNotFoundException {
+        try (ObjectInput ois = new GraphInputStream(new ByteArrayInputStream(graph), images)) {
+            return (Composition) ois.readObject();
+        }
+    }
+
+    /**
+     * Called when an image layer is serialized. The pixels are
+     * stored separately, only the index of the image is serialized.
+     */
+    public static void serializeImage(ObjectOutputStream out,
+                                      BufferedImage img) throws IOException {
+        assert img != null;
+        if (!(out instanceof GraphOutputStream)) {
+            throw new IllegalStateException("not called from serializeGraph");
+        }
+        out.writeInt(((GraphOutputStream) out).indexOf(img));
     }
 
     // when deserializing, the progress tracking
     // is done at the InputStream level, not here
     public static BufferedImage deserializeImage(ObjectInputStream in) throws IOException {
+        if (in instanceof GraphInputStream) {
+            return ((GraphInputStream) in).getImage(in.readInt());
+        }
+
+        // an old (version 3) file, in which the pixels are in the stream
         int width = in.readInt();
         int height = in.readInt();
         int type = in.readInt();
 
         if (type == TYPE_BYTE_GRAY) {
             return ImageIO.read(in);
+        } else if (type == TYPE_INT_ARGB && TiledImage.shouldBeTiled(width, height)) {
+            var img = new TiledImage(width, height, false);
+            int[] row = new int[width];
+            byte[] buffer = new byte[width * 4];
+            for (int y = 0; y < height; y++) {
+                readInts(in, row, 0, width, buffer);
+                img.setRow(0, y, width, row, 0);
+            }
+            return img.asBufferedImage();
         } else {
             BufferedImage img = new BufferedImage(width, height, type);
             int[] pixels = getPixelsAsArray(img);
 
-            int length = pixels.length;
-            for (int i = 0; i < length; i++) {
-                pixels[i] = in.readInt();
+            byte[] buffer = new byte[BLOCK_SIZE * 4];
+            for (int offset = 0; offset < pixels.length; offset += BLOCK_SIZE) {
+                readInts(in, pixels, offset, Math.min(BLOCK_SIZE, pixels.length - offset), buffer);
             }
             return img;
         }
     }
 
-    private static ProgressTracker getImageTracker() {
-        if (workRatioForOneImage == -1) {
-            // a pxc without images
-            return ProgressTracker.NULL_TRACKER;
+    /**
+     * Reads the compressed chunks of an image, and
+     * decompresses them in parallel on the thread pool.
+     */
+    static BufferedImage readChunks(DataInput in, int width, int height,
+                                    int type, PXCCodec codec) throws IOException {
+        BufferedImage img;
+        if (type == TYPE_INT_ARGB && TiledImage.shouldBeTiled(width, height)) {
+            img = new TiledImage(width, height, false).asBufferedImage();
         } else {
-            return new SubtaskProgressTracker(workRatioForOneImage, mainPT);
+            img = new BufferedImage(width, height, type);
+        }
+
+        int rowsPerChunk = in.readInt();
+        int numChunks = in.readInt();
+        if (rowsPerChunk <= 0 || numChunks != ImageChunks.calcNumChunks(height, rowsPerChunk)) {
+            throw new IOException("corrupt pxc image header");
+        }
+
+        List<Future<?>> tasks = new ArrayList<>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            byte[] chunk = new byte[in.readInt()];
+            in.readFully(chunk);
+
+            int startY = i * rowsPerChunk;
+            int endY = Math.min(height, startY + rowsPerChunk);
+            tasks.add(ThreadPool.submit(() -> ImageChunks.decompress(
+                ByteBuffer.wrap(chunk), img, startY, endY, codec)));
+        }
+        for (Future<?> task : tasks) {
+            IO.getResult(task);
+        }
+        return img;
+    }
+
+    /**
+     * Reads the big-endian ints of the old version, using the given buffer.
+     */
+    private static void readInts(DataInput in, int[] data, int offset,
+                                 int length, byte[] buffer) throws IOException {
+        in.readFully(buffer, 0, length * 4);
+        ByteBuffer.wrap(buffer).asIntBuffer().get(data, offset, length);
+    }
+
+    /**
+     * Reports the progress of writing an image in 5% steps.
+     */
+    private static class BlockProgress {
+        private final ProgressTracker pt;
+        private final long pixelsInStep;
+        private long pixelsSinceStep = 0;
+
+        BlockProgress(ProgressTracker pt, long numPixels) {
+            this.pt = pt;
+            pixelsInStep = Math.max(1, numPixels / 20);
+        }
+
+        void pixelsDone(long numPixels) {
+            pixelsSinceStep += numPixels;
+            while (pixelsSinceStep >= pixelsInStep) {
+                pt.unitsDone(5);
+                pixelsSinceStep -= pixelsInStep;
+            }
+        }
+    }
+
+    /**
+     * Serializes a composition graph with only the indexes of its images
+     */
+    private static class GraphOutputStream extends ObjectOutputStream {
+        // the images in the order of their serialization, with their indexes
+        private final List<BufferedImage> images;
+        private final Map<BufferedImage, Integer> imageIndexes = new IdentityHashMap<>();
+
+        GraphOutputStream(OutputStream out, List<BufferedImage> images) throws IOException {
+            super(out);
+            this.images = images;
+        }
+
+        int indexOf(BufferedImage img) {
+            Integer index = imageIndexes.get(img);
+            if (index == null) {
+                index = images.size();
+                images.add(img);
+                imageIndexes.put(img, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Deserializes a composition graph written by {@link GraphOutputStream}
+     */
+    private static class GraphInputStream extends ObjectInputStream {
+        private final List<BufferedImage> images;
+
+        GraphInputStream(InputStream in, List<BufferedImage> images) throws IOException {
+            super(in);
+            this.images = images;
+        }
+
+        BufferedImage getImage(int index) throws IOException {
+            if (index < 0 || index >= images.size()) {
+                throw new IOException("corrupt pxc image index");
+            }
+            return images.get(index);
         }
     }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The table of contents of an indexed (version 6) PXC file.
+ *
+ * The file starts with a fixed-size header: the identification and version
+ * bytes, the id of the codec used for all the chunks, padding, and the
+ * offset of the table of contents.
+ * It is followed by the serialized composition (which refers to its images
+ * only by their index), the compressed chunks of the images, and the
+ * chunks of a downscaled preview of the composite image.
+ * The table of contents at the end of the file lists where these are,
+ * so that they can be read and decoded independently.
+ */
+class PXCIndex {
+    static final int HEADER_SIZE = 16;
+    private static final int CODEC_POS = 3;
+    private static final int TOC_OFFSET_POS = 8;
+
+    // the files written before the codecs were introduced have zero
+    // in the place of the codec id, which is the id of DEFLATE
+    private PXCCodec codec = PXCCodec.DEFLATE;
+    private long graphOffset;
+    private int graphLength;
+    private int canvasWidth;
+    private int canvasHeight;
+    private final List<ImageEntry> images = new ArrayList<>();
+    private ImageEntry preview; // can be null
+
+    void setGraph(long offset, int length) {
+        graphOffset = offset;
+        graphLength = length;
+    }
+
+    void setCodec(PXCCodec codec) {
+        this.codec = codec;
+    }
+
+    PXCCodec getCodec() {
+        return codec;
+    }
+
+    void setCanvasSize(int width, int height) {
+        canvasWidth = width;
+        canvasHeight = height;
+    }
+
+    void addImage(ImageEntry entry) {
+        images.add(entry);
+    }
+
+    void setPreview(ImageEntry preview) {
+        this.preview = preview;
+    }
+
+    List<ImageEntry> getImages() {
+        return images;
+    }
+
+    ImageEntry getPreview() {
+        return preview;
+    }
+
+    int getCanvasWidth() {
+        return canvasWidth;
+    }
+
+    int getCanvasHeight() {
+        return canvasHeight;
+    }
+
+    /**
+     * Reads the serialized composition into a byte array.
+     */
+    byte[] readGraph(FileChannel channel) throws IOException {
+        byte[] graph = new byte[graphLength];
+        readFully(channel, ByteBuffer.wrap(graph), graphOffset);
+        return graph;
+    }
+
+    /**
+     * Writes the table of contents at the current position of the channel,
+     * and the header with the identification bytes at the start of the file.
+     */
+    void write(FileChannel channel, int version) throws IOException {
+        long tocOffset = channel.position();
+
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeLong(graphOffset);
+        out.writeInt(graphLength);
+        out.writeInt(canvasWidth);
+        out.writeInt(canvasHeight);
+        out.writeInt(images.size());
+        for (ImageEntry image : images) {
+            image.write(out);
+        }
+        out.writeBoolean(preview != null);
+        if (preview != null) {
+            preview.write(out);
+        }
+        out.flush();
+        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) 0xAB).put((byte) 0xC4).put((byte) version).put((byte) codec.getId());
+        header.putLong(TOC_OFFSET_POS, tocOffset);
+        header.rewind();
+        channel.position(0);
+        writeFully(channel, header);
+    }
+
+    /**
+     * Returns whether the given file is a pxc file with an index.
+     */
+    static boolean isIndexed(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(3);
+        readFully(channel, header, 0);
+        return (header.get(0) & 0xFF) == 0xAB
+            && (header.get(1) & 0xFF) == 0xC4
+            && header.get(2) >= 6;
+    }
+
+    static PXCIndex read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        PXCCodec codec = PXCCodec.fromId(header.get(CODEC_POS));
+        long tocOffset = header.getLong(TOC_OFFSET_POS);
+        if (tocOffset < HEADER_SIZE || tocOffset >= fileSize
+            || fileSize - tocOffset > Integer.MAX_VALUE) {
+            throw new IOException("corrupt pxc table of contents");
+        }
+
+        byte[] toc = new byte[(int) (fileSize - tocOffset)];
+        readFully(channel, ByteBuffer.wrap(toc), tocOffset);
+        DataInput in = new DataInputStream(new ByteArrayInputStream(toc));
+
+        PXCIndex index = new PXCIndex();
+        index.codec = codec;
+        index.graphOffset = in.readLong();
+        index.graphLength = in.readInt();
+        if (index.graphOffset < HEADER_SIZE || index.graphLength < 0
+            || index.graphOffset + index.graphLength > tocOffset) {
+            throw new IOException("corrupt pxc table of contents");
+        }
+        index.canvasWidth = in.readInt();
+        index.canvasHeight = in.readInt();
+        int numImages = in.readInt();
+        if (numImages < 0) {
+            throw new IOException("corrupt pxc table of contents");
+        }
+        for (int i = 0; i < numImages; i++) {
+            index.images.add(ImageEntry.read(in, tocOffset));
+        }
+        if (in.readBoolean()) {
+            index.preview = ImageEntry.read(in, tocOffset);
+        }
+        return index;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int numRead = channel.read(dest, position + dest.position());
+            if (numRead < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    /**
+     * The location of an image's compressed chunks.
+     */
+    static class ImageEntry {
+        private final int width;
+        private final int height;
+        private final int type;
+        private final int rowsPerChunk;
+        private final long[] chunkOffsets;
+        private final int[] chunkLengths;
+
+        ImageEntry(int width, int height, int type, int rowsPerChunk,
+                   long[] chunkOffsets, int[] chunkLengths) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.rowsPerChunk = rowsPerChunk;
+            this.chunkOffsets = chunkOffsets;
+            this.chunkLengths = chunkLengths;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        int getType() {
+            return type;
+        }
+
+        int getNumChunks() {
+            return chunkOffsets.length;
+        }
+
+        int getChunkStartY(int chunk) {
+            return chunk * rowsPerChunk;
+        }
+
+        int getChunkEndY(int chunk) {
+            return Math.min(height, (chunk + 1) * rowsPerChunk);
+        }
+
+        int getChunkIndex(int y) {
+            return y / rowsPerChunk;
+        }
+
+        /**
+         * Reads all the compressed chunks, see {@link #readChunk(FileChannel, int)}.
+         */
+        ByteBuffer[] readChunks(FileChannel channel) throws IOException {
+            int numChunks = chunkOffsets.length;
+            ByteBuffer[] chunks = new ByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                chunks[i] = readChunk(channel, i);
+            }
+            return chunks;
+        }
+
+        /**
+         * Reads the given compressed chunk into a heap buffer, with a positional
+         * read, so it can be called from several threads. The chunks are not
+         * memory-mapped, because a mapping stays alive until it's garbage
+         * collected, and on Windows it prevents saving over the same file.
+         */
+        ByteBuffer readChunk(FileChannel channel, int chunk) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkLengths[chunk]);
+            readFully(channel, buffer, chunkOffsets[chunk]);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void write(DataOutput out) throws IOException {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(type);
+            out.writeInt(rowsPerChunk);
+            out.writeInt(chunkOffsets.length);
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                out.writeLong(chunkOffsets[i]);
+                out.writeInt(chunkLengths[i]);
+            }
+        }
+
+        private static ImageEntry read(DataInput in, long dataEnd) throws IOException {
+            int width = in.readInt();
+            int height = in.readInt();
+            int type = in.readInt();
+            int rowsPerChunk = in.readInt();
+            int numChunks = in.readInt();
+            if (width <= 0 || height <= 0 || rowsPerChunk <= 0
+                || numChunks != ImageChunks.calcNumChunks(height, rowsPerChunk)) {
+                throw new IOException("corrupt pxc image entry");
+            }
+
+            long[] offsets = new long[numChunks];
+            int[] lengths = new int[numChunks];
+            long prevEnd = HEADER_SIZE;
+            for (int i = 0; i < numChunks; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                // the chunks must be in increasing order (this is assumed
+                // by the mapping), and they must be before the index
+                if (offsets[i] < prevEnd || lengths[i] < 0
+                    || offsets[i] + lengths[i] > dataEnd) {
+                    throw new IOException("corrupt pxc image entry");
+                }
+                prevEnd = offsets[i] + lengths[i];
+            }
+            return new ImageEntry(width, height, type, rowsPerChunk, offsets, lengths);
+        }
+    }
+}
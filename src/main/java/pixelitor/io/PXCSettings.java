@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import java.io.File;
+
+/**
+ * Settings for writing PXC files
+ */
+public class PXCSettings extends SaveSettings {
+    private final PXCCodec codec;
+
+    public PXCSettings(PXCCodec codec, File outputFile) {
+        super(FileFormat.PXC, outputFile);
+        this.codec = codec;
+    }
+
+    public static PXCSettings from(SaveSettings settings) {
+        assert settings.getFormat() == FileFormat.PXC;
+        if (settings instanceof PXCSettings) {
+            return (PXCSettings) settings;
+        }
+        return new PXCSettings(PXCCodec.getDefault(), settings.getFile());
+    }
+
+    public PXCCodec getCodec() {
+        return codec;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static pixelitor.utils.Threads.calledOnEDT;
+import static pixelitor.utils.Threads.threadInfo;
+
+/**
+ * A read-only {@link BufferedImage} whose pixels are rendered on demand
+ * in horizontal strips. The image writers read the pixels row by row
+ * (top-down or bottom-up), so only the last rendered strip has to be kept
+ * in memory, and a huge image can be written without allocating all its pixels.
+ *
+ * The pixels must be read by only one thread.
+ */
+class StripImage {
+    // the strips are about this large
+    private static final int STRIP_PIXELS = 1 << 22;
+
+    // smaller images are written from the cached composite image
+    private static final long MIN_STREAMED_PIXELS = 1 << 24;
+
+    private final int width;
+    private final int height;
+    private final int stripHeight;
+    private final ObjIntConsumer<BufferedImage> renderer;
+    private final Function<BufferedImage, BufferedImage> converter;
+
+    // the premultiplied image into which the strips are rendered
+    private final BufferedImage renderedStrip;
+
+    // the converted pixels of the current strip
+    private DataBuffer stripData;
+    private int stripStartY = -1;
+    private int scanlineStride;
+
+    private StripImage(int width, int height,
+                       ObjIntConsumer<BufferedImage> renderer,
+                       Function<BufferedImage, BufferedImage> converter) {
+        this.width = width;
+        this.height = height;
+        this.renderer = renderer;
+        this.converter = converter;
+
+        stripHeight = Math.max(1, Math.min(height, STRIP_PIXELS / width));
+        renderedStrip = new BufferedImage(width, stripHeight, TYPE_INT_ARGB_PRE);
+    }
+
+    /**
+     * Returns the supplier of the composite image of the given composition
+     * for writing, converted with the given converter (if not null), which
+     * must work on each strip independently. The composite image of a large
+     * composition is rendered strip by strip while it's written.
+     *
+     * This must be called on the EDT, because the cached composite image
+     * or the snapshot of the layers is taken here. The supplier can be
+     * called on the IO thread, because it only uses these.
+     */
+    static Supplier<BufferedImage> compositeForWriting(Composition comp,
+                                                       Function<BufferedImage, BufferedImage> converter) {
+        assert calledOnEDT() : threadInfo();
+
+        int width = comp.getCanvasWidth();
+        int height = comp.getCanvasHeight();
+        long numPixels = ((long) width) * height;
+        if (numPixels >= MIN_STREAMED_PIXELS && numPixels <= Integer.MAX_VALUE
+            && comp.canRenderCompositeInStrips()) {
+            // the live layers can be edited while the strips are rendered
+            Composition snapshot = comp.createStripRenderingSnapshot();
+            if (snapshot != null) {
+                return () -> create(width, height, snapshot::renderCompositeStrip, converter);
+            }
+        }
+
+        BufferedImage img = comp.getCompositeImage();
+        if (converter != null) {
+            return () -> converter.apply(img);
+        }
+        return () -> img;
+    }
+
+    /**
+     * Returns a width x height image whose strips are rendered
+     * into an empty, premultiplied, image-wide image by the given renderer.
+     * Every strip is converted with the given converter (if not null)
+     * before its pixels are read, so the converter must work
+     * on each strip independently.
+     */
+    static BufferedImage create(int width, int height,
+                                ObjIntConsumer<BufferedImage> renderer,
+                                Function<BufferedImage, BufferedImage> converter) {
+        if (((long) width) * height > Integer.MAX_VALUE) {
+            // the Java2D raster addressing uses int indexes
+            throw new IllegalStateException(width + "x" + height
+                + " is too large for a BufferedImage");
+        }
+        return new StripImage(width, height, renderer, converter).asBufferedImage();
+    }
+
+    private BufferedImage asBufferedImage() {
+        // the color and sample models of the converted strips are used
+        BufferedImage firstStrip = loadStrip(0);
+        ColorModel colorModel = firstStrip.getColorModel();
+        SampleModel sampleModel = firstStrip.getSampleModel()
+            .createCompatibleSampleModel(width, height);
+        WritableRaster raster = Raster.createWritableRaster(
+            sampleModel, new StripDataBuffer(stripData.getDataType()), null);
+        return new BufferedImage(colorModel, raster,
+            colorModel.isAlphaPremultiplied(), null);
+    }
+
+    private BufferedImage loadStrip(int startY) {
+        int stripRows = Math.min(stripHeight, height - startY);
+        BufferedImage strip = renderedStrip;
+        if (stripRows != stripHeight) { // the last strip
+            strip = renderedStrip.getSubimage(0, 0, width, stripRows);
+        }
+        // the strip is reused, but the renderer expects an empty image
+        Arrays.fill(((DataBufferInt) renderedStrip.getRaster().getDataBuffer()).getData(), 0);
+        renderer.accept(strip, startY);
+
+        if (converter != null) {
+            strip = converter.apply(strip);
+        }
+
+        stripData = strip.getRaster().getDataBuffer();
+        SampleModel sm = strip.getSampleModel();
+        scanlineStride = sm instanceof ComponentSampleModel
+            ? ((ComponentSampleModel) sm).getScanlineStride()
+            : ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        stripStartY = startY;
+        return strip;
+    }
+
+    private int toStripIndex(int i) {
+        int y = i / scanlineStride;
+        if (y < stripStartY || y >= stripStartY + stripHeight) {
+            loadStrip(y - y % stripHeight);
+        }
+        return i - stripStartY * scanlineStride;
+    }
+
+    /**
+     * A data buffer that maps the element indexes
+     * of the whole image to the current strip.
+     */
+    private class StripDataBuffer extends DataBuffer {
+        StripDataBuffer(int dataType) {
+            super(dataType, scanlineStride * height);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            // the index must be calculated before reading
+            // the stripData field, because it can load a new strip
+            int stripIndex = toStripIndex(i);
+            return stripData.getElem(stripIndex);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.OpenImages;
+import pixelitor.filters.Fade;
+import pixelitor.filters.Filter;
+import pixelitor.filters.ParametrizedFilter;
+import pixelitor.filters.gui.FilterState;
+import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.gui.utils.Dialogs;
+import pixelitor.history.History;
+import pixelitor.history.PixelitorEdit;
+import pixelitor.layers.Drawable;
+import pixelitor.utils.Messages;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static pixelitor.utils.Threads.*;
+
+/**
+ * The full-resolution image file behind a composition that was opened
+ * as a subsampled preview, so that edits can be prototyped quickly
+ * on a huge image. All the edits of the preview are recorded, and
+ * the filters applied to the original layer before any other edit
+ * can be re-applied to the full-resolution image in the background.
+ */
+public class SubsampledSource {
+    public static final int[] SUBSAMPLING_FACTORS = {2, 4, 8};
+
+    private final File file;
+    private final int subsampling;
+
+    // the layer that was read from the file
+    private final Drawable originalLayer;
+
+    // the edits of the preview (and of the compositions that replaced it,
+    // for example by cropping) in the order in which they were made
+    private final List<RecordedEdit> recordedEdits = new ArrayList<>();
+
+    static {
+        History.addUndoableEditListener(e -> editAdded((PixelitorEdit) e.getEdit()));
+    }
+
+    private SubsampledSource(File file, int subsampling, Drawable originalLayer) {
+        this.file = file;
+        this.subsampling = subsampling;
+        this.originalLayer = originalLayer;
+    }
+
+    /**
+     * Opens the given file at 1/subsampling of its resolution.
+     */
+    public static CompletableFuture<Composition> openAsync(File file, int subsampling) {
+        return CompletableFuture
+            .supplyAsync(() -> TrackedIO.readSubsampled(file, subsampling), onDecodingThreads)
+            .thenApplyAsync(img -> {
+                String name = format("%s (1/%d)", file.getName(), subsampling);
+                // no file is set, so that the preview can't overwrite the original
+                var comp = Composition.fromImage(img, null, name);
+                comp.setSubsampledSource(new SubsampledSource(
+                    file, subsampling, comp.getActiveDrawableOrThrow()));
+                OpenImages.addAsNewComp(comp);
+                Messages.showInStatusBar(format("<b>%s</b> was opened at 1/%d resolution.",
+                    file.getName(), subsampling));
+                return comp;
+            }, onEDT)
+            .whenComplete((comp, e) -> IO.checkForReadingProblems(e));
+    }
+
+    private static void editAdded(PixelitorEdit edit) {
+        // null is posted when all the edits are discarded
+        if (edit == null || edit.getComp() == null) {
+            return;
+        }
+        SubsampledSource source = edit.getComp().getSubsampledSource();
+        if (source != null && edit.makesDirty()) {
+            // the selection changes are ignored, because they
+            // don't change the pixels by themselves
+            source.recordEdit(edit);
+        }
+    }
+
+    private void recordEdit(PixelitorEdit edit) {
+        for (RecordedEdit recorded : recordedEdits) {
+            if (recorded.edit == edit) {
+                return; // posted again after an undo or a redo
+            }
+        }
+        recordedEdits.add(new RecordedEdit(edit));
+    }
+
+    /**
+     * Called after the given filter was applied to the given drawable.
+     */
+    public static void filterApplied(Filter filter, Drawable dr) {
+        SubsampledSource source = dr.getComp().getSubsampledSource();
+        if (source != null) {
+            source.recordFilter(filter, dr);
+        }
+    }
+
+    private void recordFilter(Filter filter, Drawable dr) {
+        if (recordedEdits.isEmpty()) {
+            return;
+        }
+        // the edit of the filter was already recorded when
+        // it was added to the history, now it can be completed
+        int lastIndex = recordedEdits.size() - 1;
+        RecordedEdit last = recordedEdits.get(lastIndex);
+        if (last.edit != History.getLastEdit() || last.filter != null
+            || !last.edit.getName().equals(filter.getName())) {
+            return; // the filter didn't change the image, or it was already recorded
+        }
+
+        FilterState state = null;
+        if (filter instanceof ParametrizedFilter) {
+            state = ((ParametrizedFilter) filter).getParamSet().copyState(false);
+        }
+        recordedEdits.set(lastIndex, new RecordedEdit(last.edit, filter, state,
+            canBeReapplied(filter, dr)));
+    }
+
+    private boolean canBeReapplied(Filter filter, Drawable dr) {
+        if (dr != originalLayer || dr.getComp().hasSelection()) {
+            return false;
+        }
+        if (filter instanceof Fade) {
+            // depends on the previous edit
+            return false;
+        }
+        if (!filter.canCreateNewInstance()) {
+            // an independent instance is needed for the background run
+            return false;
+        }
+        if (filter instanceof ParametrizedFilter) {
+            // only the filters supporting progressive previews
+            // can scale their pixel distance params
+            return ((ParametrizedFilter) filter).supportsProgressivePreview();
+        }
+        // the settings of the other filters with a GUI can't be captured
+        return !(filter instanceof FilterWithGUI);
+    }
+
+    /**
+     * Re-applies the filters that were applied to the active
+     * subsampled composition (and not undone) before any other edit
+     * to the full-resolution image in the background, and opens
+     * the result as a new image.
+     */
+    public static void reapplyActiveToFullResolution() {
+        Composition comp = OpenImages.getActiveComp();
+        if (comp == null || comp.getSubsampledSource() == null) {
+            Messages.showInfo("Not a Preview",
+                "The active image was not opened as a preview.");
+            return;
+        }
+        comp.getSubsampledSource().reapplyToFullResolution();
+    }
+
+    private void reapplyToFullResolution() {
+        List<RecordedEdit> applied = recordedEdits.stream()
+            .filter(re -> !re.edit.isUndone())
+            .collect(toList());
+
+        // the edits after the first one that can't be re-applied (for example
+        // a brush stroke or a crop) were made on its result, so they can't
+        // be re-applied on the original image either
+        int numReapplied = 0;
+        while (numReapplied < applied.size() && applied.get(numReapplied).canBeReapplied) {
+            numReapplied++;
+        }
+        if (numReapplied == 0) {
+            Messages.showInfo("Nothing to Re-apply",
+                "No filters that can be re-applied were used on this preview before the other edits.");
+            return;
+        }
+        List<RecordedEdit> reapplied = applied.subList(0, numReapplied);
+        if (numReapplied < applied.size()) {
+            String skipped = applied.subList(numReapplied, applied.size()).stream()
+                .map(re -> "<li>" + re.edit.getName())
+                .collect(joining());
+            String msg = "<html>The following edits can't be re-applied, because they aren't filters, " +
+                "or they were used on another layer or on a selection, or their settings can't " +
+                "be recorded or scaled to the full resolution, or they were made after such an edit:" +
+                "<ul>" + skipped + "</ul>Do you want to re-apply the filters before them?";
+            if (!Dialogs.showYesNoQuestionDialog("Re-apply to Full Resolution", msg)) {
+                return;
+            }
+        }
+
+        // independent filter instances are configured on the EDT, so that
+        // the user can go on with the same filters in the meantime
+        List<Filter> filters = new ArrayList<>(reapplied.size());
+        for (RecordedEdit re : reapplied) {
+            filters.add(re.createFilter());
+        }
+
+        Messages.showInStatusBar(format("Re-applying %d filters to <b>%s</b>...",
+            filters.size(), file.getName()));
+        CompletableFuture
+            .supplyAsync(() -> {
+                BufferedImage img = TrackedIO.uncheckedRead(file);
+                for (Filter filter : filters) {
+                    img = applyAtFullResolution(filter, img);
+                }
+                return img;
+            }, onDecodingThreads)
+            .thenAcceptAsync(img -> {
+                var fullComp = Composition.fromImage(img, null, file.getName());
+                fullComp.setDirty(true);
+                OpenImages.addAsNewComp(fullComp);
+                Messages.showInStatusBar(format("The filters were re-applied to <b>%s</b>.",
+                    file.getName()));
+            }, onEDT)
+            .whenComplete((v, e) -> IO.checkForReadingProblems(e));
+    }
+
+    private BufferedImage applyAtFullResolution(Filter filter, BufferedImage img) {
+        if (filter instanceof ParametrizedFilter) {
+            // the pixel distances were chosen on the subsampled image,
+            // and only progressive filters are recorded, so they can be scaled
+            return ((ParametrizedFilter) filter).transformScaled(img, subsampling);
+        }
+        return filter.transformImage(img);
+    }
+
+    /**
+     * An edit of the subsampled image. Only the filters can be re-applied.
+     */
+    private static class RecordedEdit {
+        // the edit is used to find out later whether it was undone
+        private final PixelitorEdit edit;
+
+        private final Filter filter;
+        private final FilterState state;
+        private final boolean canBeReapplied;
+
+        private RecordedEdit(PixelitorEdit edit) {
+            this(edit, null, null, false);
+        }
+
+        private RecordedEdit(PixelitorEdit edit, Filter filter,
+                             FilterState state, boolean canBeReapplied) {
+            this.edit = edit;
+            this.filter = filter;
+            this.state = state;
+            this.canBeReapplied = canBeReapplied;
+        }
+
+        private Filter createFilter() {
+            Filter newFilter = filter.createNewInstance();
+            if (state != null) {
+                ((ParametrizedFilter) newFilter).getParamSet().applyState(state);
+            }
+            return newFilter;
+        }
+    }
+}
@@ -204,6 +204,38 @@ public class TrackedIO {
         return image;
     }
 
+    /**
+     * Reads only every n-th pixel of every n-th row of the
+     * given file, where n is the given subsampling factor.
+     */
+    public static BufferedImage readSubsampled(File file, int subsampling) {
+        var tracker = new StatusBarProgressTracker(
+            "Reading " + file.getName(), 100);
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw DecodingException.normal(file, null);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true);
+                reader.addIIOReadProgressListener(new TrackerReadProgressListener(tracker));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (DecodingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw DecodingException.normal(file, e);
+        }
+    }
+
     /**
      * Reads a subsampled image. It requires far less memory,
      * can be almost twice as fast as reading all pixels,
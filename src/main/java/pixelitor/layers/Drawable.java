@@ -21,6 +21,7 @@ import pixelitor.Composition;
 import pixelitor.FilterContext;
 
 import java.awt.Composite;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
@@ -83,6 +84,23 @@ public interface Drawable {
 
     void updateIconImage();
 
+    /**
+     * Signals that the pixels of the image might have changed anywhere.
+     */
+    void invalidateContentRect();
+
+    /**
+     * Signals that the pixels of the image might have changed
+     * inside the given region, which is given in canvas coordinates.
+     */
+    void contentRegionChanged(Rectangle region);
+
+    /**
+     * Returns a number that changes every time
+     * the pixels of the image might have changed.
+     */
+    int getPixelsVersion();
+
     Composition getComp();
 
     int getTx();
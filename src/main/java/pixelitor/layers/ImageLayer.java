@@ -28,6 +28,7 @@ import pixelitor.tools.Tools;
 import pixelitor.utils.ImageTrimUtil;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
+import pixelitor.utils.TiledImage;
 import pixelitor.utils.VisibleForTesting;
 import pixelitor.utils.debug.Debug;
 import pixelitor.utils.test.Assertions;
@@ -98,12 +99,22 @@ public class ImageLayer extends ContentLayer implements Drawable {
      */
     private transient Rectangle trimmedBoundingBox;
 
+    /**
+     * The bounds of the non-transparent pixels of the image (relative
+     * to the image), or null if it must be recalculated.
+     * It's empty if the image is fully transparent.
+     */
+    private transient Rectangle contentRect;
+
     /**
      * Whether the preview image is different from the normal image
      * It makes sense only in PREVIEW mode
      */
     private transient boolean imageContentChanged = false;
 
+    // incremented when the image is replaced or its icon is updated
+    private transient int pixelsVersion;
+
     private ImageLayer(Composition comp, String name) {
         super(comp, name);
     }
@@ -238,6 +249,9 @@ public class ImageLayer extends ContentLayer implements Drawable {
         filterSourceImage = null;
         image = null;
         trimmedBoundingBox = null;
+        contentRect = null;
+
+        pixelsVersion = 0;
 
         in.defaultReadObject();
         setImage(PXCFormat.deserializeImage(in));
@@ -284,6 +298,24 @@ public class ImageLayer extends ContentLayer implements Drawable {
         return new ImageLayer(comp, imageCopy, duplicateName, getTx(), getTy());
     }
 
+    /**
+     * Returns a copy of this layer for rendering on another thread, which
+     * shares the tiles of the tiled image with this layer (copy-on-write).
+     */
+    public ImageLayer createTiledSnapshot() {
+        assert TiledImage.isTiled(image);
+
+        BufferedImage imageSnapshot = TiledImage.from(image).snapshot().asBufferedImage();
+        var snapshot = new ImageLayer(comp, imageSnapshot, name, getTx(), getTy());
+        snapshot.setOpacity(getOpacity(), false);
+        snapshot.setBlendingMode(getBlendingMode(), false);
+        if (hasMask()) {
+            // the masks are not tiled, but they use only one byte per pixel
+            snapshot.mask = mask.duplicate(snapshot);
+        }
+        return snapshot;
+    }
+
     @Override
     public BufferedImage getImage() {
         return image;
@@ -378,7 +410,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
     // because normal image layers are enlarged with transparent pixels
     // and layer masks are enlarged with white pixels
     protected BufferedImage createEmptyImageForLayer(int width, int height) {
-        return ImageUtils.createSysCompatibleImage(width, height);
+        return TiledImage.createImage(width, height);
     }
 
     @Override
@@ -466,6 +498,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
     public void setImage(BufferedImage newImage) {
         BufferedImage oldRef = image;
         image = requireNonNull(newImage);
+        pixelsVersion++;
         imageRefChanged();
 
         assert Assertions.checkRasterMinimum(newImage);
@@ -528,15 +561,16 @@ public class ImageLayer extends ContentLayer implements Drawable {
         assert state == PREVIEW || state == SHOW_ORIGINAL;
         assert previewImage != null;
 
+        ImageEdit edit = null;
         if (imageContentChanged) {
-            var edit = new ImageEdit(filterName, comp, this,
+            edit = new ImageEdit(filterName, comp, this,
                 getSelectedSubImage(true),
                 false);
-            History.add(edit);
         }
 
         image = previewImage;
         imageRefChanged();
+        contentRect = null;
 
         if (imageContentChanged) {
             updateIconImage();
@@ -548,6 +582,13 @@ public class ImageLayer extends ContentLayer implements Drawable {
         boolean wasShowOriginal = state == SHOW_ORIGINAL;
         setState(NORMAL);
 
+        // added only now, because the backup can be stored
+        // as a delta only after the filtered image is set
+        if (edit != null) {
+            edit.storeBackupAsDelta();
+            History.add(edit);
+        }
+
         if (wasShowOriginal) {
             comp.update();
         }
@@ -645,6 +686,8 @@ public class ImageLayer extends ContentLayer implements Drawable {
         assert imageForUndo != null;
         var edit = new ImageEdit(filterName, comp, this,
             imageForUndo, false);
+        // filters often change only a part of the image
+        edit.storeBackupAsDelta();
         History.add(edit);
 
         // otherwise the next filter run will take the old image source,
@@ -671,6 +714,54 @@ public class ImageLayer extends ContentLayer implements Drawable {
 
     private void invalidateTrimCache() {
         trimmedBoundingBox = null;
+        contentRect = null;
+    }
+
+    @Override
+    public void invalidateContentRect() {
+        contentRect = null;
+    }
+
+    @Override
+    public void contentRegionChanged(Rectangle region) {
+        trimmedBoundingBox = null;
+        if (contentRect == null || region.isEmpty()) {
+            return;
+        }
+        Rectangle imRegion = new Rectangle(region);
+        imRegion.translate(-getTx(), -getTy());
+        imRegion = imRegion.intersection(
+            new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        if (imRegion.isEmpty()) {
+            return;
+        }
+        if (contentRect.isEmpty()) {
+            contentRect = imRegion;
+        } else {
+            contentRect.add(imRegion);
+        }
+    }
+
+    /**
+     * Returns the bounds of the non-transparent pixels of the image
+     * relative to the image. It's empty if the image is fully transparent.
+     */
+    public Rectangle getContentRect() {
+        if (contentRect == null) {
+            contentRect = ImageTrimUtil.getContentBounds(image);
+        }
+        return new Rectangle(contentRect);
+    }
+
+    /**
+     * Returns the content rectangle only if it's already
+     * known, otherwise null. It doesn't scan the image.
+     */
+    public Rectangle getKnownContentRect() {
+        if (contentRect == null) {
+            return null;
+        }
+        return new Rectangle(contentRect);
     }
 
     @Override
@@ -989,6 +1080,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         Graphics2D g = image.createGraphics();
         tmpDrawingLayer.paintOn(g, -getTx(), -getTy());
         g.dispose();
+        invalidateContentRect();
 
         tmpDrawingLayer.dispose();
         tmpDrawingLayer = null;
@@ -1081,7 +1173,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
             paintLayerOnGraphicsWOTmpLayer(g, visibleImage, firstVisibleLayer);
         } else { // we are in the middle of a brush draw
             if (isNormalAndOpaque()) {
-                g.drawImage(visibleImage, getTx(), getTy(), null);
+                drawContent(g, visibleImage);
                 tmpDrawingLayer.paintOn(g, 0, 0);
             } else { // layer is not in normal mode
                 // first create a merged layer-brush image
@@ -1106,8 +1198,36 @@ public class ImageLayer extends ContentLayer implements Drawable {
         if (Tools.isShapesDrawing() && isActive() && !isMaskEditing()) {
             paintDraggedShapesIntoActiveLayer(g, visibleImage, firstVisibleLayer);
         } else { // the simple case
+            drawContent(g, visibleImage);
+        }
+    }
+
+    /**
+     * Draws the given visible image, but skips its fully transparent
+     * areas if the image is the layer's own image with known content bounds.
+     */
+    private void drawContent(Graphics2D g, BufferedImage visibleImage) {
+        if (visibleImage != image || this instanceof LayerMask) {
             g.drawImage(visibleImage, getTx(), getTy(), null);
+            return;
+        }
+
+        Rectangle content = getContentRect();
+        if (content.isEmpty()) {
+            return; // transparent pixels don't change anything
         }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (content.width == width && content.height == height) {
+            g.drawImage(image, getTx(), getTy(), null);
+            return;
+        }
+        int x = getTx() + content.x;
+        int y = getTy() + content.y;
+        g.drawImage(image,
+            x, y, x + content.width, y + content.height,
+            content.x, content.y, content.x + content.width, content.y + content.height,
+            null);
     }
 
     protected void paintDraggedShapesIntoActiveLayer(Graphics2D g,
@@ -1152,14 +1272,21 @@ public class ImageLayer extends ContentLayer implements Drawable {
         }
     }
 
+    @Override
+    public int getPixelsVersion() {
+        return pixelsVersion;
+    }
+
     // called when the image variable points to a new reference
     protected void imageRefChanged() {
-        // empty here, but overridden in LayerMask
-        // to update the transparency image
+        // the new image can have its content anywhere
+        contentRect = null;
     }
 
     @Override
     public void updateIconImage() {
+        // the icon is updated after every change of the pixels
+        pixelsVersion++;
         if (ui != null) {
             ui.updateLayerIconImageAsync(this);
         }
@@ -1200,6 +1327,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
 
     public void convertMode(ImageMode mode) {
         image = mode.convert(image);
+        invalidateTrimCache();
     }
 
     @Override
@@ -177,6 +177,14 @@ public abstract class Layer implements Serializable {
         return visible;
     }
 
+    /**
+     * Whether this layer is applied by transforming the
+     * whole image below it (adjustment layer or watermarked text)
+     */
+    public boolean isAdjustment() {
+        return isAdjustment;
+    }
+
     public void setVisible(boolean newVisibility, boolean addToHistory) {
         if (visible == newVisibility) {
             return;
@@ -546,16 +554,27 @@ public abstract class Layer implements Serializable {
     public abstract void paintLayerOnGraphics(Graphics2D g, boolean firstVisibleLayer);
 
     /**
-     * Returns the masked image for the non-adjustment case.
-     * The returned image is canvas-sized, and the masks and the
+     * Paints the masked image for the non-adjustment case.
+     * The masked image covers the canvas (or only its clipped
+     * part, if the graphics has a clip), and the masks and the
      * translations are taken into account
      */
     private void paintLayerOnGraphicsWithMask(Graphics2D g, boolean firstVisibleLayer) {
+        Rectangle area = new Rectangle(0, 0,
+            comp.getCanvasWidth(), comp.getCanvasHeight());
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(clip);
+            if (area.isEmpty()) {
+                return;
+            }
+        }
+
         // 1. create the masked image
         // TODO the masked image should be cached
-        var maskedImage = new BufferedImage(
-            comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        var maskedImage = new BufferedImage(area.width, area.height, TYPE_INT_ARGB);
         Graphics2D mig = maskedImage.createGraphics();
+        mig.translate(-area.x, -area.y);
         paintLayerOnGraphics(mig, firstVisibleLayer);
         mig.setComposite(DstIn);
         mig.drawImage(mask.getTransparencyImage(),
@@ -564,7 +583,7 @@ public abstract class Layer implements Serializable {
 
         // 2. paint the masked image onto the graphics
         setupDrawingComposite(g, firstVisibleLayer);
-        g.drawImage(maskedImage, 0, 0, null);
+        g.drawImage(maskedImage, area.x, area.y, null);
     }
 
     /**
@@ -30,6 +30,7 @@ import javax.swing.*;
 import javax.swing.border.Border;
 import java.awt.Color;
 import java.awt.EventQueue;
+import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
@@ -383,13 +384,26 @@ public class LayerButton extends JToggleButton implements LayerUI {
 
         BufferedImage img = layer.getCanvasSizedSubImage();
 
+        // the transparent areas of the layer are not scaled down,
+        // if they are known without scanning the image
+        Rectangle content = null;
+        if (!isMask) {
+            content = layer.getKnownContentRect();
+            if (content != null) {
+                content.translate(layer.getTx(), layer.getTy());
+                content = content.intersection(
+                    new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+            }
+        }
+        Rectangle thumbContent = content;
+
         Runnable notEDT = () -> {
             CheckerboardPainter painter = null;
             if (!isMask) {
                 painter = checkerBoardPainter;
             }
 
-            BufferedImage thumb = createThumbnail(img, thumbSize, painter);
+            BufferedImage thumb = createThumbnail(img, thumbSize, painter, thumbContent);
 
             SwingUtilities.invokeLater(() ->
                 updateIconOnEDT(layer, isMask, thumb));
@@ -131,6 +131,7 @@ public class LayerMask extends ImageLayer {
 
     @Override
     protected void imageRefChanged() {
+        super.imageRefChanged();
         updateFromBWImage();
     }
 
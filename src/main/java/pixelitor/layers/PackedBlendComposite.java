@@ -0,0 +1,500 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.ProgressTracker;
+
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.CompositeContext;
+import java.awt.RenderingHints;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A composite for the non-normal blending modes, which blends packed
+ * int ARGB rasters directly in their arrays, with one specialized loop
+ * per blending mode, and with the rows split into parallel bands.
+ * The results are the same as the results of the corresponding
+ * com.jhlabs.composite composites, which are used for all other rasters.
+ */
+public class PackedBlendComposite implements Composite {
+    private final BlendingMode mode;
+    private final float alpha;
+    private final Composite fallback;
+
+    public PackedBlendComposite(BlendingMode mode, float alpha, Composite fallback) {
+        assert mode != BlendingMode.NORMAL;
+
+        this.mode = mode;
+        this.alpha = alpha;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public CompositeContext createContext(ColorModel srcColorModel,
+                                          ColorModel dstColorModel,
+                                          RenderingHints hints) {
+        CompositeContext fallbackContext = fallback.createContext(
+            srcColorModel, dstColorModel, hints);
+        return new Context(fallbackContext);
+    }
+
+    private class Context implements CompositeContext {
+        private final CompositeContext fallbackContext;
+
+        private Context(CompositeContext fallbackContext) {
+            this.fallbackContext = fallbackContext;
+        }
+
+        @Override
+        public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
+            if (!isPackedARGB(src) || !isPackedARGB(dstIn) || !isPackedARGB(dstOut)) {
+                fallbackContext.compose(src, dstIn, dstOut);
+                return;
+            }
+
+            int width = Math.min(dstOut.getWidth(), Math.min(src.getWidth(), dstIn.getWidth()));
+            int height = Math.min(dstOut.getHeight(), Math.min(src.getHeight(), dstIn.getHeight()));
+            var srcPixels = new PackedPixels(src);
+            var dstInPixels = new PackedPixels(dstIn);
+            var dstOutPixels = new PackedPixels(dstOut);
+
+            ThreadPool.processStrips(width, height, (startY, endY) -> {
+                // the HSB-based modes need some reusable scratch space
+                float[] sHSB = new float[3];
+                float[] dHSB = new float[3];
+                for (int y = startY; y < endY; y++) {
+                    blendRow(srcPixels.array, srcPixels.rowStart(y),
+                        dstInPixels.array, dstInPixels.rowStart(y),
+                        dstOutPixels.array, dstOutPixels.rowStart(y),
+                        width, sHSB, dHSB);
+                }
+            }, ProgressTracker.NULL_TRACKER);
+        }
+
+        @Override
+        public void dispose() {
+            fallbackContext.dispose();
+        }
+    }
+
+    private static boolean isPackedARGB(Raster raster) {
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)) {
+            return false;
+        }
+        if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return false;
+        }
+        int[] masks = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitMasks();
+        return masks.length == 4
+            && masks[0] == 0x00_FF_00_00
+            && masks[1] == 0x00_00_FF_00
+            && masks[2] == 0x00_00_00_FF
+            && masks[3] == 0xFF_00_00_00;
+    }
+
+    /**
+     * The location of the pixels of a packed int raster in its array.
+     */
+    private static class PackedPixels {
+        private final int[] array;
+        private final int firstPixel;
+        private final int scanlineStride;
+
+        PackedPixels(Raster raster) {
+            var sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            var dataBuffer = (DataBufferInt) raster.getDataBuffer();
+            array = dataBuffer.getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            firstPixel = dataBuffer.getOffset() + sampleModel.getOffset(
+                raster.getMinX() - raster.getSampleModelTranslateX(),
+                raster.getMinY() - raster.getSampleModelTranslateY());
+        }
+
+        int rowStart(int y) {
+            return firstPixel + y * scanlineStride;
+        }
+    }
+
+    private void blendRow(int[] src, int srcPos, int[] dst, int dstPos,
+                          int[] out, int outPos, int length,
+                          float[] sHSB, float[] dHSB) {
+        switch (mode) {
+            case DARKEN -> darken(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case MULTIPLY -> multiply(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case COLOR_BURN -> colorBurn(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case LIGHTEN -> lighten(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case SCREEN -> screen(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case COLOR_DODGE -> colorDodge(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case LINEAR_DODGE -> add(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case OVERLAY -> overlay(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case SOFT_LIGHT -> softLight(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case HARD_LIGHT -> hardLight(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case DIFFERENCE -> difference(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case EXCLUSION -> exclusion(src, srcPos, dst, dstPos, out, outPos, length, alpha);
+            case HUE -> hue(src, srcPos, dst, dstPos, out, outPos, length, alpha, sHSB, dHSB);
+            case SATURATION -> saturation(src, srcPos, dst, dstPos, out, outPos, length, alpha, sHSB, dHSB);
+            case COLOR -> color(src, srcPos, dst, dstPos, out, outPos, length, alpha, sHSB, dHSB);
+            case LUMINOSITY -> value(src, srcPos, dst, dstPos, out, outPos, length, alpha, sHSB, dHSB);
+            default -> throw new IllegalStateException("mode = " + mode);
+        }
+    }
+
+    // Multiply two numbers in the range 0..255 such that 255*255=255
+    private static int multiply255(int a, int b) {
+        int t = a * b + 0x80;
+        return ((t >> 8) + t) >> 8;
+    }
+
+    /**
+     * Mixes the blended color with the destination according to the
+     * source alpha and the opacity. Like the sample models, it keeps
+     * only the lowest 8 bits of the channels.
+     */
+    private static int mix(int dor, int dog, int dob, int sa, int dp, float alpha) {
+        float a = alpha * sa / 255.0f;
+        float ac = 1 - a;
+        int r = (int) (a * dor + ac * ((dp >> 16) & 0xFF));
+        int g = (int) (a * dog + ac * ((dp >> 8) & 0xFF));
+        int b = (int) (a * dob + ac * (dp & 0xFF));
+        int newAlpha = (int) (sa * alpha + (dp >>> 24) * ac);
+        return (newAlpha & 0xFF) << 24 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+    }
+
+    private static void darken(int[] src, int srcPos, int[] dst, int dstPos,
+                               int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = dir < sr ? dir : sr;
+            int dog = dig < sg ? dig : sg;
+            int dob = dib < sb ? dib : sb;
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void multiply(int[] src, int srcPos, int[] dst, int dstPos,
+                                 int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int t = dir * sr + 0x80;
+            int dor = ((t >> 8) + t) >> 8;
+            t = dig * sg + 0x80;
+            int dog = ((t >> 8) + t) >> 8;
+            t = dib * sb + 0x80;
+            int dob = ((t >> 8) + t) >> 8;
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void colorBurn(int[] src, int srcPos, int[] dst, int dstPos,
+                                  int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = sr != 0 ? Math.max(255 - (((255 - dir) << 8) / sr), 0) : sr;
+            int dog = sg != 0 ? Math.max(255 - (((255 - dig) << 8) / sg), 0) : sg;
+            int dob = sb != 0 ? Math.max(255 - (((255 - dib) << 8) / sb), 0) : sb;
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void lighten(int[] src, int srcPos, int[] dst, int dstPos,
+                                int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = dir > sr ? dir : sr;
+            int dog = dig > sg ? dig : sg;
+            int dob = dib > sb ? dib : sb;
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void screen(int[] src, int srcPos, int[] dst, int dstPos,
+                               int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int t = (255 - dir) * (255 - sr) + 0x80;
+            int dor = 255 - (((t >> 8) + t) >> 8);
+            t = (255 - dig) * (255 - sg) + 0x80;
+            int dog = 255 - (((t >> 8) + t) >> 8);
+            t = (255 - dib) * (255 - sb) + 0x80;
+            int dob = 255 - (((t >> 8) + t) >> 8);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void colorDodge(int[] src, int srcPos, int[] dst, int dstPos,
+                                   int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = sr != 255 ? Math.min((dir << 8) / (255 - sr), 255) : sr;
+            int dog = sg != 255 ? Math.min((dig << 8) / (255 - sg), 255) : sg;
+            int dob = sb != 255 ? Math.min((dib << 8) / (255 - sb), 255) : sb;
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void add(int[] src, int srcPos, int[] dst, int dstPos,
+                            int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = Math.min(dir + sr, 255);
+            int dog = Math.min(dig + sg, 255);
+            int dob = Math.min(dib + sb, 255);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void overlay(int[] src, int srcPos, int[] dst, int dstPos,
+                                int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = dir < 128 ? 2 * multiply255(dir, sr)
+                : 2 * (255 - multiply255(255 - dir, 255 - sr));
+            int dog = dig < 128 ? 2 * multiply255(dig, sg)
+                : 2 * (255 - multiply255(255 - dig, 255 - sg));
+            int dob = dib < 128 ? 2 * multiply255(dib, sb)
+                : 2 * (255 - multiply255(255 - dib, 255 - sb));
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void softLight(int[] src, int srcPos, int[] dst, int dstPos,
+                                  int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int d = multiply255(sr, dir);
+            int dor = d + multiply255(dir, 255 - multiply255(255 - dir, 255 - sr) - d);
+            d = multiply255(sg, dig);
+            int dog = d + multiply255(dig, 255 - multiply255(255 - dig, 255 - sg) - d);
+            d = multiply255(sb, dib);
+            int dob = d + multiply255(dib, 255 - multiply255(255 - dib, 255 - sb) - d);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void hardLight(int[] src, int srcPos, int[] dst, int dstPos,
+                                  int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = sr > 127 ? 255 - 2 * multiply255(255 - sr, 255 - dir) : 2 * multiply255(sr, dir);
+            int dog = sg > 127 ? 255 - 2 * multiply255(255 - sg, 255 - dig) : 2 * multiply255(sg, dig);
+            int dob = sb > 127 ? 255 - 2 * multiply255(255 - sb, 255 - dib) : 2 * multiply255(sb, dib);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void difference(int[] src, int srcPos, int[] dst, int dstPos,
+                                   int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = Math.abs(dir - sr);
+            int dog = Math.abs(dig - sg);
+            int dob = Math.abs(dib - sb);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void exclusion(int[] src, int srcPos, int[] dst, int dstPos,
+                                  int[] out, int outPos, int length, float alpha) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            int sr = (sp >> 16) & 0xFF;
+            int sg = (sp >> 8) & 0xFF;
+            int sb = sp & 0xFF;
+            int dir = (dp >> 16) & 0xFF;
+            int dig = (dp >> 8) & 0xFF;
+            int dib = dp & 0xFF;
+
+            int dor = dir + multiply255(sr, 255 - dir - dir);
+            int dog = dig + multiply255(sg, 255 - dig - dig);
+            int dob = dib + multiply255(sb, 255 - dib - dib);
+
+            out[outPos + i] = mix(dor, dog, dob, sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void hue(int[] src, int srcPos, int[] dst, int dstPos,
+                            int[] out, int outPos, int length, float alpha,
+                            float[] sHSB, float[] dHSB) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            Color.RGBtoHSB((sp >> 16) & 0xFF, (sp >> 8) & 0xFF, sp & 0xFF, sHSB);
+            Color.RGBtoHSB((dp >> 16) & 0xFF, (dp >> 8) & 0xFF, dp & 0xFF, dHSB);
+            dHSB[0] = sHSB[0];
+            int rgb = Color.HSBtoRGB(dHSB[0], dHSB[1], dHSB[2]);
+
+            out[outPos + i] = mix((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+                sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void saturation(int[] src, int srcPos, int[] dst, int dstPos,
+                                   int[] out, int outPos, int length, float alpha,
+                                   float[] sHSB, float[] dHSB) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            Color.RGBtoHSB((sp >> 16) & 0xFF, (sp >> 8) & 0xFF, sp & 0xFF, sHSB);
+            Color.RGBtoHSB((dp >> 16) & 0xFF, (dp >> 8) & 0xFF, dp & 0xFF, dHSB);
+            dHSB[1] = sHSB[1];
+            int rgb = Color.HSBtoRGB(dHSB[0], dHSB[1], dHSB[2]);
+
+            out[outPos + i] = mix((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+                sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void color(int[] src, int srcPos, int[] dst, int dstPos,
+                              int[] out, int outPos, int length, float alpha,
+                              float[] sHSB, float[] dHSB) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            Color.RGBtoHSB((sp >> 16) & 0xFF, (sp >> 8) & 0xFF, sp & 0xFF, sHSB);
+            Color.RGBtoHSB((dp >> 16) & 0xFF, (dp >> 8) & 0xFF, dp & 0xFF, dHSB);
+            dHSB[0] = sHSB[0];
+            dHSB[1] = sHSB[1];
+            int rgb = Color.HSBtoRGB(dHSB[0], dHSB[1], dHSB[2]);
+
+            out[outPos + i] = mix((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+                sp >>> 24, dp, alpha);
+        }
+    }
+
+    private static void value(int[] src, int srcPos, int[] dst, int dstPos,
+                              int[] out, int outPos, int length, float alpha,
+                              float[] sHSB, float[] dHSB) {
+        for (int i = 0; i < length; i++) {
+            int sp = src[srcPos + i];
+            int dp = dst[dstPos + i];
+            Color.RGBtoHSB((sp >> 16) & 0xFF, (sp >> 8) & 0xFF, sp & 0xFF, sHSB);
+            Color.RGBtoHSB((dp >> 16) & 0xFF, (dp >> 8) & 0xFF, dp & 0xFF, dHSB);
+            dHSB[2] = sHSB[2];
+            int rgb = Color.HSBtoRGB(dHSB[0], dHSB[1], dHSB[2]);
+
+            out[outPos + i] = mix((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+                sp >>> 24, dp, alpha);
+        }
+    }
+}
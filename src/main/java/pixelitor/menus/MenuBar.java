@@ -56,6 +56,7 @@ import pixelitor.history.UndoAction;
 import pixelitor.io.FileChoosers;
 import pixelitor.io.IO;
 import pixelitor.io.OptimizedJpegSavePanel;
+import pixelitor.io.SubsampledSource;
 import pixelitor.io.magick.ExportSettings;
 import pixelitor.io.magick.ImageMagick;
 import pixelitor.layers.*;
@@ -134,6 +135,20 @@ public class MenuBar extends JMenuBar {
             }
         }, CTRL_O);
 
+        fileMenu.add(new PAction("Open as Preview...") {
+            @Override
+            public void onClick() {
+                FileChoosers.openAsPreviewAsync();
+            }
+        });
+
+        fileMenu.add(new OpenImageEnabledAction("Re-apply to Full Resolution") {
+            @Override
+            public void onClick() {
+                SubsampledSource.reapplyActiveToFullResolution();
+            }
+        });
+
         // recent files
         JMenu recentFiles = RecentFilesMenu.getInstance();
         fileMenu.add(recentFiles);
@@ -970,6 +985,7 @@ public class MenuBar extends JMenuBar {
 
         sub.addFilter(JHDropShadow.NAME, JHDropShadow::new);
         sub.addFilter(Morphology.NAME, Morphology::new);
+        sub.addFilter(Rank.NAME, Rank::new);
         sub.addFilter("Random Filter", RandomFilter::new);
         sub.addFilter("Transform Layer", TransformLayer::new);
         sub.addFilter(Transition2D.NAME, Transition2D::new);
@@ -226,16 +226,26 @@ public class Selection {
     }
 
     public void modify(SelectionModifyType type, float amount) {
-        Stroke outlineStroke = new BasicStroke(amount);
-        Shape outlineShape = outlineStroke.createStrokedShape(shape);
+        var comp = view.getComp();
+        Shape backupShape = shape;
 
-        Area oldArea = new Area(shape);
-        Area outlineArea = new Area(outlineShape);
+        int morphologyOp = type.getMorphologyOp();
+        if (morphologyOp != SelectionModifyType.NO_MORPHOLOGY_OP
+            && ShapeMorphology.shouldRasterize(shape)) {
+            // expanding or contracting by half of the outline width
+            int radius = Math.max(1, Math.round(amount / 2));
+            shape = ShapeMorphology.morph(shape, morphologyOp, radius,
+                comp.getCanvas().getBounds());
+        } else {
+            Stroke outlineStroke = new BasicStroke(amount);
+            Shape outlineShape = outlineStroke.createStrokedShape(shape);
 
-        Shape backupShape = shape;
-        shape = type.modify(oldArea, outlineArea);
+            Area oldArea = new Area(shape);
+            Area outlineArea = new Area(outlineShape);
+
+            shape = type.modify(oldArea, outlineArea);
+        }
 
-        var comp = view.getComp();
         boolean notEmpty = clipToCanvasSize(comp);
         if (notEmpty) {
             var edit = new SelectionShapeChangeEdit(
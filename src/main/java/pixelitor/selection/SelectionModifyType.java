@@ -23,6 +23,9 @@ import pixelitor.gui.GUIText;
 import java.awt.Shape;
 import java.awt.geom.Area;
 
+import static pixelitor.filters.impl.MorphologyFilter.OP_DILATE;
+import static pixelitor.filters.impl.MorphologyFilter.OP_ERODE;
+
 /**
  * The "Type" in the "Modify Selection" dialog
  */
@@ -33,12 +36,22 @@ public enum SelectionModifyType {
             previous.add(outlineShape);
             return previous;
         }
+
+        @Override
+        public int getMorphologyOp() {
+            return OP_DILATE;
+        }
     }, CONTRACT("Contract") {
         @Override
         public Shape modify(Area previous, Area outlineShape) {
             previous.subtract(outlineShape);
             return previous;
         }
+
+        @Override
+        public int getMorphologyOp() {
+            return OP_ERODE;
+        }
     }, BORDER("Border") {
         @Override
         public Shape modify(Area previous, Area outlineShape) {
@@ -58,6 +71,8 @@ public enum SelectionModifyType {
         }
     };
 
+    public static final int NO_MORPHOLOGY_OP = 0;
+
     private final String guiName;
 
     SelectionModifyType(String guiName) {
@@ -70,6 +85,15 @@ public enum SelectionModifyType {
      */
     public abstract Shape modify(Area previous, Area outlineShape);
 
+    /**
+     * Returns the morphological operation that can calculate the new
+     * shape from a rasterized version of the existing one, or
+     * {@link #NO_MORPHOLOGY_OP} if the outline shape is always needed.
+     */
+    public int getMorphologyOp() {
+        return NO_MORPHOLOGY_OP;
+    }
+
     public static EnumParam<SelectionModifyType> asParam() {
         return new EnumParam<>(GUIText.TYPE, SelectionModifyType.class);
     }
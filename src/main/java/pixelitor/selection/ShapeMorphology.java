@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.selection;
+
+import pixelitor.filters.impl.MorphologyEngine;
+import pixelitor.utils.ProgressTracker;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.BitSet;
+
+import static java.awt.Color.WHITE;
+import static pixelitor.filters.impl.MorphologyFilter.KERNEL_DISK;
+
+/**
+ * Expands or contracts complex selection shapes by rasterizing them
+ * into a mask, applying a morphological operation to the mask with the
+ * {@link MorphologyEngine}, and tracing the outlines of the result.
+ */
+class ShapeMorphology {
+    // the area operations with the stroked outline get very slow
+    // for shapes with many segments, and for them the pixel-aligned
+    // outlines of the traced mask don't look worse than the original
+    private static final int MIN_RASTERIZED_SEGMENTS = 100;
+
+    // the directions along the outlines, in clockwise order
+    private static final int RIGHT = 0;
+    private static final int DOWN = 1;
+    private static final int LEFT = 2;
+    private static final int UP = 3;
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    // the left turn, going straight and the right turn, in the order of preference
+    private static final int[] TURNS = {3, 0, 1};
+
+    private ShapeMorphology() {
+    }
+
+    /**
+     * Returns true if the given shape should be modified
+     * through a mask instead of through its stroked outline.
+     */
+    static boolean shouldRasterize(Shape shape) {
+        int numSegments = 0;
+        for (var it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            numSegments++;
+            if (numSegments >= MIN_RASTERIZED_SEGMENTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the given morphological operation with a disk of the given
+     * radius to the rasterized shape, and returns the traced result.
+     * Only the parts of the result that are within the canvas are correct.
+     */
+    static Shape morph(Shape shape, int op, int radius, Rectangle canvasBounds) {
+        // the mask has an empty border around the shape that is
+        // wide enough for the expansion, and the parts of the shape
+        // that are farther from the canvas are not needed
+        int pad = radius + 1;
+        Rectangle maskBounds = shape.getBounds();
+        maskBounds.grow(pad, pad);
+        Rectangle neededBounds = new Rectangle(canvasBounds);
+        neededBounds.grow(pad, pad);
+        maskBounds = maskBounds.intersection(neededBounds);
+        if (maskBounds.isEmpty()) {
+            return new Rectangle();
+        }
+
+        int width = maskBounds.width;
+        int height = maskBounds.height;
+        var maskImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = maskImage.createGraphics();
+        g.translate(-maskBounds.x, -maskBounds.y);
+        g.setColor(WHITE);
+        g.fill(shape);
+        g.dispose();
+
+        byte[] mask = ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData();
+        MorphologyEngine.morph(mask, width, height, op, KERNEL_DISK, radius, ProgressTracker.NULL_TRACKER);
+
+        return traceOutlines(mask, width, height, maskBounds.x, maskBounds.y);
+    }
+
+    /**
+     * Traces the boundaries between the set and unset pixels of the mask
+     * along the pixel edges. The vertices are at the pixel corners, and the
+     * outlines go around the set pixels counter-clockwise (on the screen).
+     */
+    private static Shape traceOutlines(byte[] mask, int width, int height, int offsetX, int offsetY) {
+        Path2D path = new Path2D.Float(PathIterator.WIND_EVEN_ODD);
+
+        // the vertical edge below the vertex (x, y) is at y * (width + 1) + x
+        BitSet visitedEdges = new BitSet((width + 1) * height);
+
+        // every outline has a vertical edge, so each one is found by
+        // looking for a not yet visited vertical edge
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x <= width; x++) {
+                boolean leftIsSet = isSet(mask, width, height, x - 1, y);
+                boolean rightIsSet = isSet(mask, width, height, x, y);
+                if (leftIsSet == rightIsSet || visitedEdges.get(y * (width + 1) + x)) {
+                    continue;
+                }
+                if (rightIsSet) {
+                    traceOutline(mask, width, height, x, y, DOWN, visitedEdges, path, offsetX, offsetY);
+                } else {
+                    traceOutline(mask, width, height, x, y + 1, UP, visitedEdges, path, offsetX, offsetY);
+                }
+            }
+        }
+        return path;
+    }
+
+    private static void traceOutline(byte[] mask, int width, int height,
+                                     int startX, int startY, int startDir,
+                                     BitSet visitedEdges, Path2D path,
+                                     int offsetX, int offsetY) {
+        path.moveTo(startX + offsetX, startY + offsetY);
+        int x = startX;
+        int y = startY;
+        int dir = startDir;
+        do {
+            if (dir == DOWN) {
+                visitedEdges.set(y * (width + 1) + x);
+            } else if (dir == UP) {
+                visitedEdges.set((y - 1) * (width + 1) + x);
+            }
+            x += DX[dir];
+            y += DY[dir];
+
+            int nextDir = calcNextDir(mask, width, height, x, y, dir);
+            if (nextDir != dir) {
+                // only the corners are added
+                path.lineTo(x + offsetX, y + offsetY);
+                dir = nextDir;
+            }
+        } while (x != startX || y != startY || dir != startDir);
+        path.closePath();
+    }
+
+    /**
+     * Returns the direction of the outline after the given vertex,
+     * based on the four pixels around it.
+     */
+    private static int calcNextDir(byte[] mask, int width, int height, int x, int y, int dir) {
+        boolean topLeft = isSet(mask, width, height, x - 1, y - 1);
+        boolean topRight = isSet(mask, width, height, x, y - 1);
+        boolean bottomLeft = isSet(mask, width, height, x - 1, y);
+        boolean bottomRight = isSet(mask, width, height, x, y);
+
+        // two outlines touch at the vertices where only the diagonally
+        // opposite pixels are set, and there two directions are possible.
+        // Preferring the left turn, then going straight, then the right turn
+        // makes sure that the two incoming edges continue differently.
+        for (int turn : TURNS) {
+            int candidate = (dir + turn) % 4;
+            boolean possible = switch (candidate) {
+                case RIGHT -> topRight && !bottomRight;
+                case DOWN -> bottomRight && !bottomLeft;
+                case LEFT -> bottomLeft && !topLeft;
+                case UP -> topLeft && !topRight;
+                default -> throw new IllegalStateException("candidate = " + candidate);
+            };
+            if (possible) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("no outline at " + x + ", " + y);
+    }
+
+    private static boolean isSet(byte[] mask, int width, int height, int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height && mask[y * width + x] != 0;
+    }
+}
@@ -26,6 +26,7 @@ import pixelitor.layers.Drawable;
 import pixelitor.tools.util.PMouseEvent;
 import pixelitor.utils.Cursors;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.TiledImage;
 import pixelitor.utils.debug.DebugNode;
 
 import javax.swing.*;
@@ -35,6 +36,7 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.Deque;
 
 import static pixelitor.colors.FgBgColors.getBGColor;
@@ -166,6 +168,7 @@ public class PaintBucketTool extends Tool {
                 g.dispose();
                 workingImage.flush();
             }
+            dr.invalidateContentRect();
             comp.update();
             dr.updateIconImage();
         }
@@ -185,11 +188,11 @@ public class PaintBucketTool extends Tool {
         int imgHeight = img.getHeight();
         int imgWidth = img.getWidth();
 
-        int[] pixels = ImageUtils.getPixelsAsArray(img);
+        Pixels pixels = Pixels.of(img);
 
         // Needed because the tolerance: we cannot assume that
         // if the pixel is within the target range, it has been processed
-        boolean[] checkedPixels = new boolean[pixels.length];
+        BitSet checkedPixels = new BitSet();
 
         // the double-ended queue is used as a simple LIFO stack
         Deque<Point> stack = new ArrayDeque<>();
@@ -205,7 +208,7 @@ public class PaintBucketTool extends Tool {
             int scanlineMinX = x - 1;
             int offset = y * imgWidth;
             while (scanlineMinX >= 0
-                && isSimilar(pixels[scanlineMinX + offset], rgbAtMouse, tolerance)) {
+                && isSimilar(pixels.get(scanlineMinX, y), rgbAtMouse, tolerance)) {
                 scanlineMinX--;
             }
             scanlineMinX++;
@@ -213,7 +216,7 @@ public class PaintBucketTool extends Tool {
             // find the last replaceable point to the right
             int scanlineMaxX = x + 1;
             while (scanlineMaxX < img.getWidth()
-                && isSimilar(pixels[scanlineMaxX + offset], rgbAtMouse, tolerance)) {
+                && isSimilar(pixels.get(scanlineMaxX, y), rgbAtMouse, tolerance)) {
                 scanlineMaxX++;
             }
             scanlineMaxX--;
@@ -234,10 +237,9 @@ public class PaintBucketTool extends Tool {
 
             // draw a line between (scanlineMinX, y) and (scanlineMaxX, y)
             for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
-                int index = i + offset;
-                pixels[index] = newRGB;
-                checkedPixels[index] = true;
+                pixels.set(i, y, newRGB);
             }
+            checkedPixels.set(scanlineMinX + offset, scanlineMaxX + offset + 1);
 
             // look upwards for new points to be inspected later
             if (y > 0) {
@@ -250,8 +252,8 @@ public class PaintBucketTool extends Tool {
 
                 for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
                     int upIndex = i + upOffset;
-                    boolean shouldBeReplaced = !checkedPixels[upIndex]
-                        && isSimilar(pixels[upIndex], rgbAtMouse, tolerance);
+                    boolean shouldBeReplaced = !checkedPixels.get(upIndex)
+                        && isSimilar(pixels.get(i, y - 1), rgbAtMouse, tolerance);
 
                     if (!pointsInLine && shouldBeReplaced) {
                         Point inspectLater = new Point(i, y - 1);
@@ -270,8 +272,8 @@ public class PaintBucketTool extends Tool {
 
                 for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
                     int downIndex = i + downOffset;
-                    boolean shouldBeReplaced = !checkedPixels[downIndex]
-                        && isSimilar(pixels[downIndex], rgbAtMouse, tolerance);
+                    boolean shouldBeReplaced = !checkedPixels.get(downIndex)
+                        && isSimilar(pixels.get(i, y + 1), rgbAtMouse, tolerance);
 
                     if (!pointsInLine && shouldBeReplaced) {
                         Point inspectLater = new Point(i, y + 1);
@@ -291,17 +293,40 @@ public class PaintBucketTool extends Tool {
     private static Rectangle globalReplaceColor(BufferedImage img,
                                                 int tolerance,
                                                 int rgbAtMouse, int newRGB) {
-        int[] pixels = ImageUtils.getPixelsAsArray(img);
-        for (int i = 0; i < pixels.length; i++) {
-            if (isSimilar(pixels[i], rgbAtMouse, tolerance)) {
-                pixels[i] = newRGB;
+        if (TiledImage.isTiled(img)) {
+            // replaced row by row, because getPixelsAsArray would return a copy
+            TiledImage tiledImage = TiledImage.from(img);
+            int width = tiledImage.getWidth();
+            int[] row = new int[width];
+            for (int y = 0, height = tiledImage.getHeight(); y < height; y++) {
+                tiledImage.getRow(0, y, width, row, 0);
+                if (replaceColor(row, tolerance, rgbAtMouse, newRGB)) {
+                    tiledImage.setRow(0, y, width, row, 0);
+                }
             }
+        } else {
+            replaceColor(ImageUtils.getPixelsAsArray(img), tolerance, rgbAtMouse, newRGB);
         }
 
         // return the replaced area, which is the whole image
         return new Rectangle(0, 0, img.getWidth(), img.getHeight());
     }
 
+    /**
+     * Returns true if any pixel was replaced
+     */
+    private static boolean replaceColor(int[] pixels, int tolerance,
+                                        int rgbAtMouse, int newRGB) {
+        boolean replaced = false;
+        for (int i = 0; i < pixels.length; i++) {
+            if (isSimilar(pixels[i], rgbAtMouse, tolerance)) {
+                pixels[i] = newRGB;
+                replaced = true;
+            }
+        }
+        return replaced;
+    }
+
     private static boolean isSimilar(int color1, int color2, int tolerance) {
         if (color1 == color2) {
             return true;
@@ -323,6 +348,47 @@ public class PaintBucketTool extends Tool {
             (a2 <= a1 + tolerance) && (a2 >= a1 - tolerance);
     }
 
+    /**
+     * Access to the pixels of the filled image. The pixels of a tiled
+     * image are accessed through its tiles, because getPixelsAsArray
+     * would return a copy (and a full-size array is what tiling avoids).
+     */
+    private interface Pixels {
+        int get(int x, int y);
+
+        void set(int x, int y, int rgb);
+
+        static Pixels of(BufferedImage img) {
+            if (TiledImage.isTiled(img)) {
+                TiledImage tiledImage = TiledImage.from(img);
+                return new Pixels() {
+                    @Override
+                    public int get(int x, int y) {
+                        return tiledImage.getRGB(x, y);
+                    }
+
+                    @Override
+                    public void set(int x, int y, int rgb) {
+                        tiledImage.setRGB(x, y, rgb);
+                    }
+                };
+            }
+            int[] pixels = ImageUtils.getPixelsAsArray(img);
+            int width = img.getWidth();
+            return new Pixels() {
+                @Override
+                public int get(int x, int y) {
+                    return pixels[x + y * width];
+                }
+
+                @Override
+                public void set(int x, int y, int rgb) {
+                    pixels[x + y * width] = rgb;
+                }
+            };
+        }
+    }
+
     @Override
     public boolean allowOnlyDrawables() {
         return true;
@@ -185,9 +185,9 @@ public class CropTool extends DragTool {
             0, 0, max, 1));
         spinner.addChangeListener(whChangeListener);
         spinner.setToolTipText(toolTip);
-        // In fact setting it to 3 columns seems enough
-        // for the range 1-9999, but leave it as 4 for safety
-        ((JSpinner.DefaultEditor) spinner.getEditor()).getTextField().setColumns(4);
+        // In fact setting it to 4 columns seems enough
+        // for the range 1-99999, but leave it as 5 for safety
+        ((JSpinner.DefaultEditor) spinner.getEditor()).getTextField().setColumns(5);
         return spinner;
     }
 
@@ -368,6 +368,7 @@ public class StyledShape implements Cloneable, Transformable {
         assert shape != null;
 
         PartialImageEdit imageEdit = null;
+        Rectangle changedRegion = null;
         Drawable dr = comp.getActiveDrawable();
         if (dr != null) { // a text layer could be active
             Rectangle shapeBounds = shape.getBounds();
@@ -375,6 +376,8 @@ public class StyledShape implements Cloneable, Transformable {
             shapeBounds.grow(thickness, thickness);
 
             if (!shapeBounds.isEmpty()) {
+                // the edit translates the bounds to image coordinates
+                changedRegion = new Rectangle(shapeBounds);
                 BufferedImage originalImage = dr.getImage();
                 imageEdit = History.createPartialImageEdit(
                     shapeBounds, originalImage, dr, false, "Shape");
@@ -388,6 +391,7 @@ public class StyledShape implements Cloneable, Transformable {
 
         if (imageEdit != null) {
             paintOnDrawable(dr);
+            dr.contentRegionChanged(changedRegion);
             comp.update();
             dr.updateIconImage();
         } else {
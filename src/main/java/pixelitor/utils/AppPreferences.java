@@ -30,6 +30,7 @@ import pixelitor.guides.GuideStrokeType;
 import pixelitor.guides.GuideStyle;
 import pixelitor.history.History;
 import pixelitor.io.Dirs;
+import pixelitor.io.PXCCodec;
 import pixelitor.layers.LayerButtonLayout;
 import pixelitor.menus.file.RecentFile;
 import pixelitor.menus.file.RecentFilesMenu;
@@ -82,12 +83,14 @@ public final class AppPreferences {
     private static final String LAST_SAVE_DIR_KEY = "last_save_dir";
 
     private static final String UNDO_LEVELS_KEY = "undo_levels";
+    private static final String UNDO_MEMORY_KEY = "undo_memory_mb";
     private static final String THUMB_SIZE_KEY = "thumb_size";
     private static final String LAST_TOOL_KEY = "last_tool";
     private static final String THEME_KEY = "theme";
     private static final String LANG_KEY = "lang";
     private static final String MOUSE_ZOOM_KEY = "mouse_zoom";
     private static final String PAN_KEY = "pan";
+    private static final String PXC_CODEC_KEY = "pxc_codec";
 
     private static final String GUIDE_COLOR_KEY = "guide_color";
     private static final String GUIDE_STROKE_KEY = "guide_stroke";
@@ -300,6 +303,22 @@ public final class AppPreferences {
         mainNode.putInt(UNDO_LEVELS_KEY, History.getUndoLevels());
     }
 
+    /**
+     * Returns the memory limit of the undo backups in bytes.
+     */
+    public static long loadUndoMemoryLimit() {
+        int megabytes = mainNode.getInt(UNDO_MEMORY_KEY, -1);
+        if (megabytes == -1) {
+            megabytes = getDefaultUndoMemoryMegabytes();
+        }
+        return (long) megabytes * Utils.BYTES_IN_1_MEGABYTE;
+    }
+
+    private static void saveUndoMemoryLimit() {
+        long megabytes = History.getUndoMemoryLimit() / Utils.BYTES_IN_1_MEGABYTE;
+        mainNode.putInt(UNDO_MEMORY_KEY, (int) Math.min(Integer.MAX_VALUE, megabytes));
+    }
+
     public static int loadThumbSize() {
         return mainNode.getInt(THUMB_SIZE_KEY, LayerButtonLayout.SMALL_THUMB_SIZE);
     }
@@ -358,6 +377,7 @@ public final class AppPreferences {
         saveFgBgColors();
         WorkSpace.saveVisibility();
         saveUndoLevels();
+        saveUndoMemoryLimit();
         saveThumbSize();
         TipsOfTheDay.saveNextTipNr();
         saveNewImageSize();
@@ -368,6 +388,7 @@ public final class AppPreferences {
         saveLanguage();
         saveMouseZoom();
         savePan();
+        savePXCCodec();
         saveMagickDir();
     }
 
@@ -405,6 +426,11 @@ public final class AppPreferences {
         return ((retVal + 4) / 5) * 5;
     }
 
+    private static int getDefaultUndoMemoryMegabytes() {
+        // a quarter of the heap, the rest is needed for the open images
+        return Math.max(16, Utils.getMaxHeapInMegabytes() / 4);
+    }
+
     public static ImageAreaSavedInfo loadDesktopMode() {
         String value = mainNode.get(UI_KEY, "TabsN");
         if (value.startsWith("Tabs")) {
@@ -491,6 +517,14 @@ public final class AppPreferences {
         mainNode.put(PAN_KEY, PanMethod.CURRENT.saveCode());
     }
 
+    public static String loadPXCCodec() {
+        return mainNode.get(PXC_CODEC_KEY, PXCCodec.DEFLATE.saveCode());
+    }
+
+    private static void savePXCCodec() {
+        mainNode.put(PXC_CODEC_KEY, PXCCodec.getDefault().saveCode());
+    }
+
     private static void loadMagickDir() {
         magickDirName = mainNode.get(MAGICK_DIR_KEY, "");
     }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
+
+/**
+ * Submits the tasks to a second executor, but it limits the number of
+ * tasks that run at the same time. The limit is queried every time
+ * a task could be started, so it can depend on the current state
+ * of the system (for example on the available memory).
+ */
+public class BoundedExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor delegateExecutor;
+    private final IntSupplier maxRunningTasks;
+    private int numRunningTasks = 0;
+
+    public BoundedExecutor(Executor delegateExecutor, IntSupplier maxRunningTasks) {
+        this.delegateExecutor = delegateExecutor;
+        this.maxRunningTasks = maxRunningTasks;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                taskFinished();
+            }
+        });
+        scheduleNext();
+    }
+
+    private synchronized void taskFinished() {
+        numRunningTasks--;
+        scheduleNext();
+    }
+
+    private synchronized void scheduleNext() {
+        // one task is always allowed to run, even if the limit is
+        // lower, otherwise the queued tasks could wait forever
+        while (!tasks.isEmpty() && (numRunningTasks == 0
+            || numRunningTasks < maxRunningTasks.getAsInt())) {
+            numRunningTasks++;
+            delegateExecutor.execute(tasks.poll());
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return numRunningTasks == 0 && tasks.isEmpty();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.utils;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Allows a long-running operation (such as a filter preview) to
+ * be cancelled cooperatively: the operation periodically checks
+ * the token and stops as soon as it finds out that it was cancelled.
+ * <p>
+ * While a token is bound to a thread, the progress trackers
+ * created on that thread report its cancellation state,
+ * and this is how the token reaches the row and strip tasks.
+ */
+public class CancellationToken {
+    /**
+     * A shared token that is never cancelled (calling cancel on it does nothing)
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            // the operations without a real token can't be cancelled
+        }
+    };
+
+    private static final ThreadLocal<CancellationToken> current =
+        ThreadLocal.withInitial(() -> NONE);
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Requests the cancellation of the operation. Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws a {@link CancellationException} if the token was cancelled.
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Runs the given task with this token bound to the current thread.
+     */
+    public void runBound(Runnable task) {
+        CancellationToken prev = current.get();
+        current.set(this);
+        try {
+            task.run();
+        } finally {
+            current.set(prev);
+        }
+    }
+
+    /**
+     * Returns the token bound to the current thread,
+     * or {@link #NONE} if there is no such token.
+     */
+    public static CancellationToken current() {
+        return current.get();
+    }
+}
@@ -68,6 +68,11 @@ public class DebugProgressTracker implements ProgressTracker {
         log("addUnits " + units);
     }
 
+    @Override
+    public boolean isCancelled() {
+        return delegateTracker != null && delegateTracker.isCancelled();
+    }
+
     @Override
     public void finished() {
         if (delegateTracker != null) {
@@ -19,6 +19,7 @@ package pixelitor.utils;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.WritableRaster;
 
 
@@ -93,6 +94,80 @@ public class ImageTrimUtil {
         return new Rectangle(left, top, right - left + 1, bottom - top + 1);
     }
 
+    /**
+     * Returns the bounds of the non-transparent pixels, which is
+     * an empty rectangle if all pixels are transparent.
+     * Unlike {@link #getTrimRect(BufferedImage)}, it reads the pixel array
+     * directly if possible, and skips the empty tiles of tiled images.
+     */
+    public static Rectangle getContentBounds(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (!image.getColorModel().hasAlpha()) {
+            return new Rectangle(0, 0, width, height);
+        }
+        if (TiledImage.isTiled(image)) {
+            return TiledImage.from(image).getContentBounds();
+        }
+        if (ImageUtils.hasPackedIntArray(image)
+            && image.getRaster().getParent() == null) {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            return getContentBounds(pixels, width, height);
+        }
+
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        return getContentBounds(pixels, width, height);
+    }
+
+    /**
+     * Returns the bounds of the non-transparent pixels
+     * in the given ARGB pixel array.
+     */
+    public static Rectangle getContentBounds(int[] pixels, int width, int height) {
+        int top = 0;
+        while (top < height && isTransparentRow(pixels, top * width, width)) {
+            top++;
+        }
+        if (top == height) {
+            return new Rectangle(); // fully transparent
+        }
+        int bottom = height - 1;
+        while (isTransparentRow(pixels, bottom * width, width)) {
+            bottom--;
+        }
+
+        // in the remaining rows only the pixels that can
+        // still extend the left and right edges are checked
+        int left = width;
+        int right = -1;
+        for (int y = top; y <= bottom; y++) {
+            int rowStart = y * width;
+            for (int x = 0; x < left; x++) {
+                if (pixels[rowStart + x] >>> 24 != 0) {
+                    left = x;
+                    break;
+                }
+            }
+            for (int x = width - 1; x > right; x--) {
+                if (pixels[rowStart + x] >>> 24 != 0) {
+                    right = x;
+                    break;
+                }
+            }
+        }
+
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    private static boolean isTransparentRow(int[] pixels, int rowStart, int width) {
+        for (int i = rowStart, end = rowStart + width; i < end; i++) {
+            if (pixels[i] >>> 24 != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static BufferedImage trimImage(BufferedImage image) {
         Rectangle rect = getTrimRect(image);
         return image.getSubimage(rect.x, rect.y, rect.width, rect.height);
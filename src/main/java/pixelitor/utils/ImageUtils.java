@@ -553,11 +553,22 @@ public class ImageUtils {
     }
 
     public static BufferedImage createThumbnail(BufferedImage src, int size, CheckerboardPainter painter) {
+        return createThumbnail(src, size, painter, null);
+    }
+
+    /**
+     * Creates a thumbnail, but draws only the given content area of the source,
+     * because the pixels outside it are known to be transparent.
+     * If the content area is null, then the whole source image is drawn.
+     */
+    public static BufferedImage createThumbnail(BufferedImage src, int size,
+                                                CheckerboardPainter painter,
+                                                Rectangle content) {
         assert src != null;
 
         Dimension thumbDim = calcThumbDimensions(src.getWidth(), src.getHeight(), size);
 
-        return downSizeFast(src, thumbDim.width, thumbDim.height, painter);
+        return downSizeFast(src, thumbDim.width, thumbDim.height, painter, content);
     }
 
     public static Dimension calcThumbDimensions(int srcWidth, int srcHeight, int size) {
@@ -597,12 +608,13 @@ public class ImageUtils {
         int thumbWidth = (int) (imgWidth * scaling);
         int thumbHeight = (int) (imgHeight * scaling);
 
-        return downSizeFast(src, thumbWidth, thumbHeight, painter);
+        return downSizeFast(src, thumbWidth, thumbHeight, painter, null);
     }
 
     private static BufferedImage downSizeFast(BufferedImage src,
                                               int thumbWidth, int thumbHeight,
-                                              CheckerboardPainter painter) {
+                                              CheckerboardPainter painter,
+                                              Rectangle content) {
         BufferedImage thumb = createSysCompatibleImage(thumbWidth, thumbHeight);
         Graphics2D g = thumb.createGraphics();
 
@@ -611,7 +623,23 @@ public class ImageUtils {
         }
 
         g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-        g.drawImage(src, 0, 0, thumbWidth, thumbHeight, null);
+        if (content == null) {
+            g.drawImage(src, 0, 0, thumbWidth, thumbHeight, null);
+        } else if (!content.isEmpty()) {
+            double sx = thumbWidth / (double) src.getWidth();
+            double sy = thumbHeight / (double) src.getHeight();
+            int x1 = (int) (content.x * sx);
+            int y1 = (int) (content.y * sy);
+            int x2 = (int) Math.ceil((content.x + content.width) * sx);
+            int y2 = (int) Math.ceil((content.y + content.height) * sy);
+
+            // the source area that corresponds to the whole destination pixels
+            g.drawImage(src, x1, y1, x2, y2,
+                (int) (x1 / sx), (int) (y1 / sy),
+                (int) Math.min(src.getWidth(), Math.ceil(x2 / sx)),
+                (int) Math.min(src.getHeight(), Math.ceil(y2 / sy)),
+                null);
+        }
         g.dispose();
 
         return thumb;
@@ -648,6 +676,9 @@ public class ImageUtils {
 
         BufferedImage copy = null;
         try {
+            if (TiledImage.isTiled(src)) {
+                return TiledImage.from(src).copy().asBufferedImage();
+            }
             WritableRaster raster = src.copyData(null);
             copy = new BufferedImage(src.getColorModel(), raster, src.isAlphaPremultiplied(), null);
         } catch (OutOfMemoryError e) {
@@ -36,6 +36,14 @@ public interface ProgressTracker {
      */
     void finished();
 
+    /**
+     * Whether the tracked operation was cancelled,
+     * in which case the remaining work units can be skipped
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+
     /**
      * A "null object" tracker that does nothing and
      * also can be shared because it has no state
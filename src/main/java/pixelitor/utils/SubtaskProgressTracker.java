@@ -69,6 +69,11 @@ public class SubtaskProgressTracker implements ProgressTracker {
         superTask.unitsDone(doneUnits);
     }
 
+    @Override
+    public boolean isCancelled() {
+        return superTask.isCancelled();
+    }
+
     @Override
     public void finished() {
         // some fractional progress might be lost,
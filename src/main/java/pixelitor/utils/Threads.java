@@ -31,6 +31,8 @@ public class Threads {
 
     public static final Executor onIOThread = IOTasks.getExecutor();
 
+    public static final Executor onDecodingThreads = IOTasks.getDecodingExecutor();
+
     public static final Executor onPool = ThreadPool.getExecutor();
 
     private Threads() {
@@ -33,12 +33,12 @@ public abstract class ThresholdProgressTracker implements ProgressTracker {
     private int lastPercent = 0;
 
     private boolean showingProgress = false;
-    private final boolean runningOnEDT;
+    private final CancellationToken cancellationToken;
 
     protected ThresholdProgressTracker(int numComputationUnits) {
         this.numComputationUnits = numComputationUnits;
         startTime = System.currentTimeMillis();
-        runningOnEDT = Threads.calledOnEDT();
+        cancellationToken = CancellationToken.current();
     }
 
     @Override
@@ -54,6 +54,9 @@ public abstract class ThresholdProgressTracker implements ProgressTracker {
     }
 
     private void update() {
+        // checked for every update, because the progress of
+        // a task started on the EDT can be reported from other threads
+        boolean runningOnEDT = Threads.calledOnEDT();
         if (!showingProgress) {
             double millis = System.currentTimeMillis() - startTime;
             if (millis > THRESHOLD_MILLIS) {
@@ -82,6 +85,7 @@ public abstract class ThresholdProgressTracker implements ProgressTracker {
     @Override
     public void finished() {
         if (showingProgress) {
+            boolean runningOnEDT = Threads.calledOnEDT();
             if (runningOnEDT) {
                 finishProgressTracking();
             } else {
@@ -92,6 +96,11 @@ public abstract class ThresholdProgressTracker implements ProgressTracker {
         }
     }
 
+    @Override
+    public boolean isCancelled() {
+        return cancellationToken.isCancelled();
+    }
+
     abstract void startProgressTracking();
 
     abstract void updateProgressTracking(int percent);
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2021 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.awt.color.ColorSpace.CS_sRGB;
+import static java.awt.color.ColorSpace.getInstance;
+
+/**
+ * ARGB pixel storage that is split into fixed-size square tiles,
+ * so that very large images don't need one huge contiguous array.
+ * The tiles are allocated only when a non-transparent pixel
+ * is written into them, therefore empty areas cost no memory.
+ *
+ * The pixels can be accessed directly, or through a
+ * {@link BufferedImage} adapter created by {@link #asBufferedImage()},
+ * which can be used with Graphics2D and with the existing filters.
+ *
+ * The pixels can also be loaded lazily by a {@link TileLoader}.
+ */
+public class TiledImage {
+    private static final int TILE_SHIFT = 8;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT; // 256
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    // images with more pixels than this are created as tiled images
+    // (the old maximum canvas size was 9 999 x 9 999)
+    public static final long MIN_TILED_PIXELS = 100_000_000L;
+
+    private final int width;
+    private final int height;
+    private final boolean premultiplied;
+    private final int numTilesX;
+    private final int numTilesY;
+
+    // the tiles in row-major order, a null element is a fully transparent tile
+    private final AtomicReferenceArray<int[]> tiles;
+
+    // the tiles that are shared with a snapshot, and must be copied before writing
+    private final AtomicReferenceArray<int[]> sharedTiles;
+
+    // not null while some tile rows are not loaded yet
+    private volatile TileLoader loader;
+
+    public TiledImage(int width, int height, boolean premultiplied) {
+        assert width > 0 && height > 0;
+
+        this.width = width;
+        this.height = height;
+        this.premultiplied = premultiplied;
+        numTilesX = (width + TILE_MASK) >> TILE_SHIFT;
+        numTilesY = (height + TILE_MASK) >> TILE_SHIFT;
+        tiles = new AtomicReferenceArray<>(numTilesX * numTilesY);
+        sharedTiles = new AtomicReferenceArray<>(numTilesX * numTilesY);
+    }
+
+    /**
+     * Creates a (non-premultiplied) ARGB image, which is tiled
+     * only if it's too large to be comfortably stored in one array.
+     */
+    public static BufferedImage createImage(int width, int height) {
+        if (shouldBeTiled(width, height)) {
+            return new TiledImage(width, height, false).asBufferedImage();
+        }
+        return ImageUtils.createSysCompatibleImage(width, height);
+    }
+
+    /**
+     * Like {@link #createImage(int, int)}, but for premultiplied images.
+     */
+    public static BufferedImage createPremultipliedImage(int width, int height) {
+        if (shouldBeTiled(width, height)) {
+            return new TiledImage(width, height, true).asBufferedImage();
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    public static boolean shouldBeTiled(int width, int height) {
+        return ((long) width) * height > MIN_TILED_PIXELS;
+    }
+
+    /**
+     * Returns true if the given image is an adapter of a tiled image.
+     */
+    public static boolean isTiled(BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof TileDataBuffer;
+    }
+
+    /**
+     * Returns the tiled image behind the given adapter image.
+     */
+    public static TiledImage from(BufferedImage image) {
+        return ((TileDataBuffer) image.getRaster().getDataBuffer()).tiledImage;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Loads the pixels of a tiled image on demand,
+     * for example from a file that is opened lazily.
+     */
+    public interface TileLoader {
+        /**
+         * Makes sure that the given row of tiles is loaded. This is called
+         * from any thread, and it must return quickly if the row is already loaded.
+         * The pixels must be written with {@link #setLoadedRow(int, int[])}.
+         */
+        void loadTileRow(int tileY);
+    }
+
+    /**
+     * Makes the pixels available only through the given loader, until
+     * {@link #finishLazyLoading()} is called. All the methods that access
+     * the pixels first ask the loader to load the affected tile rows.
+     */
+    public void startLazyLoading(TileLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Called by the loader after all the pixels were loaded.
+     */
+    public void finishLazyLoading() {
+        loader = null;
+    }
+
+    public boolean isFullyLoaded() {
+        return loader == null;
+    }
+
+    /**
+     * Waits until all the tile rows are loaded.
+     */
+    public void ensureFullyLoaded() {
+        TileLoader l = loader;
+        if (l != null) {
+            for (int tileY = 0; tileY < numTilesY; tileY++) {
+                l.loadTileRow(tileY);
+            }
+        }
+    }
+
+    private void ensureLoaded(int tileY) {
+        TileLoader l = loader;
+        if (l != null) {
+            l.loadTileRow(tileY);
+        }
+    }
+
+    /**
+     * Writes a full row of loaded pixels, without waiting for the loader.
+     */
+    public void setLoadedRow(int y, int[] src) {
+        setRowSegments(0, y, width, src, 0);
+    }
+
+    public int getRGB(int x, int y) {
+        ensureLoaded(y >> TILE_SHIFT);
+        int[] tile = tiles.get(tileIndex(x, y));
+        if (tile == null) {
+            return 0;
+        }
+        return tile[((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)];
+    }
+
+    public void setRGB(int x, int y, int argb) {
+        ensureLoaded(y >> TILE_SHIFT);
+        int index = tileIndex(x, y);
+        int[] tile = getTileForWriting(index);
+        if (tile == null) {
+            if (argb == 0) {
+                return; // the tile stays empty
+            }
+            tile = allocateTile(index);
+        }
+        tile[((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)] = argb;
+    }
+
+    /**
+     * Copies a row segment of pixels into the given array.
+     */
+    public void getRow(int x, int y, int length, int[] dest, int destOffset) {
+        ensureLoaded(y >> TILE_SHIFT);
+        int end = x + length;
+        while (x < end) {
+            int tileEnd = Math.min(end, (x & ~TILE_MASK) + TILE_SIZE);
+            int count = tileEnd - x;
+            int[] tile = tiles.get(tileIndex(x, y));
+            if (tile == null) {
+                Arrays.fill(dest, destOffset, destOffset + count, 0);
+            } else {
+                System.arraycopy(tile, ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK),
+                    dest, destOffset, count);
+            }
+            destOffset += count;
+            x = tileEnd;
+        }
+    }
+
+    /**
+     * Copies a row segment of pixels from the given array.
+     */
+    public void setRow(int x, int y, int length, int[] src, int srcOffset) {
+        ensureLoaded(y >> TILE_SHIFT);
+        setRowSegments(x, y, length, src, srcOffset);
+    }
+
+    private void setRowSegments(int x, int y, int length, int[] src, int srcOffset) {
+        int end = x + length;
+        while (x < end) {
+            int tileEnd = Math.min(end, (x & ~TILE_MASK) + TILE_SIZE);
+            int count = tileEnd - x;
+            int index = tileIndex(x, y);
+            int[] tile = getTileForWriting(index);
+            if (tile == null && !isTransparent(src, srcOffset, count)) {
+                tile = allocateTile(index);
+            }
+            if (tile != null) {
+                System.arraycopy(src, srcOffset,
+                    tile, ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK), count);
+            }
+            srcOffset += count;
+            x = tileEnd;
+        }
+    }
+
+    private static boolean isTransparent(int[] pixels, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (pixels[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int tileIndex(int x, int y) {
+        return (y >> TILE_SHIFT) * numTilesX + (x >> TILE_SHIFT);
+    }
+
+    /**
+     * Returns the tile with the given index for writing (or null if it's not allocated).
+     * A tile that is shared with a snapshot is replaced by its copy.
+     */
+    private int[] getTileForWriting(int index) {
+        int[] tile = tiles.get(index);
+        if (tile != null && tile == sharedTiles.get(index)) {
+            int[] copy = tile.clone();
+            if (tiles.compareAndSet(index, tile, copy)) {
+                sharedTiles.compareAndSet(index, tile, null);
+                return copy;
+            }
+            // another thread has already replaced it
+            return tiles.get(index);
+        }
+        return tile;
+    }
+
+    private int[] allocateTile(int index) {
+        // several threads (for example filter strips) can
+        // write into the same unallocated tile at the same time
+        int[] newTile = new int[TILE_SIZE * TILE_SIZE];
+        if (tiles.compareAndSet(index, null, newTile)) {
+            return newTile;
+        }
+        return tiles.get(index);
+    }
+
+    /**
+     * Returns the bounds of the non-transparent pixels (an empty
+     * rectangle if there are none). Only the allocated tiles are scanned.
+     */
+    public Rectangle getContentBounds() {
+        ensureFullyLoaded();
+        Rectangle bounds = new Rectangle();
+        int[] tilePixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int tileY = 0; tileY < numTilesY; tileY++) {
+            for (int tileX = 0; tileX < numTilesX; tileX++) {
+                int[] tile = tiles.get(tileY * numTilesX + tileX);
+                if (tile == null) {
+                    continue;
+                }
+                int x = tileX << TILE_SHIFT;
+                int y = tileY << TILE_SHIFT;
+                int tileWidth = Math.min(TILE_SIZE, width - x);
+                int tileHeight = Math.min(TILE_SIZE, height - y);
+
+                // copy the used part of the tile into a compact array
+                for (int row = 0; row < tileHeight; row++) {
+                    System.arraycopy(tile, row << TILE_SHIFT,
+                        tilePixels, row * tileWidth, tileWidth);
+                }
+                Rectangle tileBounds = ImageTrimUtil.getContentBounds(
+                    tilePixels, tileWidth, tileHeight);
+                if (!tileBounds.isEmpty()) {
+                    tileBounds.translate(x, y);
+                    if (bounds.isEmpty()) {
+                        bounds = tileBounds;
+                    } else {
+                        bounds.add(tileBounds);
+                    }
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Returns an independent copy, in which the empty tiles stay unallocated.
+     */
+    public TiledImage copy() {
+        ensureFullyLoaded();
+        var copy = new TiledImage(width, height, premultiplied);
+        for (int i = 0, n = tiles.length(); i < n; i++) {
+            int[] tile = tiles.get(i);
+            if (tile != null) {
+                copy.tiles.set(i, tile.clone());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy that initially shares all its tiles with this image,
+     * therefore it's cheap to create. A shared tile is copied only when
+     * one of the images writes into it (copy-on-write).
+     */
+    public TiledImage snapshot() {
+        ensureFullyLoaded();
+        var snapshot = new TiledImage(width, height, premultiplied);
+        for (int i = 0, n = tiles.length(); i < n; i++) {
+            int[] tile = tiles.get(i);
+            if (tile != null) {
+                sharedTiles.set(i, tile);
+                snapshot.tiles.set(i, tile);
+                snapshot.sharedTiles.set(i, tile);
+            }
+        }
+        return snapshot;
+    }
+
+    public boolean isPremultiplied() {
+        return premultiplied;
+    }
+
+    /**
+     * Returns whether the tile with the given tile coordinates
+     * has no allocated storage, meaning that it is fully transparent.
+     */
+    public boolean isEmptyTile(int tileX, int tileY) {
+        ensureLoaded(tileY);
+        return tiles.get(tileY * numTilesX + tileX) == null;
+    }
+
+    public int getNumTilesX() {
+        return numTilesX;
+    }
+
+    public int getNumTilesY() {
+        return numTilesY;
+    }
+
+    public int getNumAllocatedTiles() {
+        ensureFullyLoaded();
+        int count = 0;
+        for (int i = 0, n = tiles.length(); i < n; i++) {
+            if (tiles.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes used by the allocated tiles. Unlike
+     * {@link #getNumAllocatedTiles()}, this doesn't wait for the lazy loading.
+     */
+    public long getAllocatedBytes() {
+        long count = 0;
+        for (int i = 0, n = tiles.length(); i < n; i++) {
+            if (tiles.get(i) != null) {
+                count++;
+            }
+        }
+        return count * TILE_SIZE * TILE_SIZE * 4;
+    }
+
+    /**
+     * Returns a BufferedImage view of the pixels. Writing into
+     * the returned image modifies this tiled image, and the other way around.
+     * The image type is TYPE_CUSTOM, so it has no directly accessible pixel array,
+     * and {@link ImageUtils#getPixelsAsArray(BufferedImage)} returns a copy.
+     */
+    public BufferedImage asBufferedImage() {
+        if (((long) width) * height > Integer.MAX_VALUE) {
+            // the Java2D raster addressing uses int indexes
+            throw new IllegalStateException(width + "x" + height
+                + " is too large for a BufferedImage");
+        }
+        var colorModel = new DirectColorModel(getInstance(CS_sRGB), 32,
+            0x00_FF_00_00, 0x00_00_FF_00, 0x00_00_00_FF, 0xFF_00_00_00,
+            premultiplied, DataBuffer.TYPE_INT);
+        var sampleModel = new TileSampleModel(width, height, colorModel.getMasks());
+        WritableRaster raster = Raster.createWritableRaster(
+            sampleModel, new TileDataBuffer(this), null);
+        return new BufferedImage(colorModel, raster, premultiplied, null);
+    }
+
+    /**
+     * A data buffer that maps the linear pixel indexes
+     * of a packed-int raster to the tiles.
+     */
+    private static class TileDataBuffer extends DataBuffer {
+        private final TiledImage tiledImage;
+        private final int width;
+
+        TileDataBuffer(TiledImage tiledImage) {
+            super(TYPE_INT, tiledImage.width * tiledImage.height);
+            this.tiledImage = tiledImage;
+            width = tiledImage.width;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return tiledImage.getRGB(i % width, i / width);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            tiledImage.setRGB(i % width, i / width, val);
+        }
+    }
+
+    /**
+     * A sample model that accesses the pixels of a {@link TileDataBuffer} with
+     * their coordinates, and whole rows at once, because the Java2D loops and
+     * BufferedImage.getRGB/setRGB use the data elements of a custom image.
+     * Only the rarely used sample-based methods go through the linear indexes.
+     */
+    private static class TileSampleModel extends SinglePixelPackedSampleModel {
+        TileSampleModel(int width, int height, int[] masks) {
+            super(DataBuffer.TYPE_INT, width, height, masks);
+        }
+
+        private void checkBounds(int x, int y, int w, int h) {
+            if (x < 0 || y < 0 || w < 0 || h < 0
+                || x + w > getWidth() || y + h > getHeight()) {
+                throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+            }
+        }
+
+        @Override
+        public Object getDataElements(int x, int y, Object obj, DataBuffer data) {
+            checkBounds(x, y, 1, 1);
+            int[] pixel = obj == null ? new int[1] : (int[]) obj;
+            pixel[0] = ((TileDataBuffer) data).tiledImage.getRGB(x, y);
+            return pixel;
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Object obj, DataBuffer data) {
+            checkBounds(x, y, 1, 1);
+            ((TileDataBuffer) data).tiledImage.setRGB(x, y, ((int[]) obj)[0]);
+        }
+
+        @Override
+        public Object getDataElements(int x, int y, int w, int h, Object obj, DataBuffer data) {
+            checkBounds(x, y, w, h);
+            int[] pixels = obj == null ? new int[w * h] : (int[]) obj;
+            TiledImage tiledImage = ((TileDataBuffer) data).tiledImage;
+            for (int row = 0; row < h; row++) {
+                tiledImage.getRow(x, y + row, w, pixels, row * w);
+            }
+            return pixels;
+        }
+
+        @Override
+        public void setDataElements(int x, int y, int w, int h, Object obj, DataBuffer data) {
+            checkBounds(x, y, w, h);
+            int[] pixels = (int[]) obj;
+            TiledImage tiledImage = ((TileDataBuffer) data).tiledImage;
+            for (int row = 0; row < h; row++) {
+                tiledImage.setRow(x, y + row, w, pixels, row * w);
+            }
+        }
+    }
+}